@@ -0,0 +1,607 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import paulscode.sound.PAudioFormat;
+import paulscode.sound.SimpleThread;
+import paulscode.sound.SoundSystemConfig;
+import paulscode.sound.SoundSystemLogger;
+
+/**
+ * The AudioTrackMixer class mixes many voices in software and plays the result
+ * through one shared MODE_STREAM AudioTrack (16-bit or float stereo at the device's native rate).
+ * It is used by ChannelMixer when LibraryAudioTrack is in mixer mode.
+ * The mixing thread works on preallocated blocks. With 16-bit output it doesn't allocate anything while playing;
+ * with float output each block written allocates the Integer returned through reflection (see FloatPcmWriter).
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class AudioTrackMixer {
+	/**
+	 * Default number of frames mixed at once
+	 */
+	private static int defaultBlockFrames = 512;
+
+	/**
+	 * true to output float PCM where the device supports it, so a loud mix isn't clipped to 16 bits
+	 */
+	private static boolean floatOutput = false;
+
+	/**
+	 * Voices mixed by this mixer
+	 */
+	private Voice[] voices = new Voice[0];
+
+	/**
+	 * Lock used by the mixing thread and everyone who changes a voice.
+	 * Raw data producers wait on it for room in a queue; the mixing thread notifies it after each block.
+	 */
+	final Object lock = new Object();
+
+	/**
+	 * The shared output AudioTrack
+	 */
+	private AudioTrack outputTrack;
+
+	/**
+	 * Output sample rate
+	 */
+	private int outputSampleRate;
+
+	/**
+	 * Number of frames mixed at once
+	 */
+	private int blockFrames;
+
+	/**
+	 * Stereo mix accumulator (interleaved L/R)
+	 */
+	private float[] mixBuffer;
+
+	/**
+	 * Stereo output block (interleaved L/R)
+	 */
+	private short[] outputBuffer;
+
+	/**
+	 * Stereo float output block (interleaved L/R), or null when the output is 16-bit
+	 */
+	private float[] floatOutputBuffer;
+
+	/**
+	 * Writes floatOutputBuffer to the output AudioTrack, or null when the output is 16-bit
+	 */
+	private FloatPcmWriter floatWriter;
+
+	/**
+	 * The mixing thread
+	 */
+	private MixerThread mixerThread;
+
+	/**
+	 * Processes status messages, warnings, and error messages.
+	 */
+	private SoundSystemLogger logger;
+
+	/**
+	 * @return Default number of frames mixed at once
+	 */
+	public static int getDefaultBlockFrames() {
+		return defaultBlockFrames;
+	}
+
+	/**
+	 * Set the default number of frames mixed at once. Smaller blocks mean less latency but more wakeups.
+	 * @param defaultBlockFrames Default number of frames mixed at once
+	 */
+	public static void setDefaultBlockFrames(int defaultBlockFrames) {
+		AudioTrackMixer.defaultBlockFrames = defaultBlockFrames;
+	}
+
+	/**
+	 * @return true if the mixer outputs float PCM where the device supports it
+	 */
+	public static boolean isFloatOutput() {
+		return floatOutput;
+	}
+
+	/**
+	 * Enable or disable float PCM output (ENCODING_PCM_FLOAT, Android 5.0 or later).
+	 * The mix is then handed to the AudioTrack without being clipped to 16 bits.
+	 * Devices without float PCM keep using 16-bit output. Takes effect when the mixer is initialized.
+	 * @param floatOutput true to enable
+	 */
+	public static void setFloatOutput(boolean floatOutput) {
+		AudioTrackMixer.floatOutput = floatOutput;
+	}
+
+	/**
+	 * Constructor
+	 */
+	public AudioTrackMixer() {
+		logger = SoundSystemConfig.getLogger();
+		blockFrames = (defaultBlockFrames > 0) ? defaultBlockFrames : 512;
+		// Under the low-latency profile, mix one native burst at a time
+		if(LowLatencyProfile.isEnabled() && LowLatencyProfile.getFramesPerBurst() > 0)
+			blockFrames = LowLatencyProfile.getFramesPerBurst();
+		mixBuffer = new float[blockFrames * 2];
+		outputBuffer = new short[blockFrames * 2];
+	}
+
+	/**
+	 * Create the output AudioTrack and start the mixing thread.
+	 * @return false if the output AudioTrack could not be created
+	 */
+	public boolean init() {
+		if(floatOutput && FloatPcmWriter.isAvailable()) {
+			try {
+				outputSampleRate = LowLatencyProfile.getNativeSampleRate();
+				int minBufferSize = AudioTrack.getMinBufferSize(outputSampleRate, AudioFormat.CHANNEL_OUT_STEREO, FloatPcmWriter.ENCODING_PCM_FLOAT);
+				int bufSize = Math.max(minBufferSize, blockFrames * FloatPcmWriter.BYTES_PER_FRAME * getBlocksPerBuffer());
+				outputTrack = LowLatencyProfile.newAudioTrack(
+					outputSampleRate, AudioFormat.CHANNEL_OUT_STEREO, FloatPcmWriter.ENCODING_PCM_FLOAT, bufSize, AudioTrack.MODE_STREAM
+				);
+				floatOutputBuffer = new float[blockFrames * 2];
+				floatWriter = new FloatPcmWriter();
+				message("Software mixer using " + outputSampleRate + "Hz float output with " + bufSize + " buffer size");
+			} catch (Exception e) {
+				message("Float PCM output not available, falling back to 16-bit");
+				outputTrack = null;
+				floatOutputBuffer = null;
+				floatWriter = null;
+			}
+		}
+
+		if(outputTrack == null) try {
+			outputSampleRate = LowLatencyProfile.getNativeSampleRate();
+			int minBufferSize = AudioTrack.getMinBufferSize(outputSampleRate, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+			// Room for two blocks at least, so one can be mixed while the other plays
+			int bufSize = Math.max(minBufferSize, blockFrames * 4 * getBlocksPerBuffer());
+			outputTrack = LowLatencyProfile.newAudioTrack(
+				outputSampleRate, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT, bufSize, AudioTrack.MODE_STREAM
+			);
+			message("Software mixer using " + outputSampleRate + "Hz output with " + bufSize + " buffer size");
+		} catch (Exception e) {
+			errorMessage("Unable to create the output AudioTrack in method 'init'");
+			printStackTrace(e);
+			outputTrack = null;
+			return false;
+		}
+
+		mixerThread = new MixerThread();
+		mixerThread.start();
+		return true;
+	}
+
+	/**
+	 * @return Number of blocks the output AudioTrack's buffer should hold (two at least, so one can be mixed while the other plays)
+	 */
+	private static int getBlocksPerBuffer() {
+		return LowLatencyProfile.isEnabled() ? Math.max(2, LowLatencyProfile.getBurstMultiplier()) : 2;
+	}
+
+	/**
+	 * Stop the mixing thread and release the output AudioTrack.
+	 */
+	public void cleanup() {
+		if(mixerThread != null) {
+			mixerThread.kill();
+			mixerThread.interrupt();
+			// wait up to 1 second for the mixing thread to end:
+			for(int i = 0; i < 10; i++) {
+				if(!mixerThread.alive())
+					break;
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {}
+			}
+			mixerThread = null;
+		}
+		if(outputTrack != null) {
+			try {
+				outputTrack.stop();
+			} catch (Exception e) {}
+			try {
+				outputTrack.release();
+			} catch (Exception e) {}
+			outputTrack = null;
+		}
+		synchronized(lock) {
+			voices = new Voice[0];
+		}
+	}
+
+	/**
+	 * @return Output sample rate
+	 */
+	public int getOutputSampleRate() {
+		return outputSampleRate;
+	}
+
+	/**
+	 * Create a new voice and add it to the mix.
+	 * @return New voice
+	 */
+	public Voice newVoice() {
+		Voice voice = new Voice(this);
+		synchronized(lock) {
+			Voice[] newVoices = new Voice[voices.length + 1];
+			System.arraycopy(voices, 0, newVoices, 0, voices.length);
+			newVoices[voices.length] = voice;
+			voices = newVoices;
+		}
+		return voice;
+	}
+
+	/**
+	 * Remove a voice from the mix.
+	 * @param voice Voice to remove
+	 */
+	public void removeVoice(Voice voice) {
+		synchronized(lock) {
+			int index = -1;
+			for(int i = 0; i < voices.length; i++) {
+				if(voices[i] == voice) {
+					index = i;
+					break;
+				}
+			}
+			if(index < 0) return;
+			Voice[] newVoices = new Voice[voices.length - 1];
+			System.arraycopy(voices, 0, newVoices, 0, index);
+			System.arraycopy(voices, index + 1, newVoices, index, voices.length - index - 1);
+			voices = newVoices;
+		}
+	}
+
+	/**
+	 * Wake the mixing thread up because a voice started playing, or got new data after its queue ran dry.
+	 */
+	public void wake() {
+		if(mixerThread != null)
+			mixerThread.interrupt();
+	}
+
+	/**
+	 * Mix one block of every playing voice into outputBuffer.
+	 * @return Number of voices that were playing
+	 */
+	private int mixBlock() {
+		float[] mix = mixBuffer;
+		for(int i = 0; i < mix.length; i++) mix[i] = 0f;
+
+		int active = 0;
+		synchronized(lock) {
+			for(int i = 0; i < voices.length; i++) {
+				if(voices[i].render(mix, blockFrames, outputSampleRate))
+					active++;
+			}
+			// Wake up raw data producers waiting for the voices to play some of their queue
+			lock.notifyAll();
+		}
+
+		if(floatOutputBuffer != null) {
+			// No clipping: float PCM has headroom above full scale
+			float[] out = floatOutputBuffer;
+			for(int i = 0; i < mix.length; i++) {
+				out[i] = mix[i] * (1f / 32768f);
+			}
+			return active;
+		}
+
+		short[] out = outputBuffer;
+		for(int i = 0; i < mix.length; i++) {
+			float v = mix[i];
+			if(v > 32767f) v = 32767f;
+			else if(v < -32768f) v = -32768f;
+			out[i] = (short)v;
+		}
+		return active;
+	}
+
+	/**
+	 * Write the last mixed block to the output AudioTrack (blocking).
+	 */
+	private void writeBlock() {
+		if(floatWriter != null)
+			floatWriter.write(outputTrack, floatOutputBuffer, floatOutputBuffer.length);
+		else
+			outputTrack.write(outputBuffer, 0, outputBuffer.length);
+	}
+
+	/**
+	 * Prints a message.
+	 * @param message Message to print.
+	 */
+	protected void message(String message) {
+		logger.message(message, 0);
+	}
+
+	/**
+	 * Prints an error message.
+	 * @param message Message to print.
+	 */
+	protected void errorMessage(String message) {
+		logger.errorMessage("AudioTrackMixer", message, 0);
+	}
+
+	/**
+	 * Prints an exception's error message followed by the stack trace.
+	 * @param e Exception containing the information to print.
+	 */
+	protected void printStackTrace(Exception e) {
+		logger.printStackTrace(e, 1);
+	}
+
+	/**
+	 * The MixerThread class mixes blocks and writes them to the output AudioTrack.
+	 * The blocking AudioTrack.write() paces it. It sleeps while no voice is playing.
+	 */
+	private class MixerThread extends SimpleThread {
+		@Override
+		public void run() {
+			boolean outputPlaying = false;
+			while(!dying()) {
+				int active = mixBlock();
+				if(active == 0) {
+					if(outputPlaying) {
+						// Let the tail of the last block play out, then go to sleep until a voice starts
+						writeBlock();
+						outputTrack.pause();
+						outputPlaying = false;
+					}
+					snooze(3600000);
+					continue;
+				}
+				if(!outputPlaying) {
+					outputTrack.play();
+					outputPlaying = true;
+				}
+				writeBlock();
+			}
+			cleanup();
+		}
+	}
+
+	/**
+	 * The Voice class holds the playback state of one source mixed by AudioTrackMixer.
+	 * Every method must be called while holding the mixer's lock.
+	 */
+	public static class Voice {
+		/** The mixer this voice belongs to */
+		final AudioTrackMixer mixer;
+
+		/** Static sound data, or null for a streaming voice */
+		byte[] staticData;
+
+		/** Number of valid bytes in staticData */
+		int staticLength;
+
+		/** Queued chunks for a streaming voice, or null for a static voice */
+		StreamBufferRing streamBuffers;
+
+		/** Number of stream chunks consumed since the last call of pollChunksConsumed() */
+		int chunksConsumed;
+
+		/** Format of the sound data */
+		int sampleRate = 44100;
+		int channels = 1;
+		int bytesPerSample = 2;
+
+		/** Play position in frames (fractional because of resampling). For streams, relative to the current chunk. */
+		double position;
+
+		/** Total number of frames played since the voice was started */
+		long framesPlayed;
+
+		/** Left and right volume (gain with pan applied) */
+		float volLeft = 1f;
+		float volRight = 1f;
+
+		/** Left and right volume reached by the end of the last rendered block (negative if none yet). Volume changes ramp from these. */
+		float rampLeft = -1f;
+		float rampRight = -1f;
+
+		/** Pitch multiplier (0.5f - 2.0f) */
+		float pitch = 1f;
+
+		/** Loop static data */
+		boolean looping;
+
+		/** Currently playing (false when paused or stopped) */
+		boolean playing;
+
+		/**
+		 * Constructor
+		 * @param mixer The mixer this voice belongs to
+		 */
+		Voice(AudioTrackMixer mixer) {
+			this.mixer = mixer;
+		}
+
+		/**
+		 * Set the format of the sound data.
+		 * @param format Audio format
+		 */
+		void setFormat(PAudioFormat format) {
+			sampleRate = (int)format.getSampleRate();
+			channels = (format.getChannels() == 1) ? 1 : 2;
+			bytesPerSample = (format.getSampleSizeInBits() == 8) ? 1 : 2;
+		}
+
+		/**
+		 * Set the gain and pan the same way ChannelAudioTrack does with setStereoVolume.
+		 * @param gain Gain (0.0f - 1.0f)
+		 * @param pan Pan (-1.0f - 1.0f)
+		 */
+		void setGainAndPan(float gain, float pan) {
+			volLeft = gain;
+			volRight = gain;
+			if(pan > 0.0f) {
+				volLeft *= (1.0f - pan);
+			} else if(pan < 0.0f) {
+				volRight *= (1.0f + pan);
+			}
+		}
+
+		/**
+		 * Rewind to the beginning.
+		 */
+		void rewind() {
+			position = 0;
+			framesPlayed = 0;
+			rampLeft = -1f;
+			rampRight = -1f;
+		}
+
+		/**
+		 * @return Number of stream chunks consumed since the last call
+		 */
+		int pollChunksConsumed() {
+			int consumed = chunksConsumed;
+			chunksConsumed = 0;
+			return consumed;
+		}
+
+		/**
+		 * @return true if there is something left to play
+		 */
+		boolean hasData() {
+			if(streamBuffers != null)
+				return !streamBuffers.isEmpty();
+			return staticData != null && (looping || (int)position < staticLength / (bytesPerSample * channels));
+		}
+
+		/**
+		 * Read one sample as a 16-bit value.
+		 * @param data Sound data
+		 * @param frame Frame index
+		 * @param channel Channel index
+		 * @return Sample value
+		 */
+		private float sample(byte[] data, int frame, int channel) {
+			int index = (frame * channels + channel) * bytesPerSample;
+			if(bytesPerSample == 1)
+				return ((data[index] & 0xFF) - 128) << 8;	// 8-bit PCM is unsigned
+			return (short)((data[index] & 0xFF) | (data[index + 1] << 8));	// 16-bit PCM is little-endian signed
+		}
+
+		/**
+		 * Add up to one block of this voice to the mix.
+		 * @param mix Stereo mix accumulator
+		 * @param frames Number of frames to mix
+		 * @param outputRate Output sample rate
+		 * @return true if the voice was playing
+		 */
+		boolean render(float[] mix, int frames, int outputRate) {
+			if(!playing) return false;
+			if(!hasData()) {
+				if(streamBuffers == null) playing = false;	// static voices stop at the end
+				return false;
+			}
+
+			double step = (double)sampleRate * pitch / outputRate;
+			int frameSize = bytesPerSample * channels;
+			int out = 0;
+
+			// Ramp the volume from where the last block ended, so gain and pan changes don't click
+			if(rampLeft < 0f) {
+				rampLeft = volLeft;
+				rampRight = volRight;
+			}
+			float gainLeft = rampLeft;
+			float gainRight = rampRight;
+			float rampStepLeft = (volLeft - rampLeft) / frames;
+			float rampStepRight = (volRight - rampRight) / frames;
+
+			while(out < frames) {
+				byte[] data;
+				int dataFrames;
+				if(streamBuffers != null) {
+					if(streamBuffers.isEmpty()) break;
+					data = streamBuffers.peekData();
+					dataFrames = streamBuffers.peekLength() / frameSize;
+				} else {
+					data = staticData;
+					dataFrames = staticLength / frameSize;
+				}
+
+				while(out < frames) {
+					int frame = (int)position;
+					if(frame >= dataFrames) break;
+					double frac = position - frame;
+					int next = (frame + 1 < dataFrames) ? frame + 1 : frame;
+
+					float left = sample(data, frame, 0);
+					left += (sample(data, next, 0) - left) * (float)frac;
+					float right = left;
+					if(channels == 2) {
+						right = sample(data, frame, 1);
+						right += (sample(data, next, 1) - right) * (float)frac;
+					}
+
+					mix[out * 2] += left * gainLeft;
+					mix[out * 2 + 1] += right * gainRight;
+					gainLeft += rampStepLeft;
+					gainRight += rampStepRight;
+					out++;
+					position += step;
+				}
+
+				int frame = (int)position;
+				if(frame < dataFrames) continue;
+
+				// Reached the end of the data
+				framesPlayed += dataFrames;
+				position -= dataFrames;
+				if(streamBuffers != null) {
+					streamBuffers.remove();
+					chunksConsumed++;
+				} else if(looping && dataFrames > 0) {
+					// wrap around
+				} else {
+					playing = false;
+					position = 0;
+					break;
+				}
+			}
+			rampLeft = (out == frames) ? volLeft : gainLeft;
+			rampRight = (out == frames) ? volRight : gainRight;
+			return true;
+		}
+
+		/**
+		 * @return Number of frames played since the voice was started
+		 */
+		long getFramesPlayed() {
+			return framesPlayed + (long)position;
+		}
+	}
+}
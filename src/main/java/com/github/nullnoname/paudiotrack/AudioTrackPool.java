@@ -0,0 +1,363 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.media.AudioTrack;
+
+/**
+ * The AudioTrackPool class keeps idle AudioTrack instances so that channels can reuse them
+ * instead of creating a new native AudioTrack each time a source lands on a channel.
+ * Tracks are keyed by sample rate, channel mask, encoding, mode and buffer size,
+ * because none of those can be changed after an AudioTrack is created.
+ * Only MODE_STREAM tracks are pooled. A static track is sized to the exact length of its clip,
+ * so an idle one would almost never match the next request; static tracks are always created fresh and released on recycle.
+ * Idle tracks still count against the platform's limit of native AudioTracks (about 32 per process on many devices),
+ * so only a few are kept by default.
+ * All methods are thread-safe.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class AudioTrackPool {
+	/**
+	 * Format of an AudioTrack
+	 */
+	private static class Key {
+		int sampleRate;
+		int channelConfig;
+		int encoding;
+		int bufferSize;
+		int mode;
+
+		Key set(int sampleRate, int channelConfig, int encoding, int bufferSize, int mode) {
+			this.sampleRate = sampleRate;
+			this.channelConfig = channelConfig;
+			this.encoding = encoding;
+			this.bufferSize = bufferSize;
+			this.mode = mode;
+			return this;
+		}
+
+		Key copy() {
+			return new Key().set(sampleRate, channelConfig, encoding, bufferSize, mode);
+		}
+
+		@Override
+		public int hashCode() {
+			int h = sampleRate;
+			h = h * 31 + channelConfig;
+			h = h * 31 + encoding;
+			h = h * 31 + bufferSize;
+			h = h * 31 + mode;
+			return h;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return sampleRate == k.sampleRate && channelConfig == k.channelConfig && encoding == k.encoding &&
+				bufferSize == k.bufferSize && mode == k.mode;
+		}
+	}
+
+	/**
+	 * Idle tracks for each format
+	 */
+	private final HashMap<Key, ArrayList<AudioTrack>> idleTracks = new HashMap<Key, ArrayList<AudioTrack>>();
+
+	/**
+	 * Format of every track created by this pool which has not been released
+	 */
+	private final HashMap<AudioTrack, Key> trackKeys = new HashMap<AudioTrack, Key>();
+
+	/**
+	 * Reused for lookups so that obtain() doesn't allocate on a hit
+	 */
+	private final Key lookupKey = new Key();
+
+	/**
+	 * Maximum number of idle tracks kept for a single format
+	 */
+	private int maxIdlePerFormat = 2;
+
+	/**
+	 * Maximum number of idle tracks kept in total
+	 */
+	private int maxIdleTotal = 6;
+
+	/**
+	 * Number of idle tracks
+	 */
+	private int idleCount = 0;
+
+	/**
+	 * Number of stream track requests served by an idle track
+	 */
+	private long hits = 0;
+
+	/**
+	 * Number of stream track requests which had to create a new track
+	 */
+	private long misses = 0;
+
+	/**
+	 * Number of tracks released because the pool was full
+	 */
+	private long evictions = 0;
+
+	/**
+	 * Get an AudioTrack of the given format, reusing an idle one if possible.
+	 * Reused tracks are stopped and flushed, and their playback rate is back to the sample rate.
+	 * Static tracks are never reused; a new one is created every time.
+	 * @param sampleRate Sample rate
+	 * @param channelConfig Channel mask (AudioFormat.CHANNEL_OUT_*)
+	 * @param encoding Encoding (AudioFormat.ENCODING_*)
+	 * @param bufferSize Buffer size in bytes
+	 * @param mode AudioTrack.MODE_STATIC or AudioTrack.MODE_STREAM
+	 * @return AudioTrack
+	 * @throws IllegalArgumentException If the AudioTrack constructor does
+	 */
+	public synchronized AudioTrack obtain(int sampleRate, int channelConfig, int encoding, int bufferSize, int mode) {
+		// Not tracked, so recycle() releases it
+		if(mode == AudioTrack.MODE_STATIC)
+			return LowLatencyProfile.newAudioTrack(sampleRate, channelConfig, encoding, bufferSize, mode);
+
+		ArrayList<AudioTrack> list = idleTracks.get(lookupKey.set(sampleRate, channelConfig, encoding, bufferSize, mode));
+		if(list != null && !list.isEmpty()) {
+			AudioTrack track = list.remove(list.size() - 1);
+			idleCount--;
+			hits++;
+			return track;
+		}
+
+		misses++;
+		AudioTrack track = LowLatencyProfile.newAudioTrack(sampleRate, channelConfig, encoding, bufferSize, mode);
+		trackKeys.put(track, lookupKey.copy());
+		return track;
+	}
+
+	/**
+	 * Create idle tracks of the given format in advance, up to the pool limits.
+	 * Nothing is created for MODE_STATIC, since static tracks aren't pooled.
+	 * @param sampleRate Sample rate
+	 * @param channelConfig Channel mask (AudioFormat.CHANNEL_OUT_*)
+	 * @param encoding Encoding (AudioFormat.ENCODING_*)
+	 * @param bufferSize Buffer size in bytes
+	 * @param mode AudioTrack.MODE_STATIC or AudioTrack.MODE_STREAM
+	 * @param count Number of tracks to create
+	 * @return Number of tracks actually created
+	 */
+	public synchronized int prewarm(int sampleRate, int channelConfig, int encoding, int bufferSize, int mode, int count) {
+		if(mode == AudioTrack.MODE_STATIC) return 0;
+
+		Key key = new Key().set(sampleRate, channelConfig, encoding, bufferSize, mode);
+		ArrayList<AudioTrack> list = getIdleList(key);
+		int created = 0;
+		while(created < count && list.size() < maxIdlePerFormat && idleCount < maxIdleTotal) {
+			AudioTrack track = LowLatencyProfile.newAudioTrack(sampleRate, channelConfig, encoding, bufferSize, mode);
+			trackKeys.put(track, key);
+			list.add(track);
+			idleCount++;
+			created++;
+		}
+		return created;
+	}
+
+	/**
+	 * Give an AudioTrack back to the pool. It is stopped and flushed and kept for reuse,
+	 * or released if the pool is full, the track is a static one, or it didn't come from this pool.
+	 * The caller must not use the track afterwards.
+	 * @param track AudioTrack
+	 */
+	public synchronized void recycle(AudioTrack track) {
+		if(track == null) return;
+
+		Key key = trackKeys.get(track);
+		boolean keep = (key != null) && (idleCount < maxIdleTotal) && (track.getState() != AudioTrack.STATE_UNINITIALIZED);
+		ArrayList<AudioTrack> list = null;
+		if(keep) {
+			list = getIdleList(key);
+			keep = list.size() < maxIdlePerFormat;
+		}
+
+		if(keep) {
+			try {
+				track.stop();
+			} catch (IllegalStateException e) {
+				// Stopping an already stopped track causes this
+			}
+			try {
+				track.flush();
+				track.setPlaybackRate(track.getSampleRate());
+			} catch (Exception e) {
+				keep = false;
+			}
+		}
+
+		if(keep) {
+			list.add(track);
+			idleCount++;
+		} else {
+			if(key != null) evictions++;
+			release(track);
+		}
+	}
+
+	/**
+	 * Release every idle track.
+	 */
+	public synchronized void clear() {
+		Iterator<ArrayList<AudioTrack>> iter = idleTracks.values().iterator();
+		while(iter.hasNext()) {
+			ArrayList<AudioTrack> list = iter.next();
+			for(int i = 0; i < list.size(); i++) {
+				release(list.get(i));
+			}
+			list.clear();
+		}
+		idleTracks.clear();
+		idleCount = 0;
+	}
+
+	/**
+	 * Release idle tracks until both limits are met again.
+	 */
+	private void trim() {
+		Iterator<ArrayList<AudioTrack>> iter = idleTracks.values().iterator();
+		while(iter.hasNext()) {
+			ArrayList<AudioTrack> list = iter.next();
+			while(!list.isEmpty() && (list.size() > maxIdlePerFormat || idleCount > maxIdleTotal)) {
+				release(list.remove(list.size() - 1));
+				idleCount--;
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * @param key Format
+	 * @return List of idle tracks for the format (created if needed)
+	 */
+	private ArrayList<AudioTrack> getIdleList(Key key) {
+		ArrayList<AudioTrack> list = idleTracks.get(key);
+		if(list == null) {
+			list = new ArrayList<AudioTrack>(maxIdlePerFormat);
+			idleTracks.put(key.copy(), list);
+		}
+		return list;
+	}
+
+	/**
+	 * Release a native AudioTrack and forget about it.
+	 * @param track AudioTrack
+	 */
+	private void release(AudioTrack track) {
+		trackKeys.remove(track);
+		try {
+			track.stop();
+		} catch (Exception e) {}
+		try {
+			track.release();
+		} catch (Exception e) {}
+	}
+
+	/**
+	 * @return Maximum number of idle tracks kept for a single format
+	 */
+	public synchronized int getMaxIdlePerFormat() {
+		return maxIdlePerFormat;
+	}
+
+	/**
+	 * Set the maximum number of idle tracks kept for a single format. 0 disables pooling.
+	 * Idle tracks over the new limit are released.
+	 * @param maxIdlePerFormat Maximum number of idle tracks kept for a single format
+	 */
+	public synchronized void setMaxIdlePerFormat(int maxIdlePerFormat) {
+		this.maxIdlePerFormat = maxIdlePerFormat;
+		trim();
+	}
+
+	/**
+	 * @return Maximum number of idle tracks kept in total
+	 */
+	public synchronized int getMaxIdleTotal() {
+		return maxIdleTotal;
+	}
+
+	/**
+	 * Set the maximum number of idle tracks kept in total. 0 disables pooling.
+	 * Idle tracks over the new limit are released.
+	 * @param maxIdleTotal Maximum number of idle tracks kept in total
+	 */
+	public synchronized void setMaxIdleTotal(int maxIdleTotal) {
+		this.maxIdleTotal = maxIdleTotal;
+		trim();
+	}
+
+	/**
+	 * @return Number of idle tracks
+	 */
+	public synchronized int getIdleCount() {
+		return idleCount;
+	}
+
+	/**
+	 * @return Number of stream track requests served by an idle track
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return Number of stream track requests which had to create a new track
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return Number of tracks released because the pool was full
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Set the hit, miss and eviction counters back to zero.
+	 */
+	public synchronized void resetStatistics() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+}
@@ -1,11 +1,14 @@
 package com.github.nullnoname.paudiotrack;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.media.AudioFormat;
-import android.media.AudioManager;
 import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.HandlerThread;
 import paulscode.sound.Channel;
 import paulscode.sound.PAudioFormat;
 import paulscode.sound.SoundBuffer;
@@ -51,6 +54,39 @@ import paulscode.sound.SoundSystemConfig;
  * @author Paul Lamb (original codes)
  */
 public class ChannelAudioTrack extends Channel {
+	/**
+	 * Raw queue overflow policy: wait until the StreamThread makes room (up to rawQueueBlockTimeout milliseconds).
+	 * Only useful when feedRawAudioData is called directly on the channel or the library from the producer's own thread:
+	 * SoundSystem.feedRawAudioData runs on the CommandThread, so waiting there holds up every other command.
+	 * The library's ByteBuffer and short[] overloads are direct too: they wait without holding SoundSystemConfig.THREAD_SYNC.
+	 */
+	public static final int RAW_OVERFLOW_BLOCK = 0;
+
+	/**
+	 * Raw queue overflow policy: queue the new data, and let the StreamThread discard the oldest data
+	 */
+	public static final int RAW_OVERFLOW_DROP_OLDEST = 1;
+
+	/**
+	 * Raw queue overflow policy: discard the new data
+	 */
+	public static final int RAW_OVERFLOW_DROP_NEWEST = 2;
+
+	/**
+	 * Raw queue overflow policy: discard the new data and return RAW_QUEUE_FULL, so the producer can retry later
+	 */
+	public static final int RAW_OVERFLOW_BACKOFF = 3;
+
+	/**
+	 * Returned by feedRawAudioData when the data was rejected under RAW_OVERFLOW_BACKOFF
+	 */
+	public static final int RAW_QUEUE_FULL = -2;
+
+	/**
+	 * Smallest number of slots of a stream queue, so small raw audio chunks can fill up to the raw queue limit
+	 */
+	static final int MIN_STREAM_QUEUE_SLOTS = 32;
+
 	/**
 	 * Default stream buffer size (0 to set automatically)
 	 */
@@ -61,6 +97,81 @@ public class ChannelAudioTrack extends Channel {
 	 */
 	private static int defaultStreamBufferSizeMultiplier = 4;
 
+	/**
+	 * Pool of idle AudioTracks shared by every channel
+	 */
+	private static final AudioTrackPool audioTrackPool = new AudioTrackPool();
+
+	/**
+	 * Smallest change of volume or pitch that is worth sending to the AudioTrack
+	 */
+	private static float controlEpsilon = 0.002f;
+
+	/**
+	 * Largest amount of raw audio data queued per stream in bytes (0 for no limit)
+	 */
+	private static int rawQueueMaxBytes = 0;
+
+	/**
+	 * Largest amount of raw audio data queued per stream in milliseconds (0 for no limit)
+	 */
+	private static int rawQueueMaxMillis = 0;
+
+	/**
+	 * What feedRawAudioData does when the raw queue is over the limit
+	 */
+	private static int rawOverflowPolicy = RAW_OVERFLOW_BLOCK;
+
+	/**
+	 * Longest time feedRawAudioData waits for room under RAW_OVERFLOW_BLOCK, in milliseconds
+	 */
+	private static int rawQueueBlockTimeout = 1000;
+
+	/**
+	 * true to play raw data streams through a jitter buffer
+	 */
+	private static boolean jitterBuffer = false;
+
+	/**
+	 * Delay the jitter buffer tries to keep, in milliseconds
+	 */
+	private static int jitterTargetMillis = 60;
+
+	/**
+	 * How far the delay may stray from the target before the jitter buffer stretches or drops audio, in milliseconds
+	 */
+	private static int jitterToleranceMillis = 15;
+
+	/**
+	 * Largest part of a chunk the jitter buffer may stretch or drop at once (0.05 = 5%)
+	 */
+	private static float jitterMaxAdjust = 0.05f;
+
+	/**
+	 * true to play 16-bit streams through float PCM AudioTracks with software gain and pan, where the device supports it
+	 */
+	private static boolean floatPcm = false;
+
+	/**
+	 * true to feed streams from playback position callbacks (pull mode) instead of writes from the StreamThread
+	 */
+	private static boolean pullMode = false;
+
+	/**
+	 * Period of the pull mode callbacks in milliseconds
+	 */
+	private static int pullPeriodMillis = 20;
+
+	/**
+	 * Thread which runs the pull mode callbacks of every channel (started when first needed)
+	 */
+	private static HandlerThread pullThread;
+
+	/**
+	 * Handler of pullThread
+	 */
+	private static Handler pullHandler;
+
 	/**
 	 * The Android AudioTrack instance which is used for both normal and stream modes.
 	 */
@@ -75,13 +186,113 @@ public class ChannelAudioTrack extends Channel {
 
 	// STREAMING SOURCE VARRIABLES:
 	/**
-	 * List of paulscode.sound.SoundBuffer, used to queue chunks of sound data to be streamed.
+	 * Ring of reusable byte slabs, used to queue chunks of sound data to be streamed.
+	 */
+	protected StreamBufferRing streamBuffers;
+	/**
+	 * Keeps track of which chunks written to the AudioTrack have finished playing.
 	 */
-	private List<SoundBuffer> streamBuffers;
+	private StreamPlaybackTracker playbackTracker;
+	/**
+	 * Size of the AudioTrack's stream buffer in frames.
+	 */
+	private int streamBufferFrames = 0;
 	/**
 	 * Number of queued stream-buffers that have finished being processed.
 	 */
 	private int processed = 0;
+	/**
+	 * Size of the last chunk given to feedRawAudioData (0 if this isn't a raw data stream).
+	 */
+	protected volatile int lastRawChunkLength = 0;
+	/**
+	 * Number of raw audio chunks discarded because the raw queue was over the limit.
+	 */
+	protected final AtomicLong rawChunksDropped = new AtomicLong();
+	/**
+	 * true while the jitter buffer is playing, false while it is (re)filling up to the target delay.
+	 */
+	private boolean jitterPlaying = false;
+	/**
+	 * Delay of the jitter buffer (queued frames + frames in the AudioTrack) when it last wrote a chunk.
+	 */
+	private volatile long jitterDelayFrames = 0;
+	/**
+	 * Number of times the jitter buffer ran dry because the data came too late.
+	 */
+	private volatile int jitterLateCount = 0;
+	/**
+	 * Number of chunks the jitter buffer had to shorten because the data came too early.
+	 */
+	private volatile int jitterEarlyCount = 0;
+	/**
+	 * Scratch array for chunks the jitter buffer stretches or shortens.
+	 */
+	private byte[] jitterScratch;
+
+	/**
+	 * true if the stream's AudioTrack is a stereo float PCM one, and gain and pan are applied in software.
+	 */
+	private boolean floatOutput = false;
+	/**
+	 * Writes float PCM to the AudioTrack (only used when floatOutput is true).
+	 */
+	private FloatPcmWriter floatWriter;
+	/**
+	 * Stereo float block written to the AudioTrack (only used when floatOutput is true).
+	 */
+	private float[] floatBuffer;
+	/**
+	 * Left volume at the end of the last software gain ramp (negative if there was none yet).
+	 */
+	private float rampLeft = -1.0f;
+	/**
+	 * Right volume at the end of the last software gain ramp (negative if there was none yet).
+	 */
+	private float rampRight = -1.0f;
+
+	/**
+	 * Adapts how far ahead this channel writes into its AudioTrack (created when first needed).
+	 */
+	private StreamBufferController bufferController;
+	/**
+	 * true if bufferController is used for the current stream.
+	 */
+	private boolean adaptiveBuffer = false;
+
+	/**
+	 * true if the current stream is in pull mode.
+	 */
+	private volatile boolean pullStream = false;
+	/**
+	 * Length of a pull mode period in frames.
+	 */
+	private int pullPeriodFrames = 0;
+	/**
+	 * Number of bytes of the oldest queued chunk which were already written in pull mode.
+	 */
+	private int pullOffset = 0;
+	/**
+	 * true when the pull mode callback ran out of queued data, so the next queued chunk has to restart it.
+	 */
+	private volatile boolean pullStarved = false;
+	/**
+	 * Number of chunks which finished playing in pull mode and weren't reported by buffersProcessed() yet.
+	 */
+	private final AtomicInteger pullFinished = new AtomicInteger();
+	/**
+	 * Serializes the pull mode callback with the threads which reset or recycle the AudioTrack.
+	 */
+	private final Object pullLock = new Object();
+
+	/**
+	 * Monitor which producers wait on when the stream queue is full, until the consumer dequeues something
+	 */
+	private final Object queueSpace = new Object();
+	/**
+	 * Receives the playback position callbacks in pull mode (created when first needed).
+	 */
+	private PullCallback pullCallback;
 
 	// END STREAMING SOURCE VARRIABLES:
 	/**
@@ -99,6 +310,11 @@ public class ChannelAudioTrack extends Channel {
 	 */
 	private float initialSampleRate = 0.0f;
 
+	/**
+	 * Frame the next play() of a normal source starts at (0 to start at the beginning).
+	 */
+	private int startFrame = 0;
+
 	/**
 	 * When toLoop is true, the assigned source is immediately replayed when the end is reached.
 	 */
@@ -107,12 +323,261 @@ public class ChannelAudioTrack extends Channel {
 	/**
 	 * Current Gain
 	 */
-	private float currentGain = 1.0f;
+	protected float currentGain = 1.0f;
 
 	/**
 	 * Current Pan
 	 */
-	private float currentPan = 0.0f;
+	protected float currentPan = 0.0f;
+
+	/**
+	 * Current Pitch (0.5f - 2.0f)
+	 */
+	private float currentPitch = 1.0f;
+
+	/**
+	 * Left volume last sent to the AudioTrack (negative if unknown)
+	 */
+	private float appliedLeft = -1.0f;
+
+	/**
+	 * Right volume last sent to the AudioTrack (negative if unknown)
+	 */
+	private float appliedRight = -1.0f;
+
+	/**
+	 * Pitch last sent to the AudioTrack (negative if unknown)
+	 */
+	private float appliedPitch = -1.0f;
+
+	/**
+	 * true if gain, pan or pitch changed since the last applyControls()
+	 */
+	private boolean controlsDirty = false;
+
+	/**
+	 * @return Smallest change of volume or pitch that is sent to the AudioTrack
+	 */
+	public static float getControlEpsilon() {
+		return controlEpsilon;
+	}
+
+	/**
+	 * Set the smallest change of volume or pitch that is sent to the AudioTrack.
+	 * Smaller changes are skipped, except when they reach silence, full volume or the original pitch.
+	 * @param controlEpsilon Smallest change (0 to send every change)
+	 */
+	public static void setControlEpsilon(float controlEpsilon) {
+		ChannelAudioTrack.controlEpsilon = controlEpsilon;
+	}
+
+	/**
+	 * @return Largest amount of raw audio data queued per stream in bytes (0 for no limit)
+	 */
+	public static int getRawQueueMaxBytes() {
+		return rawQueueMaxBytes;
+	}
+
+	/**
+	 * Set the largest amount of raw audio data queued per stream in bytes.
+	 * When both this and the millisecond limit are set, the smaller one is used.
+	 * @param rawQueueMaxBytes Largest amount in bytes (0 for no limit)
+	 */
+	public static void setRawQueueMaxBytes(int rawQueueMaxBytes) {
+		ChannelAudioTrack.rawQueueMaxBytes = rawQueueMaxBytes;
+	}
+
+	/**
+	 * @return Largest amount of raw audio data queued per stream in milliseconds (0 for no limit)
+	 */
+	public static int getRawQueueMaxMillis() {
+		return rawQueueMaxMillis;
+	}
+
+	/**
+	 * Set the largest amount of raw audio data queued per stream in milliseconds of audio.
+	 * When both this and the byte limit are set, the smaller one is used.
+	 * @param rawQueueMaxMillis Largest amount in milliseconds (0 for no limit)
+	 */
+	public static void setRawQueueMaxMillis(int rawQueueMaxMillis) {
+		ChannelAudioTrack.rawQueueMaxMillis = rawQueueMaxMillis;
+	}
+
+	/**
+	 * @return What feedRawAudioData does when the raw queue is over the limit (one of the RAW_OVERFLOW_* constants)
+	 */
+	public static int getRawOverflowPolicy() {
+		return rawOverflowPolicy;
+	}
+
+	/**
+	 * Set what feedRawAudioData does when the raw queue is over the limit.
+	 * RAW_OVERFLOW_BLOCK makes the calling thread wait, so only use it when the producer calls the channel
+	 * or the library directly; through SoundSystem.feedRawAudioData it would stall the CommandThread.
+	 * @param rawOverflowPolicy One of the RAW_OVERFLOW_* constants
+	 */
+	public static void setRawOverflowPolicy(int rawOverflowPolicy) {
+		ChannelAudioTrack.rawOverflowPolicy = rawOverflowPolicy;
+	}
+
+	/**
+	 * @return Longest time feedRawAudioData waits for room under RAW_OVERFLOW_BLOCK, in milliseconds
+	 */
+	public static int getRawQueueBlockTimeout() {
+		return rawQueueBlockTimeout;
+	}
+
+	/**
+	 * Set the longest time feedRawAudioData waits for room under RAW_OVERFLOW_BLOCK.
+	 * The data is discarded if there is still no room after that.
+	 * @param rawQueueBlockTimeout Timeout in milliseconds
+	 */
+	public static void setRawQueueBlockTimeout(int rawQueueBlockTimeout) {
+		ChannelAudioTrack.rawQueueBlockTimeout = rawQueueBlockTimeout;
+	}
+
+	/**
+	 * @return true if raw data streams are played through a jitter buffer
+	 */
+	public static boolean isJitterBuffer() {
+		return jitterBuffer;
+	}
+
+	/**
+	 * Enable or disable the jitter buffer for raw data streams.
+	 * The jitter buffer waits until the target delay is queued before it starts playing (and again after running dry),
+	 * then stretches or drops a few frames per chunk to keep the delay near the target.
+	 * It is meant for producers with irregular timing, such as network voice. The mixer mode does not use it.
+	 * @param jitterBuffer true to enable
+	 */
+	public static void setJitterBuffer(boolean jitterBuffer) {
+		ChannelAudioTrack.jitterBuffer = jitterBuffer;
+	}
+
+	/**
+	 * @return Delay the jitter buffer tries to keep, in milliseconds
+	 */
+	public static int getJitterTargetMillis() {
+		return jitterTargetMillis;
+	}
+
+	/**
+	 * Set the delay the jitter buffer tries to keep. It should be well below the raw queue limit.
+	 * @param jitterTargetMillis Target delay in milliseconds
+	 */
+	public static void setJitterTargetMillis(int jitterTargetMillis) {
+		ChannelAudioTrack.jitterTargetMillis = jitterTargetMillis;
+	}
+
+	/**
+	 * @return How far the delay may stray from the target before the jitter buffer corrects it, in milliseconds
+	 */
+	public static int getJitterToleranceMillis() {
+		return jitterToleranceMillis;
+	}
+
+	/**
+	 * Set how far the delay may stray from the target before the jitter buffer stretches or drops audio
+	 * @param jitterToleranceMillis Tolerance in milliseconds
+	 */
+	public static void setJitterToleranceMillis(int jitterToleranceMillis) {
+		ChannelAudioTrack.jitterToleranceMillis = jitterToleranceMillis;
+	}
+
+	/**
+	 * @return Largest part of a chunk the jitter buffer may stretch or drop at once
+	 */
+	public static float getJitterMaxAdjust() {
+		return jitterMaxAdjust;
+	}
+
+	/**
+	 * Set the largest part of a chunk the jitter buffer may stretch or drop at once.
+	 * Larger values converge faster but are easier to hear.
+	 * @param jitterMaxAdjust Fraction of a chunk (0.05 = 5%, at most 0.25)
+	 */
+	public static void setJitterMaxAdjust(float jitterMaxAdjust) {
+		ChannelAudioTrack.jitterMaxAdjust = Math.max(0f, Math.min(0.25f, jitterMaxAdjust));
+	}
+
+	/**
+	 * @return true if 16-bit streams are played through float PCM AudioTracks where possible
+	 */
+	public static boolean isFloatPcm() {
+		return floatPcm;
+	}
+
+	/**
+	 * Enable or disable float PCM for 16-bit streams.
+	 * When enabled (and the device supports ENCODING_PCM_FLOAT, Android 5.0 or later), stream data is converted to stereo float,
+	 * and gain and pan are applied in software as a ramp over each chunk, instead of by setStereoVolume.
+	 * Devices without float PCM keep using 16-bit AudioTracks. Normal (static) sources are not affected.
+	 * @param floatPcm true to enable
+	 */
+	public static void setFloatPcm(boolean floatPcm) {
+		ChannelAudioTrack.floatPcm = floatPcm;
+	}
+
+	/**
+	 * @return true if streams are fed from playback position callbacks
+	 */
+	public static boolean isPullMode() {
+		return pullMode;
+	}
+
+	/**
+	 * Enable or disable pull mode for streams (takes effect on the next resetStream).
+	 * In pull mode the AudioTrack calls back every period, and the callback writes queued data until the AudioTrack buffer is full again,
+	 * which is normally one period. The StreamThread still decodes and queues the data, but doesn't write to the AudioTrack or wait for it.
+	 * The jitter buffer and the adaptive buffer controller are not used in pull mode.
+	 * @param pullMode true to enable
+	 */
+	public static void setPullMode(boolean pullMode) {
+		ChannelAudioTrack.pullMode = pullMode;
+	}
+
+	/**
+	 * @return Period of the pull mode callbacks in milliseconds
+	 */
+	public static int getPullPeriodMillis() {
+		return pullPeriodMillis;
+	}
+
+	/**
+	 * Set the period of the pull mode callbacks (at most half of the stream buffer is used)
+	 * @param pullPeriodMillis Period in milliseconds
+	 */
+	public static void setPullPeriodMillis(int pullPeriodMillis) {
+		ChannelAudioTrack.pullPeriodMillis = Math.max(1, pullPeriodMillis);
+	}
+
+	/**
+	 * Get the handler which runs the pull mode callbacks, starting its thread if needed
+	 * @return Handler
+	 */
+	private static synchronized Handler getPullHandler() {
+		if(pullHandler == null) {
+			pullThread = new HandlerThread("PAudioTrackPull");
+			pullThread.setPriority(Thread.MAX_PRIORITY);
+			pullThread.start();
+			pullHandler = new Handler(pullThread.getLooper());
+		}
+		return pullHandler;
+	}
+
+	/**
+	 * Get the raw queue limit for a stream
+	 * @param bytesPerSecond Bytes per second of the stream's format (0 if unknown)
+	 * @return Limit in bytes (Integer.MAX_VALUE for no limit)
+	 */
+	static int getRawQueueLimit(float bytesPerSecond) {
+		long limit = Integer.MAX_VALUE;
+		if(rawQueueMaxBytes > 0)
+			limit = rawQueueMaxBytes;
+		if(rawQueueMaxMillis > 0 && bytesPerSecond > 0)
+			limit = Math.min(limit, (long)(rawQueueMaxMillis * bytesPerSecond / 1000f));
+		return (int)limit;
+	}
 
 	/**
 	 * @return Default stream buffer size (0 to set automatically)
@@ -144,32 +609,48 @@ public class ChannelAudioTrack extends Channel {
 		ChannelAudioTrack.defaultStreamBufferSizeMultiplier = defaultStreamBufferSizeMultiplier;
 	}
 
+	/**
+	 * @return Pool of idle AudioTracks shared by every channel. Use it to change the pool limits or read its statistics.
+	 */
+	public static AudioTrackPool getAudioTrackPool() {
+		return audioTrackPool;
+	}
+
 	public ChannelAudioTrack(int type) {
+		this(type, true);
+	}
+
+	/**
+	 * Constructor
+	 * @param type Type of channel (normal or streaming)
+	 * @param ownAudioTrack false for subclasses which play through something else than an AudioTrack of their own,
+	 * and override every method that writes to it (no playback tracker is created)
+	 */
+	protected ChannelAudioTrack(int type, boolean ownAudioTrack) {
 		super(type);
 		libraryType = LibraryAudioTrack.class;
 
-		streamBuffers = new LinkedList<SoundBuffer>();
+		// Slabs are allocated on first use, so normal channels don't pay for them.
+		// Producers and the StreamThread share the ring without locking, so it has a fixed size.
+		streamBuffers = new StreamBufferRing(Math.max(SoundSystemConfig.getNumberStreamingBuffers() * 2, MIN_STREAM_QUEUE_SLOTS), SoundSystemConfig.getStreamingBufferSize());
+		if(ownAudioTrack)
+			playbackTracker = new StreamPlaybackTracker(SoundSystemConfig.getNumberStreamingBuffers() * 2);
 	}
 
 	/**
-	 * Empties the streamBuffers list, shuts the channel down and removes
+	 * Empties the streamBuffers ring, shuts the channel down and removes
 	 * references to all instantiated objects.
 	 */
 	@Override
 	public void cleanup() {
 		close();
 		if(streamBuffers != null) {
-			SoundBuffer buf = null;
-			while(!streamBuffers.isEmpty()) {
-				buf = streamBuffers.remove(0);
-				buf.cleanup();
-				buf = null;
-			}
-			streamBuffers.clear();
+			streamBuffers.release();
 		}
 		soundBuffer = null;
 		myFormat = null;
 		streamBuffers = null;
+		playbackTracker = null;
 		super.cleanup();
 	}
 
@@ -181,6 +662,15 @@ public class ChannelAudioTrack extends Channel {
 		return (format.getChannels() == 1) ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
 	}
 
+	/**
+	 * @param format Audio format
+	 * @return Number of bytes in one frame (all channels of one sample)
+	 */
+	public static int getBytesPerFrame(PAudioFormat format) {
+		int bytesPerFrame = (format.getSampleSizeInBits() / 8) * format.getChannels();
+		return (bytesPerFrame > 0) ? bytesPerFrame : 1;
+	}
+
 	/**
 	 * Attaches the SoundBuffer to be played back for a normal source.
 	 * @param buffer SoundBuffer containing the wave data and format to attach
@@ -203,11 +693,19 @@ public class ChannelAudioTrack extends Channel {
 		if(errorCheck(buffer.audioFormat == null, "Buffer missing format information in method " + "'attachBuffer'"))
 			return false;
 
+		// If the AudioTrack already holds this buffer, just rewind it instead of copying it again:
+		if(holdsStaticData(buffer)) {
+			audioStop();
+			audioTrack.reloadStaticData();
+			resetControls();
+			return true;
+		}
+
 		AudioTrack newAudioTrack = null;
 		try {
-			newAudioTrack = new AudioTrack(
-				AudioManager.STREAM_MUSIC, (int)buffer.audioFormat.getSampleRate(),
-				getChannelOutputType(buffer.audioFormat), getAudioEncoding(buffer.audioFormat), buffer.audioData.length, AudioTrack.MODE_STATIC
+			newAudioTrack = audioTrackPool.obtain(
+				(int)buffer.audioFormat.getSampleRate(), getChannelOutputType(buffer.audioFormat),
+				getAudioEncoding(buffer.audioFormat), buffer.audioData.length, AudioTrack.MODE_STATIC
 			);
 		} catch (Exception e) {
 			errorMessage("Unable to create AudioTrack in method 'attachBuffer'");
@@ -218,12 +716,9 @@ public class ChannelAudioTrack extends Channel {
 		if(errorCheck(newAudioTrack == null, "New AudioTrack null in method 'attachBuffer'"))
 			return false;
 
-		// if there was already a clip playing on this channel, remove it now:
-		if(audioTrack != null) {
-			audioStop();
-			audioFlush();
-			audioRelease();
-		}
+		// if there was already a clip playing on this channel, give its AudioTrack back to the pool now
+		// (only once the new one exists, so a failure leaves the channel as it was):
+		audioRecycle();
 
 		// Update the clip and format varriables:
 		audioTrack = newAudioTrack;
@@ -245,6 +740,58 @@ public class ChannelAudioTrack extends Channel {
 		return true;
 	}
 
+	/**
+	 * Checks if this channel's static AudioTrack already contains the data of the specified SoundBuffer.
+	 * @param buffer SoundBuffer
+	 * @return True if attaching the buffer would not need a new upload.
+	 */
+	public boolean holdsStaticData(SoundBuffer buffer) {
+		return channelType == SoundSystemConfig.TYPE_NORMAL && buffer != null && audioTrack != null && soundBuffer == buffer;
+	}
+
+	/**
+	 * Checks if this channel is idle and could give away its static data:
+	 * nothing is playing, and the attached source (if any) isn't paused.
+	 * @return True if idle.
+	 */
+	public boolean idle() {
+		if(playing())
+			return false;
+		return attachedSource == null || !attachedSource.paused();
+	}
+
+	/**
+	 * Exchanges the static AudioTrack (and the SoundBuffer it holds) with another normal channel.
+	 * Both channels are stopped. Used to move already uploaded sound data to the channel a source was assigned to.
+	 * @param other Another normal channel
+	 * @return False if either channel isn't a normal channel.
+	 */
+	public boolean swapStaticData(ChannelAudioTrack other) {
+		if(other == null || other == this)
+			return false;
+		if(channelType != SoundSystemConfig.TYPE_NORMAL || other.channelType != SoundSystemConfig.TYPE_NORMAL)
+			return false;
+
+		audioStop();
+		other.audioStop();
+
+		AudioTrack tmpTrack = audioTrack;
+		audioTrack = other.audioTrack;
+		other.audioTrack = tmpTrack;
+
+		SoundBuffer tmpBuffer = soundBuffer;
+		soundBuffer = other.soundBuffer;
+		other.soundBuffer = tmpBuffer;
+
+		PAudioFormat tmpFormat = myFormat;
+		myFormat = other.myFormat;
+		other.myFormat = tmpFormat;
+
+		resetControls();
+		other.resetControls();
+		return true;
+	}
+
 	@Override
 	public void setAudioFormat(PAudioFormat audioFormat) {
 		resetStream(audioFormat);
@@ -261,44 +808,109 @@ public class ChannelAudioTrack extends Channel {
 			return false;
 
 		AudioTrack newAudioTrack = null;
-		try {
-			//message("format.getSampleRate():" + format.getSampleRate());
-			//message("format.getChannels():" + format.getChannels());
-			//message("format.getSampleSizeInBits():" + format.getSampleSizeInBits());
-
-			// Get the minimum buffer size
-			int minBufferSize = AudioTrack.getMinBufferSize((int)format.getSampleRate(), getChannelOutputType(format), getAudioEncoding(format));
-
-			// If streamBufferSize == 0, use minBufferSize. Otherwise use streamBufferSize as is.
-			int bufSize = (getDefaultStreamBufferSize() == 0) ? (minBufferSize*getDefaultStreamBufferSizeMultiplier()) : getDefaultStreamBufferSize();
-			message("Using stream mode with " + bufSize + " buffer size");
+		int bufSize = 0;
+		int minSize = 0;
+		int initialSize = 0;
+		boolean pull = pullMode;
+		boolean adaptive = StreamBufferController.isEnabled() && getDefaultStreamBufferSize() == 0 && !pull;
+		boolean useFloat = floatPcm && format.getSampleSizeInBits() == 16 && FloatPcmWriter.isAvailable();
+		int frameBytes = 0;
+		while(true) {
+			// Float PCM is always stereo, so pan can be applied in software
+			int channelConfig = useFloat ? AudioFormat.CHANNEL_OUT_STEREO : getChannelOutputType(format);
+			int encoding = useFloat ? FloatPcmWriter.ENCODING_PCM_FLOAT : getAudioEncoding(format);
+			frameBytes = useFloat ? FloatPcmWriter.BYTES_PER_FRAME : getBytesPerFrame(format);
+			try {
+				//message("format.getSampleRate():" + format.getSampleRate());
+				//message("format.getChannels():" + format.getChannels());
+				//message("format.getSampleSizeInBits():" + format.getSampleSizeInBits());
+
+				// Get the minimum buffer size
+				int minBufferSize = AudioTrack.getMinBufferSize((int)format.getSampleRate(), channelConfig, encoding);
+
+				// If streamBufferSize == 0, use minBufferSize (or a few native bursts under the low-latency profile).
+				// Otherwise use streamBufferSize as is (in frames of the source format).
+				if(getDefaultStreamBufferSize() != 0)
+					bufSize = getDefaultStreamBufferSize() / getBytesPerFrame(format) * frameBytes;
+				else if(LowLatencyProfile.isEnabled())
+					bufSize = LowLatencyProfile.getStreamBufferSize(minBufferSize, frameBytes);
+				else
+					bufSize = minBufferSize*getDefaultStreamBufferSizeMultiplier();
+				minSize = minBufferSize;
+				initialSize = bufSize;
+				// The adaptive controller needs room to grow, and starts from the usual size
+				if(adaptive)
+					bufSize = Math.max(bufSize, minBufferSize * StreamBufferController.getMaxMultiplier());
+				message("Using stream mode with " + bufSize + " buffer size" + (useFloat ? " (float)" : "") + (adaptive ? " (adaptive, starting at " + initialSize + ")" : "") + (pull ? " (pull mode)" : ""));
+
+				newAudioTrack = audioTrackPool.obtain(
+					(int)format.getSampleRate(), channelConfig, encoding, bufSize, AudioTrack.MODE_STREAM
+				);
+			} catch (Exception e) {
+				if(!useFloat) {
+					errorMessage("Unable to create AudioTrack in method 'attachBuffer'");
+					printStackTrace(e);
+					return false;
+				}
+				newAudioTrack = null;
+			}
+			if(newAudioTrack != null || !useFloat)
+				break;
 
-			newAudioTrack = new AudioTrack(
-				AudioManager.STREAM_MUSIC, (int)format.getSampleRate(), getChannelOutputType(format), getAudioEncoding(format), bufSize, AudioTrack.MODE_STREAM
-			);
-		} catch (Exception e) {
-			errorMessage("Unable to create AudioTrack in method 'attachBuffer'");
-			printStackTrace(e);
-			return false;
+			message("Float PCM AudioTrack not available, falling back to 16-bit");
+			useFloat = false;
 		}
 
 		if(errorCheck(newAudioTrack == null, "New AudioTrack null in method 'attachBuffer'"))
 			return false;
 
-		streamBuffers.clear();
-		processed = 0;
+		synchronized(pullLock) {
+			// if there was already something playing on this channel, give its AudioTrack back to the pool:
+			boolean wasPull = pullStream;
+			audioRecycle();
 
-		// if there was already something playing on this channel, remove it:
-		if(audioTrack != null) {
-			audioStop();
-			audioFlush();
-			audioRelease();
-		}
+			streamBuffers.clear();
+			// The pull mode callback (the consumer) can't run while we hold pullLock, so free the slots now
+			if(wasPull) {
+				streamBuffers.applyClear();
+				signalQueueSpace();
+			}
+			playbackTracker.reset();
+			streamBufferFrames = bufSize / frameBytes;
+			adaptiveBuffer = adaptive;
+			if(adaptive) {
+				if(bufferController == null)
+					bufferController = new StreamBufferController();
+				bufferController.reset(minSize / frameBytes, streamBufferFrames, initialSize / frameBytes, (int)format.getSampleRate());
+			}
+			floatOutput = useFloat;
+			if(useFloat && floatWriter == null)
+				floatWriter = new FloatPcmWriter();
+			rampLeft = -1.0f;
+			rampRight = -1.0f;
+			processed = 0;
+			lastRawChunkLength = 0;
+			jitterPlaying = false;
+			jitterDelayFrames = 0;
+
+			pullStream = pull;
+			pullOffset = 0;
+			pullStarved = true;
+			pullFinished.set(0);
+			if(pull) {
+				// At least two callbacks per AudioTrack buffer, so there is always a period written ahead
+				pullPeriodFrames = Math.max(1, Math.min((int)(pullPeriodMillis * format.getSampleRate() / 1000f), streamBufferFrames / 2));
+				if(pullCallback == null)
+					pullCallback = new PullCallback();
+				newAudioTrack.setPlaybackPositionUpdateListener(pullCallback, getPullHandler());
+				newAudioTrack.setPositionNotificationPeriod(pullPeriodFrames);
+			}
 
-		// Update the clip and format varriables:
-		audioTrack = newAudioTrack;
-		myFormat = format;
-		newAudioTrack = null;
+			// Update the clip and format varriables:
+			audioTrack = newAudioTrack;
+			myFormat = format;
+			newAudioTrack = null;
+		}
 
 		resetControls();
 
@@ -315,7 +927,13 @@ public class ChannelAudioTrack extends Channel {
 		initialSampleRate = audioTrack.getPlaybackRate();
 		currentGain = 1.0f;
 		currentPan = 0.0f;
-		setAudioGainAndPan();
+		currentPitch = 1.0f;
+		appliedLeft = -1.0f;
+		appliedRight = -1.0f;
+		// The playback rate was just read from the AudioTrack, so the pitch is known
+		appliedPitch = 1.0f;
+		controlsDirty = true;
+		applyControls();
 	}
 
 	/**
@@ -344,7 +962,7 @@ public class ChannelAudioTrack extends Channel {
 			pan = 1.0f;
 		// Update the pan:
 		currentPan = pan;
-		setAudioGainAndPan();
+		controlsDirty = true;
 	}
 
 	/**
@@ -366,16 +984,39 @@ public class ChannelAudioTrack extends Channel {
 
 		// Update the gain:
 		currentGain = gain;
-		setAudioGainAndPan();
+		controlsDirty = true;
+	}
+
+	/**
+	 * Make the next play() of a normal source start from the given position instead of the beginning.
+	 * Used to bring a virtual source back onto a real channel without restarting its sound.
+	 * @param milliseconds Position in milliseconds (wrapped around the sound's length when looping)
+	 */
+	public void setStartPosition(float milliseconds) {
+		startFrame = 0;
+		if(channelType != SoundSystemConfig.TYPE_NORMAL || soundBuffer == null || soundBuffer.audioData == null || myFormat == null)
+			return;
+		int frames = soundBuffer.audioData.length / getBytesPerFrame(myFormat);
+		int frame = (int)(milliseconds * myFormat.getSampleRate() / 1000f);
+		if(frames <= 0 || frame <= 0)
+			return;
+		if(frame >= frames) {
+			if(!toLoop) return;
+			frame %= frames;
+		}
+		startFrame = frame;
 	}
 
 	/**
-	 * Set the current gain and pan to the AudioTrack
+	 * Send the gain, pan and pitch set since the last call to the AudioTrack.
+	 * setGain, setPan and setPitch only record the new values, so several changes cost at most one
+	 * setStereoVolume and one setPlaybackRate. Changes smaller than the control epsilon are skipped.
 	 */
-	private void setAudioGainAndPan() {
+	public void applyControls() {
 		// https://android.googlesource.com/platform/frameworks/base/+/refs/heads/master/core/java/android/speech/tts/BlockingAudioTrack.java#318
-		if(audioTrack == null)
+		if(audioTrack == null || !controlsDirty)
 			return;
+		controlsDirty = false;
 
 		float volLeft = currentGain;
 		float volRight = currentGain;
@@ -384,12 +1025,48 @@ public class ChannelAudioTrack extends Channel {
 		} else if (currentPan < 0.0f) {
 			volRight *= (1.0f + currentPan);
 		}
+		if(floatOutput && channelType == SoundSystemConfig.TYPE_STREAMING) {
+			// Gain and pan are applied in software by writeFloatChunk, so the AudioTrack stays at full volume
+			volLeft = 1.0f;
+			volRight = 1.0f;
+		}
+
+		if(controlChanged(appliedLeft, volLeft) || controlChanged(appliedRight, volRight)) {
+			if(audioTrack.setStereoVolume(volLeft, volRight) != AudioTrack.SUCCESS) {
+				errorMessage("Failed to set volume to " + volLeft + "," + volRight);
+				appliedLeft = -1.0f;
+				appliedRight = -1.0f;
+			} else {
+				appliedLeft = volLeft;
+				appliedRight = volRight;
+			}
+		}
 
-		if(audioTrack.setStereoVolume(volLeft, volRight) != AudioTrack.SUCCESS) {
-			errorMessage("Failed to set volume to " + volLeft + "," + volRight);
+		if(controlChanged(appliedPitch, currentPitch)) {
+			float sampleRate = currentPitch * initialSampleRate;
+			if(audioTrack.setPlaybackRate((int)sampleRate) != AudioTrack.SUCCESS) {
+				errorMessage("Failed to set pitch to " + sampleRate);
+				appliedPitch = -1.0f;
+			} else {
+				appliedPitch = currentPitch;
+			}
 		}
 	}
 
+	/**
+	 * Check if a control value is different enough from the applied one to be sent.
+	 * @param applied Value last sent (negative if unknown)
+	 * @param value New value
+	 * @return true if the new value should be sent
+	 */
+	private static boolean controlChanged(float applied, float value) {
+		if(applied < 0.0f) return true;
+		if(value == applied) return false;
+		// Always land exactly on silence, full volume and the original pitch
+		if(value == 0.0f || value == 1.0f) return true;
+		return Math.abs(value - applied) >= controlEpsilon;
+	}
+
 	/**
 	 * Changes the pitch to the specified value.
 	 * @param p Float value between 0.5f and 2.0f.
@@ -399,20 +1076,17 @@ public class ChannelAudioTrack extends Channel {
 		if(audioTrack == null) {
 			return;
 		}
-		float sampleRate = p;
+		float pitch = p;
 
 		// make sure the value is valid (between 0.5f and 2.0f)
-		if(sampleRate < 0.5f)
-			sampleRate = 0.5f;
-		if(sampleRate > 2.0f)
-			sampleRate = 2.0f;
-
-		sampleRate = sampleRate * initialSampleRate;
+		if(pitch < 0.5f)
+			pitch = 0.5f;
+		if(pitch > 2.0f)
+			pitch = 2.0f;
 
 		// Update the pitch:
-		if(audioTrack.setPlaybackRate((int)sampleRate) != AudioTrack.SUCCESS) {
-			errorMessage("Failed to set pitch to " + sampleRate);
-		}
+		currentPitch = pitch;
+		controlsDirty = true;
 	}
 
 	/**
@@ -443,14 +1117,19 @@ public class ChannelAudioTrack extends Channel {
 		if(errorCheck(preLoad == null, "Missing sound-bytes in method 'preLoadBuffers'."))
 			return false;
 
+		// In pull mode the callback writes everything, starting with the first stream buffer:
+		if(pullStream)
+			enqueueStreamBufferOrPump(preLoad);
+
 		// If we are using more than one stream buffer, pre-load the
 		// remaining ones now:
 		while(!bufferList.isEmpty()) {
-			streamBuffers.add(new SoundBuffer(bufferList.remove(0), myFormat));
+			enqueueStreamBufferOrPump(bufferList.remove(0));
 		}
 
 		// Pre-load the first stream buffer into the dataline:
-		audioTrack.write(preLoad, 0, preLoad.length);
+		if(!pullStream)
+			writeStreamChunk(preLoad, preLoad.length);
 
 		processed = 0;
 		return true;
@@ -476,7 +1155,7 @@ public class ChannelAudioTrack extends Channel {
 			return false;
 
 		// Queue a new buffer:
-		streamBuffers.add(new SoundBuffer(buffer, myFormat));
+		enqueueStreamBufferOrPump(buffer);
 
 		// Dequeue a buffer and process it:
 		processBuffer();
@@ -504,21 +1183,23 @@ public class ChannelAudioTrack extends Channel {
 		if(streamBuffers == null || streamBuffers.isEmpty())
 			return false;
 
-		// Dequeue a buffer and feed it to the SourceDataLine:
-		SoundBuffer nextBuffer = streamBuffers.remove(0);
+		// In pull mode only the callback writes to the AudioTrack
+		if(pullStream)
+			return true;
 
-		audioTrack.write(nextBuffer.audioData, 0, nextBuffer.audioData.length);
+		// Feed the oldest buffer to the AudioTrack, then recycle its slab:
+		writeStreamChunk(streamBuffers.peekData(), streamBuffers.peekLength());
+		streamBuffers.remove();
 		if(!playing())
 			audioPlay();
-		nextBuffer.cleanup();
-		nextBuffer = null;
 		return true;
 	}
 
 	/**
 	 * Feeds raw data to the stream.
 	 * @param buffer Buffer containing raw audio data to stream.
-	 * @return Number of prior buffers that have been processed, or -1 if error.
+	 * @return Number of prior buffers that have been processed, -1 if error,
+	 * or RAW_QUEUE_FULL if the data was rejected under RAW_OVERFLOW_BACKOFF.
 	 */
 	@Override
 	public int feedRawAudioData(byte[] buffer) {
@@ -529,9 +1210,454 @@ public class ChannelAudioTrack extends Channel {
 		if(errorCheck(streamBuffers == null, "StreamBuffers queue null in method 'feedRawAudioData'."))
 			return -1;
 
-		streamBuffers.add(new SoundBuffer(buffer, myFormat));
+		if(buffer != null && !enqueueRawAudioData(buffer, 0, buffer.length))
+			return RAW_QUEUE_FULL;
+
+		// Don't touch the AudioTrack from the producer's thread, just report what the StreamThread saw last
+		return getFinishedChunks();
+	}
+
+	/**
+	 * Feeds raw data to the stream from a ByteBuffer (preferably a direct one).
+	 * The bytes must already be in the stream's format and in native (little-endian) order; they are copied into the
+	 * stream queue in one bulk copy, without an intermediate array. The buffer's position is moved to its limit,
+	 * unless RAW_QUEUE_FULL is returned.
+	 * @param buffer Buffer containing raw audio data to stream, from its position to its limit.
+	 * @return Number of prior buffers that have been processed, -1 if error,
+	 * or RAW_QUEUE_FULL if the data was rejected under RAW_OVERFLOW_BACKOFF.
+	 */
+	public int feedRawAudioData(ByteBuffer buffer) {
+		// Stream buffers can only be queued for streaming sources:
+		if(errorCheck(channelType != SoundSystemConfig.TYPE_STREAMING, "Raw audio data can only be processed by streaming sources."))
+			return -1;
+
+		if(errorCheck(streamBuffers == null, "StreamBuffers queue null in method 'feedRawAudioData'."))
+			return -1;
+
+		if(buffer != null) {
+			if(!enqueueRawAudioData(buffer, 0, buffer.remaining()))
+				return RAW_QUEUE_FULL;
+			buffer.position(buffer.limit());
+		}
+
+		return getFinishedChunks();
+	}
+
+	/**
+	 * Feeds raw 16-bit samples to the stream. Samples are native values, so decoders don't have to byte-swap them.
+	 * @param samples Array containing the samples to stream (interleaved if stereo).
+	 * @param offset Offset of the first sample in the array
+	 * @param count Number of samples
+	 * @return Number of prior buffers that have been processed, -1 if error,
+	 * or RAW_QUEUE_FULL if the data was rejected under RAW_OVERFLOW_BACKOFF.
+	 */
+	public int feedRawAudioData(short[] samples, int offset, int count) {
+		// Stream buffers can only be queued for streaming sources:
+		if(errorCheck(channelType != SoundSystemConfig.TYPE_STREAMING, "Raw audio data can only be processed by streaming sources."))
+			return -1;
+
+		if(errorCheck(streamBuffers == null, "StreamBuffers queue null in method 'feedRawAudioData'."))
+			return -1;
+
+		PAudioFormat format = myFormat;
+		if(errorCheck(format != null && format.getSampleSizeInBits() != 16, "16-bit samples fed to a stream which isn't 16-bit in method 'feedRawAudioData'."))
+			return -1;
+
+		if(samples != null && !enqueueRawAudioData(samples, offset, count * 2))
+			return RAW_QUEUE_FULL;
+
+		return getFinishedChunks();
+	}
+
+	/**
+	 * @return Number of chunks which finished playing and weren't reported by buffersProcessed() yet
+	 */
+	private int getFinishedChunks() {
+		if(pullStream)
+			return pullFinished.get();
+		return playbackTracker.peekFinished();
+	}
+
+	/**
+	 * Writes a chunk of stream data to the AudioTrack and remembers where it ends,
+	 * so buffersProcessed() can tell when it has finished playing.
+	 * @param data Sound data
+	 * @param length Number of bytes to write
+	 */
+	private void writeStreamChunk(byte[] data, int length) {
+		writeStreamChunk(data, 0, length, true);
+	}
+
+	/**
+	 * Writes a chunk of stream data, or part of it, to the AudioTrack.
+	 * @param data Sound data
+	 * @param offset Offset of the first byte to write
+	 * @param length Number of bytes to write
+	 * @param endOfChunk true if this is the last part of the chunk
+	 */
+	private void writeStreamChunk(byte[] data, int offset, int length, boolean endOfChunk) {
+		long start = adaptiveBuffer ? System.nanoTime() : 0;
+		if(floatOutput) {
+			writeFloatChunk(data, offset, length, endOfChunk);
+		} else {
+			int written = audioTrack.write(data, offset, length);
+			if(written > 0)
+				recordWritten(written / getBytesPerFrame(myFormat), endOfChunk);
+		}
+		if(adaptiveBuffer)
+			bufferController.writeFinished(System.nanoTime() - start);
+	}
+
+	/**
+	 * Converts a chunk of 16-bit stream data to stereo float and writes it to the AudioTrack.
+	 * Gain and pan are applied as a linear ramp from the values of the previous chunk to the current ones,
+	 * so changes don't click and don't need a setStereoVolume call.
+	 * @param data Sound data
+	 * @param offset Offset of the first byte to write
+	 * @param length Number of bytes to write
+	 * @param endOfChunk true if this is the last part of the chunk
+	 */
+	private void writeFloatChunk(byte[] data, int offset, int length, boolean endOfChunk) {
+		int frames = length / getBytesPerFrame(myFormat);
+		if(frames <= 0)
+			return;
+		if(floatBuffer == null || floatBuffer.length < frames * 2)
+			floatBuffer = new float[frames * 2];
+
+		float volLeft = currentGain;
+		float volRight = currentGain;
+		float pan = currentPan;
+		if(pan > 0.0f) {
+			volLeft *= (1.0f - pan);
+		} else if(pan < 0.0f) {
+			volRight *= (1.0f + pan);
+		}
+		if(rampLeft < 0.0f) {
+			rampLeft = volLeft;
+			rampRight = volRight;
+		}
+
+		FloatPcmWriter.toStereoFloat(data, offset, frames, myFormat.getChannels(), floatBuffer, rampLeft, rampRight, volLeft, volRight);
+		rampLeft = volLeft;
+		rampRight = volRight;
+
+		int written = floatWriter.write(audioTrack, floatBuffer, frames * 2);
+		if(written > 0)
+			recordWritten(written / 2, endOfChunk);
+	}
+
+	/**
+	 * Tells playbackTracker about frames which were just written
+	 * @param frames Number of frames written
+	 * @param endOfChunk true if they were the last part of a chunk
+	 */
+	private void recordWritten(int frames, boolean endOfChunk) {
+		if(endOfChunk)
+			playbackTracker.chunkWritten(frames);
+		else
+			playbackTracker.partWritten(frames);
+	}
+
+	/**
+	 * Queues a chunk of raw audio data from a producer thread, applying the raw queue limit and overflow policy.
+	 * Under RAW_OVERFLOW_DROP_OLDEST the chunk is queued anyway if there is a free slot,
+	 * and buffersProcessed() discards the oldest data from the StreamThread, since only the consumer may dequeue.
+	 * @param data Chunk of sound data (byte[], short[] or ByteBuffer)
+	 * @param offset Offset in the array, in elements (ignored for a ByteBuffer)
+	 * @param length Length of the chunk in bytes
+	 * @return false if the chunk was rejected under RAW_OVERFLOW_BACKOFF
+	 */
+	private boolean enqueueRawAudioData(Object data, int offset, int length) {
+		lastRawChunkLength = length;
+		int policy = rawOverflowPolicy;
+		int limit = getRawQueueLimit(getBytesPerSecond());
+		long deadline = 0;
+
+		while(true) {
+			int queued = streamBuffers.queuedBytes();
+			boolean overLimit = (queued > 0) && ((long)queued + length > limit);
+			if((!overLimit || policy == RAW_OVERFLOW_DROP_OLDEST) && offerRawAudioData(data, offset, length)) {
+				restartStarvedPull();
+				return true;
+			}
+
+			switch(policy) {
+				case RAW_OVERFLOW_BACKOFF:
+					return false;
+				case RAW_OVERFLOW_DROP_OLDEST:
+					// Every slot is taken, the StreamThread hasn't caught up yet
+				case RAW_OVERFLOW_DROP_NEWEST:
+					rawChunksDropped.incrementAndGet();
+					return true;
+				default:
+					long now = System.currentTimeMillis();
+					if(deadline == 0) {
+						deadline = now + rawQueueBlockTimeout;
+					} else if(now >= deadline) {
+						rawChunkDropped();
+						return true;
+					}
+					try {
+						awaitQueueSpace(length, limit, deadline - now);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						rawChunksDropped.incrementAndGet();
+						return true;
+					}
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Counts a raw audio chunk dropped because the queue stayed full for too long under RAW_OVERFLOW_BLOCK.
+	 */
+	void rawChunkDropped() {
+		rawChunksDropped.incrementAndGet();
+		errorMessage("Stream queue full, raw audio data dropped");
+	}
+
+	/**
+	 * Used by callers which queue raw data while holding a lock they must not wait with:
+	 * they check for room under the lock and wait with {@link #awaitRawQueueSpace(int, long)} outside of it.
+	 * @param length Length of the chunk in bytes
+	 * @return true if a chunk can be queued now under RAW_OVERFLOW_BLOCK without waiting
+	 */
+	boolean hasRawQueueSpace(int length) {
+		return streamBuffers == null || hasQueueSpace(length, getRawQueueLimit(getBytesPerSecond()));
+	}
+
+	/**
+	 * Waits until the consumer makes room for a chunk in the stream queue, or the timeout expires.
+	 * @param length Length of the chunk in bytes
+	 * @param timeout Longest time to wait in milliseconds
+	 * @return false if the thread was interrupted (the interrupt flag is set again)
+	 */
+	boolean awaitRawQueueSpace(int length, long timeout) {
+		if(streamBuffers == null)
+			return true;
+		try {
+			awaitQueueSpace(length, getRawQueueLimit(getBytesPerSecond()), timeout);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Waits until the consumer makes room for a chunk in the stream queue, or the timeout expires.
+	 * The room is checked while holding the monitor, so a signal sent after the check is never missed.
+	 * @param length Length of the chunk in bytes
+	 * @param limit Raw queue limit in bytes
+	 * @param timeout Longest time to wait in milliseconds
+	 * @throws InterruptedException If the thread was interrupted while waiting
+	 */
+	private void awaitQueueSpace(int length, int limit, long timeout) throws InterruptedException {
+		synchronized(queueSpace) {
+			if(!hasQueueSpace(length, limit))
+				queueSpace.wait(Math.max(1, timeout));
+		}
+	}
+
+	/**
+	 * @param length Length of the chunk in bytes
+	 * @param limit Raw queue limit in bytes
+	 * @return true if the chunk can be queued now
+	 */
+	private boolean hasQueueSpace(int length, int limit) {
+		if(streamBuffers.isFull())
+			return false;
+		int queued = streamBuffers.queuedBytes();
+		return (queued == 0) || ((long)queued + length <= limit);
+	}
+
+	/**
+	 * Wakes up the producers waiting for room in the stream queue. Called by the consumer after dequeueing chunks.
+	 */
+	private void signalQueueSpace() {
+		synchronized(queueSpace) {
+			queueSpace.notifyAll();
+		}
+	}
+
+	/**
+	 * Copies a chunk of raw audio data to the tail of the streamBuffers ring
+	 * @param data Chunk of sound data (byte[], short[] or ByteBuffer)
+	 * @param offset Offset in the array, in elements (ignored for a ByteBuffer)
+	 * @param length Length of the chunk in bytes
+	 * @return false if the ring is full
+	 */
+	private boolean offerRawAudioData(Object data, int offset, int length) {
+		if(data instanceof byte[])
+			return streamBuffers.offer((byte[])data, offset, length);
+		if(data instanceof short[])
+			return streamBuffers.offer((short[])data, offset, length / 2);
+		return streamBuffers.offer((ByteBuffer)data);
+	}
+
+	/**
+	 * Discards the oldest queued chunks while the queue is over the raw queue limit, keeping at least one.
+	 * Used under RAW_OVERFLOW_DROP_OLDEST, from the StreamThread.
+	 */
+	private void trimRawQueue() {
+		int limit = getRawQueueLimit(getBytesPerSecond());
+		while(streamBuffers.size() > 1 && streamBuffers.queuedBytes() > limit) {
+			if(!streamBuffers.remove())
+				break;
+			rawChunksDropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return Bytes per second of the current format, or 0 if unknown
+	 */
+	private float getBytesPerSecond() {
+		PAudioFormat format = myFormat;
+		if(format == null)
+			return 0;
+		return format.getSampleRate() * getBytesPerFrame(format);
+	}
+
+	/**
+	 * @return Number of bytes waiting in the stream queue (not yet written to the AudioTrack)
+	 */
+	public int getQueuedBytes() {
+		StreamBufferRing ring = streamBuffers;
+		return (ring != null) ? ring.queuedBytes() : 0;
+	}
+
+	/**
+	 * Raw audio producers can use this to pace themselves.
+	 * @return Milliseconds of audio waiting in the stream queue (not yet written to the AudioTrack)
+	 */
+	public float getQueuedMillis() {
+		float bytesPerSecond = getBytesPerSecond();
+		if(bytesPerSecond <= 0)
+			return 0;
+		return getQueuedBytes() * 1000f / bytesPerSecond;
+	}
+
+	/**
+	 * Backoff hint for raw audio producers: how long until a chunk the size of the last one fits under the raw queue limit.
+	 * @return Milliseconds to wait (0 if it fits now)
+	 */
+	public float getRawBackoffMillis() {
+		float bytesPerSecond = getBytesPerSecond();
+		if(bytesPerSecond <= 0)
+			return 0;
+		long over = (long)getQueuedBytes() + lastRawChunkLength - getRawQueueLimit(bytesPerSecond);
+		if(over <= 0)
+			return 0;
+		return over * 1000f / bytesPerSecond;
+	}
+
+	/**
+	 * @return Number of raw audio chunks discarded because the raw queue was over the limit
+	 */
+	public long getRawChunksDropped() {
+		return rawChunksDropped.get();
+	}
+
+	/**
+	 * Copies a chunk of stream data into the next free slab of the streamBuffers ring, from the StreamThread.
+	 * The StreamThread is also the consumer, so when the ring is full it makes room by writing the oldest chunk
+	 * to the AudioTrack (which may block until the AudioTrack has room, like a direct write would).
+	 * In pull mode the callback is the consumer, so the StreamThread waits until it signals free room (up to rawQueueBlockTimeout).
+	 * @param buffer Chunk of sound data
+	 */
+	private void enqueueStreamBufferOrPump(byte[] buffer) {
+		if(buffer == null)
+			return;
+		long deadline = 0;
+		while(!streamBuffers.offer(buffer, 0, buffer.length)) {
+			if(pullStream) {
+				long now = System.currentTimeMillis();
+				if(deadline == 0) {
+					deadline = now + rawQueueBlockTimeout;
+				} else if(now >= deadline) {
+					errorMessage("Stream queue full, stream data dropped");
+					return;
+				}
+				try {
+					awaitQueueSpace(buffer.length, Integer.MAX_VALUE, deadline - now);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			} else if(!processBuffer()) {
+				errorMessage("Stream queue full, stream data dropped");
+				return;
+			}
+		}
+		restartStarvedPull();
+	}
+
+	/**
+	 * Restarts the pull mode callback if it ran out of data. Called after queueing a chunk.
+	 * Once the AudioTrack has played everything it stops calling back, so the callback is posted directly.
+	 */
+	private void restartStarvedPull() {
+		if(pullStream && pullStarved) {
+			pullStarved = false;
+			getPullHandler().post(pullCallback);
+		}
+	}
+
+	/**
+	 * Writes queued data to the AudioTrack until its buffer is full (normally one period). Run from the pull mode callback thread.
+	 * @param track AudioTrack which called back (ignored unless it is still this channel's AudioTrack), or null for the current one
+	 */
+	private void pullStreamData(AudioTrack track) {
+		synchronized(pullLock) {
+			if(track == null)
+				track = audioTrack;
+			if(!pullStream || track == null || track != audioTrack || streamBuffers == null)
+				return;
+
+			playbackTracker.update(track.getPlaybackHeadPosition());
+			streamBuffers.applyClear();
+
+			// A partly written chunk is never trimmed
+			if(pullOffset == 0 && lastRawChunkLength > 0 && rawOverflowPolicy == RAW_OVERFLOW_DROP_OLDEST)
+				trimRawQueue();
+
+			int bytesPerFrame = getBytesPerFrame(myFormat);
+			long room = streamBufferFrames - playbackTracker.framesPending();
+			boolean wrote = false;
+			while(room > 0) {
+				if(streamBuffers.isEmpty()) {
+					// Set the flag before looking again, so a chunk queued in the meantime is either seen here or restarts the callback
+					pullStarved = true;
+					if(streamBuffers.isEmpty())
+						break;
+					pullStarved = false;
+				}
+
+				int left = streamBuffers.peekLength() - pullOffset;
+				int length = (int)Math.min(left, room * bytesPerFrame);
+				length -= length % bytesPerFrame;
+				boolean endOfChunk = (left - length < bytesPerFrame);
+				if(length > 0) {
+					writeStreamChunk(streamBuffers.peekData(), pullOffset, length, endOfChunk);
+					wrote = true;
+				}
+				if(endOfChunk) {
+					streamBuffers.remove();
+					pullOffset = 0;
+				} else {
+					pullOffset += length;
+				}
+				room -= length / bytesPerFrame;
+			}
+
+			// Start a new stream, but don't resume one which was paused
+			if(wrote && track.getPlayState() == AudioTrack.PLAYSTATE_STOPPED)
+				audioPlay();
 
-		return buffersProcessed();
+			pullFinished.addAndGet(playbackTracker.pollFinished());
+		}
+		signalQueueSpace();
 	}
 
 	/**
@@ -557,14 +1683,188 @@ public class ChannelAudioTrack extends Channel {
 			return 0;
 		}
 
-		//TODO: Does AudioTrack have an equivalent?
-		//if(sourceDataLine.available() > 0) {
-			processed = 1;
-		//}
+		// The pull mode callback does the writing, so just report what it finished
+		if(pullStream) {
+			processed = pullFinished.getAndSet(0);
+			return processed;
+		}
+
+		playbackTracker.update(audioTrack.getPlaybackHeadPosition());
+		streamBuffers.applyClear();
+
+		if(lastRawChunkLength > 0 && rawOverflowPolicy == RAW_OVERFLOW_DROP_OLDEST)
+			trimRawQueue();
+
+		// Without the controller, fill the whole AudioTrack buffer
+		int writeAhead = streamBufferFrames;
+		if(adaptiveBuffer) {
+			bufferController.update(audioTrack, playbackTracker.framesPending(), !streamBuffers.isEmpty(), playing());
+			writeAhead = bufferController.getTargetFrames();
+		}
+
+		// Keep the AudioTrack topped up with queued chunks which fit without blocking.
+		// A chunk is always written when the AudioTrack has nothing left to play, so the stream can't stall.
+		int bytesPerFrame = getBytesPerFrame(myFormat);
+		if(jitterBuffer && lastRawChunkLength > 0) {
+			processJitterBuffer(bytesPerFrame);
+		} else while(!streamBuffers.isEmpty()) {
+			long pending = playbackTracker.framesPending();
+			if(pending > 0 && pending + (streamBuffers.peekLength() / bytesPerFrame) > writeAhead)
+				break;
+			if(!processBuffer())
+				break;
+		}
+
+		processed = playbackTracker.pollFinished();
+		signalQueueSpace();
 
 		return processed;
 	}
 
+	/**
+	 * Feeds queued raw data to the AudioTrack through the jitter buffer. Run from the StreamThread.
+	 * Only about half of the target delay is written to the AudioTrack, the rest stays in the queue,
+	 * where the delay can still be corrected before it is written.
+	 * @param bytesPerFrame Bytes per frame of the stream
+	 */
+	private void processJitterBuffer(int bytesPerFrame) {
+		float framesPerMilli = myFormat.getSampleRate() / 1000f;
+		long target = Math.max(1, (long)(jitterTargetMillis * framesPerMilli));
+		long tolerance = (long)(jitterToleranceMillis * framesPerMilli);
+		long queued = streamBuffers.queuedBytes() / bytesPerFrame;
+		long pending = playbackTracker.framesPending();
+
+		if(pending == 0) {
+			if(jitterPlaying) {
+				// Ran dry: the data came late, so fill up to the target delay again before playing
+				jitterPlaying = false;
+				jitterLateCount++;
+			}
+			if(queued < target) {
+				jitterDelayFrames = queued;
+				return;
+			}
+		}
+
+		while(!streamBuffers.isEmpty()) {
+			int chunkFrames = streamBuffers.peekLength() / bytesPerFrame;
+			if(pending > 0 && (pending >= target / 2 || pending + chunkFrames > streamBufferFrames))
+				break;
+
+			long delay = pending + queued;
+			int adjust = 0;
+			if(delay > target + tolerance) {
+				adjust = -(int)Math.min(delay - target, (long)(chunkFrames * jitterMaxAdjust));
+				if(adjust < 0) jitterEarlyCount++;
+			} else if(delay < target - tolerance) {
+				adjust = (int)Math.min(target - delay, (long)(chunkFrames * jitterMaxAdjust));
+			}
+			jitterDelayFrames = delay;
+
+			int written = writeAdjustedChunk(streamBuffers.peekData(), chunkFrames, bytesPerFrame, adjust);
+			streamBuffers.remove();
+			queued -= chunkFrames;
+			pending += written;
+			jitterPlaying = true;
+			if(!playing())
+				audioPlay();
+		}
+	}
+
+	/**
+	 * Writes a chunk of stream data to the AudioTrack, with a few evenly spaced frames repeated or skipped.
+	 * @param data Sound data
+	 * @param frames Number of frames in the chunk
+	 * @param bytesPerFrame Bytes per frame
+	 * @param adjust Number of frames to add (positive) or remove (negative)
+	 * @return Number of frames written
+	 */
+	private int writeAdjustedChunk(byte[] data, int frames, int bytesPerFrame, int adjust) {
+		int count = Math.abs(adjust);
+		if(count == 0 || count * 4 > frames) {
+			writeStreamChunk(data, frames * bytesPerFrame);
+			return frames;
+		}
+
+		int outFrames = frames + adjust;
+		if(jitterScratch == null || jitterScratch.length < outFrames * bytesPerFrame)
+			jitterScratch = new byte[outFrames * bytesPerFrame];
+
+		// Split the chunk into count + 1 segments, and repeat or skip one frame between each of them
+		int segment = frames / (count + 1);
+		int src = 0;
+		int dst = 0;
+		for(int i = 1; i <= count; i++) {
+			int end = i * segment;
+			int length = (end - src) * bytesPerFrame;
+			System.arraycopy(data, src * bytesPerFrame, jitterScratch, dst, length);
+			dst += length;
+			if(adjust > 0) {
+				System.arraycopy(data, (end - 1) * bytesPerFrame, jitterScratch, dst, bytesPerFrame);
+				dst += bytesPerFrame;
+				src = end;
+			} else {
+				src = end + 1;
+			}
+		}
+		int length = (frames - src) * bytesPerFrame;
+		System.arraycopy(data, src * bytesPerFrame, jitterScratch, dst, length);
+		dst += length;
+
+		writeStreamChunk(jitterScratch, dst);
+		return dst / bytesPerFrame;
+	}
+
+	/**
+	 * @return Adaptive buffer controller of this channel, or null if the current stream doesn't use one
+	 */
+	public StreamBufferController getStreamBufferController() {
+		return adaptiveBuffer ? bufferController : null;
+	}
+
+	/**
+	 * @return How far ahead this channel currently writes into its AudioTrack, in milliseconds (the adaptive target if any)
+	 */
+	public float getStreamBufferMillis() {
+		PAudioFormat format = myFormat;
+		if(format == null || channelType != SoundSystemConfig.TYPE_STREAMING)
+			return 0;
+		int frames = adaptiveBuffer ? bufferController.getTargetFrames() : streamBufferFrames;
+		return frames * 1000f / format.getSampleRate();
+	}
+
+	/**
+	 * @return Delay of the jitter buffer in milliseconds (queued audio + audio in the AudioTrack), as of the last chunk it wrote
+	 */
+	public float getJitterDelayMillis() {
+		PAudioFormat format = myFormat;
+		if(format == null)
+			return 0;
+		return jitterDelayFrames * 1000f / format.getSampleRate();
+	}
+
+	/**
+	 * @return Number of times the jitter buffer ran dry because the data came too late
+	 */
+	public int getJitterLateCount() {
+		return jitterLateCount;
+	}
+
+	/**
+	 * @return Number of chunks the jitter buffer had to shorten because the data came too early
+	 */
+	public int getJitterEarlyCount() {
+		return jitterEarlyCount;
+	}
+
+	/**
+	 * Reset the late and early counts of the jitter buffer
+	 */
+	public void resetJitterStatistics() {
+		jitterLateCount = 0;
+		jitterEarlyCount = 0;
+	}
+
 	/**
 	 * Dequeues all previously queued data.
 	 */
@@ -579,12 +1879,24 @@ public class ChannelAudioTrack extends Channel {
 		if(errorCheck(audioTrack == null, "AudioTrack null in method 'flush'."))
 			return;
 
-		audioStop();
-		audioFlush();
-		//sourceDataLine.drain();
+		synchronized(pullLock) {
+			audioStop();
+			audioFlush();
+			//sourceDataLine.drain();
 
-		streamBuffers.clear();
-		processed = 0;
+			streamBuffers.clear();
+			// The pull mode callback (the consumer) can't run while we hold pullLock, so free the slots now
+			if(pullStream) {
+				streamBuffers.applyClear();
+				signalQueueSpace();
+			}
+			playbackTracker.reset();
+			processed = 0;
+			jitterPlaying = false;
+			pullOffset = 0;
+			pullStarved = true;
+			pullFinished.set(0);
+		}
 	}
 
 	/**
@@ -594,16 +1906,13 @@ public class ChannelAudioTrack extends Channel {
 	public void close() {
 		switch(channelType) {
 			case SoundSystemConfig.TYPE_NORMAL:
-				if(audioTrack != null) {
-					audioStop();
-					audioFlush();
-					audioRelease();
-				}
+				audioRecycle();
+				soundBuffer = null;
 				break;
 			case SoundSystemConfig.TYPE_STREAMING:
 				if(audioTrack != null) {
 					flush();
-					audioRelease();
+					audioRecycle();
 				}
 				break;
 			default:
@@ -617,6 +1926,7 @@ public class ChannelAudioTrack extends Channel {
 	 */
 	@Override
 	public void play() {
+		applyControls();
 		switch(channelType) {
 			case SoundSystemConfig.TYPE_NORMAL:
 				if(audioTrack != null) {
@@ -631,12 +1941,20 @@ public class ChannelAudioTrack extends Channel {
 					if(errorCode != AudioTrack.SUCCESS) {
 						errorMessage("Problem setting loop points (errorCode:" + errorCode + ")");
 					}
+					if(startFrame > 0) {
+						if(audioTrack.setPlaybackHeadPosition(startFrame) != AudioTrack.SUCCESS)
+							errorMessage("Problem seeking to frame " + startFrame);
+						startFrame = 0;
+					}
 					audioPlay();
 				}
 				break;
 			case SoundSystemConfig.TYPE_STREAMING:
 				if(audioTrack != null) {
 					audioPlay();
+					// The callbacks stop while the AudioTrack has nothing to play
+					if(pullStream)
+						getPullHandler().post(pullCallback);
 				}
 				break;
 			default:
@@ -663,6 +1981,10 @@ public class ChannelAudioTrack extends Channel {
 		if(audioTrack != null) {
 			audioStop();
 			if(channelType == SoundSystemConfig.TYPE_NORMAL) audioTrack.reloadStaticData();
+			else synchronized(pullLock) {
+				playbackTracker.reset();	// stop() rewinds the playback head
+				jitterPlaying = false;
+			}
 		}
 	}
 
@@ -728,10 +2050,25 @@ public class ChannelAudioTrack extends Channel {
 		if(audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING)
 			return false;
 
-		// In stream mode, check if we have something to play
+		// A static AudioTrack stays in playing state after the end of the data, so check the playback head
+		if(channelType == SoundSystemConfig.TYPE_NORMAL && !toLoop && soundBuffer != null && soundBuffer.audioData != null && myFormat != null) {
+			if(audioTrack.getPlaybackHeadPosition() >= soundBuffer.audioData.length / getBytesPerFrame(myFormat))
+				return false;
+		}
+
+		// In stream mode, check if we have something to play, either queued or still in the AudioTrack
+		// (This runs on the CommandThread too, so take local copies in case the channel is cleaned up meanwhile)
 		if(channelType == SoundSystemConfig.TYPE_STREAMING) {
-			if(streamBuffers == null || streamBuffers.isEmpty())
+			StreamBufferRing ring = streamBuffers;
+			StreamPlaybackTracker tracker = playbackTracker;
+			AudioTrack track = audioTrack;
+			if(ring == null || tracker == null || track == null)
 				return false;
+			if(ring.isEmpty()) {
+				tracker.update(track.getPlaybackHeadPosition());
+				if(tracker.framesPending() <= 0)
+					return false;
+			}
 		}
 
 		return true;
@@ -784,16 +2121,46 @@ public class ChannelAudioTrack extends Channel {
 	}
 
 	/**
-	 * Release the current channel. Report warnings when something goes wrong.
+	 * Give the current AudioTrack back to the pool (which stops, flushes and possibly releases it)
+	 * and forget about it. Report warnings when something goes wrong.
 	 */
-	private void audioRelease() {
-		if(audioTrack != null) {
-			try {
-				audioTrack.release();
-			} catch (Exception e) {
-				importantMessage("Problem during audioTrack.release()");
-				printStackTrace(e);
+	private void audioRecycle() {
+		synchronized(pullLock) {
+			if(audioTrack != null) {
+				try {
+					if(pullStream) {
+						// The next user of the AudioTrack shouldn't get our callbacks
+						audioTrack.setPlaybackPositionUpdateListener(null);
+						audioTrack.setPositionNotificationPeriod(0);
+					}
+					audioTrackPool.recycle(audioTrack);
+				} catch (Exception e) {
+					importantMessage("Problem during audioTrackPool.recycle()");
+					printStackTrace(e);
+				}
+				audioTrack = null;
 			}
+			pullStream = false;
+		}
+	}
+
+	/**
+	 * Playback position listener of a pull mode stream.
+	 * It is also posted as a Runnable to fill the AudioTrack when the stream starts or after it ran dry.
+	 */
+	private class PullCallback implements AudioTrack.OnPlaybackPositionUpdateListener, Runnable {
+		@Override
+		public void onMarkerReached(AudioTrack track) {
+		}
+
+		@Override
+		public void onPeriodicNotification(AudioTrack track) {
+			pullStreamData(track);
+		}
+
+		@Override
+		public void run() {
+			pullStreamData(null);
 		}
 	}
 }
@@ -0,0 +1,716 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import paulscode.sound.PAudioFormat;
+import paulscode.sound.SoundBuffer;
+import paulscode.sound.SoundSystemConfig;
+
+/**
+ * The ChannelMixer class is a ChannelAudioTrack which doesn't own an AudioTrack.
+ * Instead it plays its source through a voice of the shared AudioTrackMixer,
+ * which is used when LibraryAudioTrack is in mixer mode.
+ * Gain, pan and pitch are the same values SourceAudioTrack would give to a ChannelAudioTrack.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class ChannelMixer extends ChannelAudioTrack {
+	/**
+	 * The mixer that plays this channel
+	 */
+	private AudioTrackMixer mixer;
+
+	/**
+	 * Voice in the mixer
+	 */
+	private AudioTrackMixer.Voice voice;
+
+	/**
+	 * Constructor.
+	 * The stream queue, gain, pan and raw queue statistics are the ones inherited from ChannelAudioTrack,
+	 * but the queue is only touched while holding the mixer's lock, so unlike there it can grow.
+	 * @param type Type of channel (normal or streaming)
+	 * @param mixer The mixer that plays this channel
+	 */
+	public ChannelMixer(int type, AudioTrackMixer mixer) {
+		super(type, false);
+		this.mixer = mixer;
+		this.voice = mixer.newVoice();
+	}
+
+	/**
+	 * Removes the voice from the mixer and removes references to all instantiated objects.
+	 */
+	@Override
+	public void cleanup() {
+		super.cleanup();
+		if(mixer != null)
+			mixer.removeVoice(voice);
+		voice = null;
+		mixer = null;
+	}
+
+	/**
+	 * Attaches the SoundBuffer to be played back for a normal source.
+	 * The data is mixed straight from the SoundBuffer, nothing is copied.
+	 * @param buffer SoundBuffer containing the wave data and format to attach
+	 * @return False if an error occurred.
+	 */
+	@Override
+	public boolean attachBuffer(SoundBuffer buffer) {
+		// Can only attach a buffer to a normal source:
+		if(errorCheck(channelType != SoundSystemConfig.TYPE_NORMAL, "Buffers may only be attached to non-streaming " + "sources"))
+			return false;
+
+		// make sure the buffer exists:
+		if(errorCheck(buffer == null, "Buffer null in method 'attachBuffer'"))
+			return false;
+
+		// make sure the buffer exists:
+		if(errorCheck(buffer.audioData == null, "Buffer missing audio data in method " + "'attachBuffer'"))
+			return false;
+
+		// make sure there is format information about this sound buffer:
+		if(errorCheck(buffer.audioFormat == null, "Buffer missing format information in method " + "'attachBuffer'"))
+			return false;
+
+		synchronized(mixer.lock) {
+			voice.playing = false;
+			voice.streamBuffers = null;
+			voice.staticData = buffer.audioData;
+			voice.staticLength = buffer.audioData.length;
+			voice.setFormat(buffer.audioFormat);
+			voice.rewind();
+		}
+		soundBuffer = buffer;
+		resetControls();
+
+		return true;
+	}
+
+	/**
+	 * Checks if this channel's voice already plays the data of the specified SoundBuffer.
+	 * @param buffer SoundBuffer
+	 * @return True if the buffer is attached.
+	 */
+	@Override
+	public boolean holdsStaticData(SoundBuffer buffer) {
+		return channelType == SoundSystemConfig.TYPE_NORMAL && buffer != null && soundBuffer == buffer;
+	}
+
+	/**
+	 * Sets the channel up to be streamed using the specified AudioFormat.
+	 * @param format Format to use when playing the stream data.
+	 * @return False if an error occurred.
+	 */
+	@Override
+	public boolean resetStream(PAudioFormat format) {
+		// make sure a format was specified:
+		if(errorCheck(format == null, "AudioFormat null in method 'resetStream'"))
+			return false;
+
+		if(errorCheck(channelType != SoundSystemConfig.TYPE_STREAMING || streamBuffers == null, "Only streaming channels can be reset in method 'resetStream'"))
+			return false;
+
+		synchronized(mixer.lock) {
+			voice.playing = false;
+			voice.staticData = null;
+			streamBuffers.clear();
+			voice.streamBuffers = streamBuffers;
+			voice.setFormat(format);
+			voice.rewind();
+			voice.pollChunksConsumed();
+		}
+		resetControls();
+
+		return true;
+	}
+
+	/**
+	 * Resets gain, pan and pitch.
+	 */
+	private void resetControls() {
+		currentGain = 1.0f;
+		currentPan = 0.0f;
+		synchronized(mixer.lock) {
+			voice.setGainAndPan(currentGain, currentPan);
+			voice.pitch = 1.0f;
+		}
+	}
+
+	/**
+	 * Defines whether playback should loop or just play once.
+	 * @param value Loop or not.
+	 */
+	@Override
+	public void setLooping(boolean value) {
+		super.setLooping(value);
+		synchronized(mixer.lock) {
+			voice.looping = value;
+		}
+	}
+
+	/**
+	 * Changes the pan between left and right speaker to the specified value.
+	 * -1 = left speaker only.  0 = middle, both speakers.  1 = right speaker only.
+	 * @param p Pan value to use.
+	 */
+	@Override
+	public void setPan(float p) {
+		float pan = p;
+		// make sure the value is valid (between -1 and 1)
+		if(pan < -1.0f)
+			pan = -1.0f;
+		if(pan > 1.0f)
+			pan = 1.0f;
+		currentPan = pan;
+		synchronized(mixer.lock) {
+			voice.setGainAndPan(currentGain, currentPan);
+		}
+	}
+
+	/**
+	 * Changes the volume.
+	 * 0 = no volume.  1 = maximum volume (initial gain)
+	 * @param g Gain value to use.
+	 */
+	@Override
+	public void setGain(float g) {
+		// make sure the value is valid (between 0 and 1)
+		float gain = g;
+		if(gain < 0.0f)
+			gain = 0.0f;
+		if(gain > 1.0f)
+			gain = 1.0f;
+		currentGain = gain;
+		synchronized(mixer.lock) {
+			voice.setGainAndPan(currentGain, currentPan);
+		}
+	}
+
+	/**
+	 * Changes the pitch to the specified value.
+	 * @param p Float value between 0.5f and 2.0f.
+	 */
+	@Override
+	public void setPitch(float p) {
+		float pitch = p;
+
+		// make sure the value is valid (between 0.5f and 2.0f)
+		if(pitch < 0.5f)
+			pitch = 0.5f;
+		if(pitch > 2.0f)
+			pitch = 2.0f;
+
+		synchronized(mixer.lock) {
+			voice.pitch = pitch;
+		}
+	}
+
+	/**
+	 * Queues up the initial byte[] buffers of data to be streamed, and starts mixing them.
+	 * @param bufferList List of the first buffers to be played for a streaming source.
+	 * @return False if problem occurred or end of stream was reached.
+	 */
+	@Override
+	public boolean preLoadBuffers(LinkedList<byte[]> bufferList) {
+		// Stream buffers can only be queued for streaming sources:
+		if(errorCheck(channelType != SoundSystemConfig.TYPE_STREAMING, "Buffers may only be queued for streaming sources."))
+			return false;
+
+		synchronized(mixer.lock) {
+			while(!bufferList.isEmpty()) {
+				enqueueStreamBuffer(bufferList.remove(0));
+			}
+			voice.pollChunksConsumed();
+			voice.playing = true;
+		}
+		mixer.wake();
+		return true;
+	}
+
+	/**
+	 * Queues up a byte[] buffer of data to be streamed.
+	 * @param buffer The next buffer to be played for a streaming source.
+	 * @return False if an error occurred or if the channel is shutting down.
+	 */
+	@Override
+	public boolean queueBuffer(byte[] buffer) {
+		// Stream buffers can only be queued for streaming sources:
+		if(errorCheck(channelType != SoundSystemConfig.TYPE_STREAMING, "Buffers may only be queued for streaming sources."))
+			return false;
+
+		boolean wasEmpty;
+		synchronized(mixer.lock) {
+			wasEmpty = streamBuffers.isEmpty();
+			enqueueStreamBuffer(buffer);
+		}
+		// A voice whose queue ran dry may have been the last one playing, which puts the mixing thread to sleep
+		if(wasEmpty)
+			mixer.wake();
+		return true;
+	}
+
+	/**
+	 * The mixer consumes queued buffers by itself, so this only reports whether there is anything left.
+	 * @return False when no more buffers are left to process.
+	 */
+	@Override
+	public boolean processBuffer() {
+		// Stream buffers can only be queued for streaming sources:
+		if(errorCheck(channelType != SoundSystemConfig.TYPE_STREAMING, "Buffers are only processed for streaming sources."))
+			return false;
+
+		synchronized(mixer.lock) {
+			return !streamBuffers.isEmpty();
+		}
+	}
+
+	/**
+	 * Feeds raw data to the stream. Playback starts automatically.
+	 * The raw queue limit and overflow policy of ChannelAudioTrack apply.
+	 * @param buffer Buffer containing raw audio data to stream.
+	 * @return Number of prior buffers that have been processed, -1 if error,
+	 * or RAW_QUEUE_FULL if the data was rejected under RAW_OVERFLOW_BACKOFF.
+	 */
+	@Override
+	public int feedRawAudioData(byte[] buffer) {
+		// Stream buffers can only be queued for streaming sources:
+		if(errorCheck(channelType != SoundSystemConfig.TYPE_STREAMING, "Raw audio data can only be processed by streaming sources."))
+			return -1;
+
+		if(buffer == null)
+			return feedRawData(null, 0, 0);
+		return feedRawData(buffer, 0, buffer.length);
+	}
+
+	/**
+	 * Feeds raw data to the stream from a ByteBuffer. Playback starts automatically.
+	 * The bytes must already be in the stream's format and in native (little-endian) order.
+	 * The buffer's position is moved to its limit, unless RAW_QUEUE_FULL is returned.
+	 * @param buffer Buffer containing raw audio data to stream, from its position to its limit.
+	 * @return Number of prior buffers that have been processed, -1 if error,
+	 * or RAW_QUEUE_FULL if the data was rejected under RAW_OVERFLOW_BACKOFF.
+	 */
+	@Override
+	public int feedRawAudioData(ByteBuffer buffer) {
+		// Stream buffers can only be queued for streaming sources:
+		if(errorCheck(channelType != SoundSystemConfig.TYPE_STREAMING, "Raw audio data can only be processed by streaming sources."))
+			return -1;
+
+		if(buffer == null)
+			return feedRawData(null, 0, 0);
+		int result = feedRawData(buffer, 0, buffer.remaining());
+		if(result != RAW_QUEUE_FULL)
+			buffer.position(buffer.limit());
+		return result;
+	}
+
+	/**
+	 * Feeds raw 16-bit samples to the stream. Playback starts automatically.
+	 * @param samples Array containing the samples to stream (interleaved if stereo).
+	 * @param offset Offset of the first sample in the array
+	 * @param count Number of samples
+	 * @return Number of prior buffers that have been processed, -1 if error,
+	 * or RAW_QUEUE_FULL if the data was rejected under RAW_OVERFLOW_BACKOFF.
+	 */
+	@Override
+	public int feedRawAudioData(short[] samples, int offset, int count) {
+		// Stream buffers can only be queued for streaming sources:
+		if(errorCheck(channelType != SoundSystemConfig.TYPE_STREAMING, "Raw audio data can only be processed by streaming sources."))
+			return -1;
+
+		if(errorCheck(voice.bytesPerSample != 2, "16-bit samples fed to a stream which isn't 16-bit in method 'feedRawAudioData'."))
+			return -1;
+
+		if(samples == null)
+			return feedRawData(null, 0, 0);
+		return feedRawData(samples, offset, count * 2);
+	}
+
+	/**
+	 * Queues raw data, applying the raw queue limit and overflow policy, and starts playback.
+	 * @param data Chunk of sound data (byte[], short[] or ByteBuffer), or null
+	 * @param offset Offset in the array, in elements (ignored for a ByteBuffer)
+	 * @param length Length of the chunk in bytes
+	 * @return Number of prior buffers that have been processed,
+	 * or RAW_QUEUE_FULL if the data was rejected under RAW_OVERFLOW_BACKOFF.
+	 */
+	private int feedRawData(Object data, int offset, int length) {
+		if(data != null)
+			lastRawChunkLength = length;
+		int policy = getRawOverflowPolicy();
+		long deadline = 0;
+
+		while(true) {
+			int consumed;
+			boolean wasPlaying;
+			boolean wasEmpty;
+			synchronized(mixer.lock) {
+				wasEmpty = streamBuffers.isEmpty();
+				if(!offerRawAudioData(data, offset, length, policy)) {
+					if(policy == RAW_OVERFLOW_BACKOFF)
+						return RAW_QUEUE_FULL;
+					consumed = -1;
+				} else {
+					consumed = voice.chunksConsumed;
+				}
+				wasPlaying = voice.playing;
+				voice.playing = true;
+			}
+			// A voice whose queue ran dry may have been the last one playing, which puts the mixing thread to sleep
+			if(!wasPlaying || (wasEmpty && data != null))
+				mixer.wake();
+			if(consumed >= 0)
+				return consumed;
+
+			// RAW_OVERFLOW_BLOCK: let the mixer play some of the queue
+			long now = System.currentTimeMillis();
+			if(deadline == 0) {
+				deadline = now + getRawQueueBlockTimeout();
+			} else if(now >= deadline) {
+				rawChunkDropped();
+				synchronized(mixer.lock) {
+					return voice.chunksConsumed;
+				}
+			}
+			try {
+				synchronized(mixer.lock) {
+					// Checked under the lock, so the mixer's signal after rendering a block is never missed
+					if(!fitsRawQueue(length))
+						mixer.lock.wait(Math.max(1, deadline - now));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				rawChunksDropped.incrementAndGet();
+				synchronized(mixer.lock) {
+					return voice.chunksConsumed;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queues a chunk of raw audio data if it fits under the raw queue limit, or applies the overflow policy.
+	 * Must be called while holding the mixer's lock.
+	 * @param data Chunk of sound data (byte[], short[] or ByteBuffer), or null
+	 * @param offset Offset in the array, in elements (ignored for a ByteBuffer)
+	 * @param length Length of the chunk in bytes
+	 * @param policy Overflow policy
+	 * @return false if the chunk should be retried (RAW_OVERFLOW_BLOCK) or was rejected (RAW_OVERFLOW_BACKOFF)
+	 */
+	private boolean offerRawAudioData(Object data, int offset, int length, int policy) {
+		if(data == null)
+			return true;
+		if(fitsRawQueue(length)) {
+			enqueueRawData(data, offset, length);
+			return true;
+		}
+
+		int limit = getRawQueueLimit(getBytesPerSecond());
+		switch(policy) {
+			case RAW_OVERFLOW_DROP_OLDEST:
+				// The mixer is only touched under the lock, so the oldest chunks can be discarded right here
+				while(!streamBuffers.isEmpty() && (long)streamBuffers.queuedBytes() + length > limit) {
+					streamBuffers.remove();
+					voice.chunksConsumed++;
+					voice.position = 0;
+					rawChunksDropped.incrementAndGet();
+				}
+				enqueueRawData(data, offset, length);
+				return true;
+			case RAW_OVERFLOW_DROP_NEWEST:
+				rawChunksDropped.incrementAndGet();
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	@Override
+	boolean hasRawQueueSpace(int length) {
+		synchronized(mixer.lock) {
+			return fitsRawQueue(length);
+		}
+	}
+
+	@Override
+	boolean awaitRawQueueSpace(int length, long timeout) {
+		try {
+			synchronized(mixer.lock) {
+				if(!fitsRawQueue(length))
+					mixer.lock.wait(Math.max(1, timeout));
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Must be called while holding the mixer's lock.
+	 * @param length Length of the chunk in bytes
+	 * @return true if a chunk fits under the raw queue limit
+	 */
+	private boolean fitsRawQueue(int length) {
+		int limit = getRawQueueLimit(getBytesPerSecond());
+		int queued = streamBuffers.queuedBytes();
+		return (queued == 0) || ((long)queued + length <= limit);
+	}
+
+	/**
+	 * @return Bytes per second of the voice's format
+	 */
+	private float getBytesPerSecond() {
+		return (float)voice.sampleRate * voice.channels * voice.bytesPerSample;
+	}
+
+	/**
+	 * @return Number of bytes waiting in the stream queue (not yet mixed)
+	 */
+	@Override
+	public int getQueuedBytes() {
+		if(streamBuffers == null)
+			return 0;
+		synchronized(mixer.lock) {
+			return streamBuffers.queuedBytes();
+		}
+	}
+
+	/**
+	 * Raw audio producers can use this to pace themselves.
+	 * @return Milliseconds of audio waiting in the stream queue (not yet mixed)
+	 */
+	@Override
+	public float getQueuedMillis() {
+		if(streamBuffers == null)
+			return 0;
+		synchronized(mixer.lock) {
+			return streamBuffers.queuedBytes() * 1000f / getBytesPerSecond();
+		}
+	}
+
+	/**
+	 * Backoff hint for raw audio producers: how long until a chunk the size of the last one fits under the raw queue limit.
+	 * @return Milliseconds to wait (0 if it fits now)
+	 */
+	@Override
+	public float getRawBackoffMillis() {
+		if(streamBuffers == null)
+			return 0;
+		synchronized(mixer.lock) {
+			float bytesPerSecond = getBytesPerSecond();
+			long over = (long)streamBuffers.queuedBytes() + lastRawChunkLength - getRawQueueLimit(bytesPerSecond);
+			if(over <= 0)
+				return 0;
+			return over * 1000f / bytesPerSecond;
+		}
+	}
+
+	/**
+	 * Copies a chunk of stream data into the next free slab. Must be called while holding the mixer's lock.
+	 * @param buffer Chunk of sound data
+	 */
+	private void enqueueStreamBuffer(byte[] buffer) {
+		if(buffer == null)
+			return;
+		if(streamBuffers.isFull())
+			streamBuffers.grow();
+		streamBuffers.offer(buffer, 0, buffer.length);
+	}
+
+	/**
+	 * Copies a chunk of raw data into the next free slab. Must be called while holding the mixer's lock.
+	 * @param data Chunk of sound data (byte[], short[] or ByteBuffer)
+	 * @param offset Offset in the array, in elements (ignored for a ByteBuffer)
+	 * @param length Length of the chunk in bytes
+	 */
+	private void enqueueRawData(Object data, int offset, int length) {
+		if(streamBuffers.isFull())
+			streamBuffers.grow();
+		if(data instanceof byte[])
+			streamBuffers.offer((byte[])data, offset, length);
+		else if(data instanceof short[])
+			streamBuffers.offer((short[])data, offset, length / 2);
+		else
+			streamBuffers.offer((ByteBuffer)data);
+	}
+
+	/**
+	 * Returns the number of queued byte[] buffers that the mixer has finished with.
+	 * @return Number of buffers processed.
+	 */
+	@Override
+	public int buffersProcessed() {
+		// Stream buffers can only be queued for streaming sources:
+		if(errorCheck(channelType != SoundSystemConfig.TYPE_STREAMING, "Buffers may only be queued for streaming sources."))
+			return 0;
+
+		synchronized(mixer.lock) {
+			return voice.pollChunksConsumed();
+		}
+	}
+
+	/**
+	 * Dequeues all previously queued data.
+	 */
+	@Override
+	public void flush() {
+		// Only streaming sources process buffers:
+		if(channelType != SoundSystemConfig.TYPE_STREAMING)
+			return;
+
+		synchronized(mixer.lock) {
+			voice.playing = false;
+			streamBuffers.clear();
+			voice.rewind();
+			voice.pollChunksConsumed();
+		}
+	}
+
+	/**
+	 * Stops the channel and dequeues any queued data.
+	 */
+	@Override
+	public void close() {
+		if(mixer == null)
+			return;
+		synchronized(mixer.lock) {
+			voice.playing = false;
+			voice.staticData = null;
+			voice.streamBuffers = null;
+			if(streamBuffers != null)
+				streamBuffers.clear();
+			voice.rewind();
+		}
+		soundBuffer = null;
+	}
+
+	/**
+	 * Plays the currently attached normal source, opens this channel up for
+	 * streaming, or resumes playback if this channel was paused.
+	 */
+	@Override
+	public void play() {
+		synchronized(mixer.lock) {
+			if(channelType == SoundSystemConfig.TYPE_NORMAL && !voice.hasData())
+				voice.rewind();
+			voice.playing = true;
+		}
+		mixer.wake();
+	}
+
+	/**
+	 * Temporarily stops playback for this channel.
+	 */
+	@Override
+	public void pause() {
+		synchronized(mixer.lock) {
+			voice.playing = false;
+		}
+	}
+
+	/**
+	 * Stops playback for this channel and rewinds the attached source to the
+	 * beginning.
+	 */
+	@Override
+	public void stop() {
+		synchronized(mixer.lock) {
+			voice.playing = false;
+			if(channelType == SoundSystemConfig.TYPE_NORMAL)
+				voice.rewind();
+		}
+	}
+
+	/**
+	 * Rewinds the attached source to the beginning.
+	 */
+	@Override
+	public void rewind() {
+		// rewinding for streaming sources is handled elsewhere
+		if(channelType != SoundSystemConfig.TYPE_NORMAL)
+			return;
+		synchronized(mixer.lock) {
+			voice.rewind();
+		}
+	}
+
+	/**
+	 * Make the next play() of a normal source start from the given position instead of the beginning.
+	 * @param milliseconds Position in milliseconds (wrapped around the sound's length when looping)
+	 */
+	@Override
+	public void setStartPosition(float milliseconds) {
+		if(channelType != SoundSystemConfig.TYPE_NORMAL)
+			return;
+		synchronized(mixer.lock) {
+			if(voice.staticData == null || voice.sampleRate <= 0)
+				return;
+			int frames = voice.staticLength / (voice.bytesPerSample * voice.channels);
+			int frame = (int)(milliseconds * voice.sampleRate / 1000f);
+			if(frames <= 0 || frame <= 0)
+				return;
+			if(frame >= frames) {
+				if(!voice.looping) return;
+				frame %= frames;
+			}
+			voice.position = frame;
+			voice.framesPlayed = frame;
+		}
+	}
+
+	/**
+	 * Calculates the number of milliseconds since the channel began playing.
+	 * @return Milliseconds, or -1 if unable to calculate.
+	 */
+	@Override
+	public float millisecondsPlayed() {
+		synchronized(mixer.lock) {
+			if(voice.sampleRate <= 0) return -1;
+			return (voice.getFramesPlayed() / (float)voice.sampleRate) * 1000f;
+		}
+	}
+
+	/**
+	 * Used to determine if a channel is actively playing a source.
+	 * @return True if this channel is playing a source.
+	 */
+	@Override
+	public boolean playing() {
+		if(mixer == null)
+			return false;
+		synchronized(mixer.lock) {
+			return voice.playing && voice.hasData();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.lang.reflect.Method;
+
+import android.media.AudioTrack;
+
+/**
+ * The FloatPcmWriter class writes stereo float PCM to an AudioTrack created with ENCODING_PCM_FLOAT.
+ * Float PCM and AudioTrack.write(float[], int, int, int) need Android 5.0 (API 21), so the method is looked up by reflection,
+ * and callers fall back to 16-bit PCM when {@link #isAvailable()} returns false.
+ * It also has the conversion loops that apply a gain and pan ramp in software,
+ * so volume changes don't need a setStereoVolume call per change.
+ * Each instance keeps its own reusable write() arguments, but Method.invoke() still boxes the returned Integer,
+ * so each write allocates a small object (the library is built against API 16 and can't call the method directly).
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class FloatPcmWriter {
+	/**
+	 * AudioFormat.ENCODING_PCM_FLOAT (API 21)
+	 */
+	public static final int ENCODING_PCM_FLOAT = 4;
+
+	/**
+	 * Bytes in one stereo float frame
+	 */
+	public static final int BYTES_PER_FRAME = 8;
+
+	/**
+	 * AudioTrack.WRITE_BLOCKING (API 21)
+	 */
+	private static final Integer WRITE_BLOCKING = Integer.valueOf(0);
+
+	/**
+	 * Boxed zero, used as the offset
+	 */
+	private static final Integer ZERO = Integer.valueOf(0);
+
+	/**
+	 * AudioTrack.write(float[], int, int, int), or null if not available
+	 */
+	private static Method writeMethod;
+
+	/**
+	 * true once writeMethod has been looked up
+	 */
+	private static boolean checked = false;
+
+	/**
+	 * Reusable arguments of write()
+	 */
+	private final Object[] args = new Object[4];
+
+	/**
+	 * Size currently boxed in args[2]
+	 */
+	private int boxedSize = -1;
+
+	/**
+	 * @return true if this device supports float PCM AudioTracks
+	 */
+	public static synchronized boolean isAvailable() {
+		if(!checked) {
+			checked = true;
+			try {
+				writeMethod = AudioTrack.class.getMethod("write", float[].class, int.class, int.class, int.class);
+			} catch (Exception e) {
+				writeMethod = null;
+			}
+		}
+		return writeMethod != null;
+	}
+
+	/**
+	 * Constructor
+	 */
+	public FloatPcmWriter() {
+		args[1] = ZERO;
+		args[3] = WRITE_BLOCKING;
+	}
+
+	/**
+	 * Write float samples to an AudioTrack (blocking).
+	 * @param track AudioTrack created with ENCODING_PCM_FLOAT
+	 * @param data Samples
+	 * @param size Number of samples to write
+	 * @return Number of samples written, or a negative value on error
+	 */
+	public int write(AudioTrack track, float[] data, int size) {
+		if(!isAvailable())
+			return -1;
+		args[0] = data;
+		if(size != boxedSize) {
+			args[2] = Integer.valueOf(size);
+			boxedSize = size;
+		}
+		try {
+			return ((Integer)writeMethod.invoke(track, args)).intValue();
+		} catch (Exception e) {
+			return -1;
+		} finally {
+			args[0] = null;
+		}
+	}
+
+	/**
+	 * Convert 16-bit little-endian PCM to stereo float PCM (-1.0f - 1.0f), applying a volume ramp.
+	 * The left and right volumes move linearly from the start values to the end values over the block.
+	 * @param src 16-bit PCM data
+	 * @param srcOffset Offset of the first frame in src, in bytes
+	 * @param frames Number of frames to convert
+	 * @param channels Number of channels of the source (1 or 2). Mono is copied to both sides.
+	 * @param dst Stereo output (at least frames * 2 long)
+	 * @param startLeft Left volume at the first frame
+	 * @param startRight Right volume at the first frame
+	 * @param endLeft Left volume after the last frame
+	 * @param endRight Right volume after the last frame
+	 */
+	public static void toStereoFloat(byte[] src, int srcOffset, int frames, int channels, float[] dst, float startLeft, float startRight, float endLeft, float endRight) {
+		float stepLeft = (endLeft - startLeft) / frames;
+		float stepRight = (endRight - startRight) / frames;
+		float left = startLeft / 32768f;
+		float right = startRight / 32768f;
+		stepLeft /= 32768f;
+		stepRight /= 32768f;
+
+		int j = srcOffset;
+		if(channels == 1) {
+			for(int i = 0; i < frames; i++, j += 2) {
+				float sample = (short)((src[j] & 0xFF) | (src[j + 1] << 8));
+				dst[i * 2] = sample * left;
+				dst[i * 2 + 1] = sample * right;
+				left += stepLeft;
+				right += stepRight;
+			}
+		} else {
+			for(int i = 0; i < frames; i++, j += 4) {
+				dst[i * 2] = (short)((src[j] & 0xFF) | (src[j + 1] << 8)) * left;
+				dst[i * 2 + 1] = (short)((src[j + 2] & 0xFF) | (src[j + 3] << 8)) * right;
+				left += stepLeft;
+				right += stepRight;
+			}
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+/**
+ * The HandleTable class maps int handles to objects through plain arrays, so a lookup is an array index and a compare.
+ * A handle contains the slot index and a generation number, so a handle whose slot was freed and reused
+ * is recognized as stale instead of reaching the new object.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @param <T> Type of the objects
+ * @author NullNoname
+ */
+public class HandleTable<T> {
+	/** Number of bits of a handle used for the slot index */
+	private static final int INDEX_BITS = 20;
+
+	/** Mask of the slot index */
+	private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+
+	/** Mask of the generation (after shifting) */
+	private static final int GENERATION_MASK = 0x7FF;
+
+	/** Objects, one per slot (null if free) */
+	private Object[] objects;
+
+	/** Generation of each slot, bumped whenever the slot is freed */
+	private int[] generations;
+
+	/** Free slots (stack) */
+	private int[] freeSlots;
+
+	/** Number of free slots on the stack */
+	private int freeCount = 0;
+
+	/** Number of slots used so far (slots above this were never used) */
+	private int used = 0;
+
+	/** Number of objects in the table */
+	private int size = 0;
+
+	/**
+	 * Constructor
+	 */
+	public HandleTable() {
+		this(64);
+	}
+
+	/**
+	 * Constructor
+	 * @param capacity Initial number of slots
+	 */
+	public HandleTable(int capacity) {
+		if(capacity < 1) capacity = 1;
+		objects = new Object[capacity];
+		generations = new int[capacity];
+		freeSlots = new int[capacity];
+	}
+
+	/**
+	 * @return Number of objects in the table
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Add an object.
+	 * @param object Object (not null)
+	 * @return Handle of the object, or -1 if the table is full
+	 */
+	public int add(T object) {
+		int index;
+		if(freeCount > 0) {
+			index = freeSlots[--freeCount];
+		} else {
+			if(used > INDEX_MASK) return -1;
+			if(used == objects.length) grow();
+			index = used++;
+		}
+		objects[index] = object;
+		size++;
+		return (generations[index] << INDEX_BITS) | index;
+	}
+
+	/**
+	 * @param handle Handle
+	 * @return Object of the handle, or null if the handle is invalid or stale
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int handle) {
+		if(handle < 0) return null;
+		int index = handle & INDEX_MASK;
+		if(index >= used || generations[index] != (handle >>> INDEX_BITS)) return null;
+		return (T) objects[index];
+	}
+
+	/**
+	 * Remove the object of a handle. The handle (and any copy of it) becomes invalid.
+	 * @param handle Handle
+	 * @return Object which was removed, or null if the handle was invalid or stale
+	 */
+	public T remove(int handle) {
+		T object = get(handle);
+		if(object == null) return null;
+		int index = handle & INDEX_MASK;
+		objects[index] = null;
+		generations[index] = (generations[index] + 1) & GENERATION_MASK;
+		if(freeCount == freeSlots.length) {
+			int[] newFreeSlots = new int[freeSlots.length * 2];
+			System.arraycopy(freeSlots, 0, newFreeSlots, 0, freeCount);
+			freeSlots = newFreeSlots;
+		}
+		freeSlots[freeCount++] = index;
+		size--;
+		return object;
+	}
+
+	/**
+	 * Remove every object. Every handle becomes invalid.
+	 */
+	public void clear() {
+		for(int i = 0; i < used; i++) {
+			if(objects[i] != null) remove((generations[i] << INDEX_BITS) | i);
+		}
+	}
+
+	/**
+	 * @param slot Slot index (0 to {@link #slots()} - 1)
+	 * @return Handle of the object in the slot, or -1 if the slot is free
+	 */
+	public int handleAt(int slot) {
+		if(slot < 0 || slot >= used || objects[slot] == null) return -1;
+		return (generations[slot] << INDEX_BITS) | slot;
+	}
+
+	/**
+	 * @return Number of slots to go through with {@link #handleAt(int)}
+	 */
+	public int slots() {
+		return used;
+	}
+
+	/**
+	 * Double the number of slots.
+	 */
+	private void grow() {
+		int newCapacity = objects.length * 2;
+		Object[] newObjects = new Object[newCapacity];
+		int[] newGenerations = new int[newCapacity];
+		System.arraycopy(objects, 0, newObjects, 0, objects.length);
+		System.arraycopy(generations, 0, newGenerations, 0, generations.length);
+		objects = newObjects;
+		generations = newGenerations;
+	}
+}
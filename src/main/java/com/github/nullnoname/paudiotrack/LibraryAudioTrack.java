@@ -1,14 +1,26 @@
 package com.github.nullnoname.paudiotrack;
 
+import java.io.ByteArrayOutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import paulscode.sound.Channel;
 import paulscode.sound.FilenameURL;
 import paulscode.sound.ICodec;
 import paulscode.sound.Library;
+import paulscode.sound.ListenerData;
 import paulscode.sound.PAudioFormat;
 import paulscode.sound.SoundBuffer;
 import paulscode.sound.SoundSystemConfig;
@@ -56,166 +68,1280 @@ import paulscode.sound.Source;
 public class LibraryAudioTrack extends Library {
 	/**
 	 * The maximum safe size for a JavaSound clip.
+	 * Sound files which decode to more than this are played as streaming sources instead.
 	 */
 	private final int maxClipSize = 1048576;
 
+	/**
+	 * Filenames of the sounds found to be longer than maxClipSize while decoding.
+	 */
+	private final Set<String> streamOnlySounds = Collections.synchronizedSet(new HashSet<String>());
+
+	/**
+	 * When true, new LibraryAudioTrack instances mix every source in software into one shared AudioTrack.
+	 */
+	private static boolean mixerMode = false;
+
+	/**
+	 * The software mixer, or null when not in mixer mode.
+	 */
+	private AudioTrackMixer mixer = null;
+
+	/**
+	 * Decodes sounds in the background for preloadSounds().
+	 */
+	private final SoundPreloader preloader = new SoundPreloader(this);
+
+	/**
+	 * Listener side vector shared by the sources of this library, so it is only computed once per listener turn.
+	 */
+	private final AtomicReference<ListenerSide> listenerSide = new AtomicReference<ListenerSide>();
+
+	/**
+	 * Keeps decoded sounds on disk between runs (disabled unless PcmDiskCache has a default directory).
+	 */
+	private final PcmDiskCache diskCache = new PcmDiskCache();
+
+	/**
+	 * When true, sounds loaded from files are converted to 16-bit PCM at the device's native output rate.
+	 */
+	private static boolean canonicalFormat = false;
+
+	/**
+	 * Native output sample rate used by canonicalFormat (0 until queried).
+	 */
+	private volatile int canonicalSampleRate = 0;
+
+	/**
+	 * When true, normal sources that can't get a channel or are too quiet become virtual voices instead of being cut off.
+	 */
+	private static boolean virtualVoices = false;
+
+	/**
+	 * Sources with a gain below this don't hold a channel while virtual voices are on.
+	 */
+	private static float virtualGainThreshold = 0.01f;
+
+	/**
+	 * A playing source is only replaced by a louder one if the new one's gain is larger by this factor, to avoid flip-flopping.
+	 */
+	private static final float STEAL_MARGIN = 1.1f;
+
+	/**
+	 * Sorts sources from the loudest to the quietest.
+	 */
+	private static final Comparator<SourceAudioTrack> loudestFirst = new Comparator<SourceAudioTrack>() {
+		@Override
+		public int compare(SourceAudioTrack a, SourceAudioTrack b) {
+			return Float.compare(b.gain, a.gain);
+		}
+	};
+
+	/**
+	 * When true, new LibraryAudioTrack instances keep a SourceGrid so that listener updates only touch nearby sources.
+	 */
+	private static boolean spatialIndex = false;
+
+	/**
+	 * Index of source positions, or null when spatialIndex is off.
+	 */
+	private SourceGrid grid = null;
+
+	/**
+	 * Sources updated by the last listener update (only used with the spatial index).
+	 */
+	private IdentityHashMap<Source, Boolean> sourcesInRange = new IdentityHashMap<Source, Boolean>();
+
+	/**
+	 * Sources found in range by the current listener update (swapped with sourcesInRange).
+	 */
+	private IdentityHashMap<Source, Boolean> sourcesInRangeNext = new IdentityHashMap<Source, Boolean>();
+
+	/**
+	 * Scratch list of candidate sources for a listener update.
+	 */
+	private final ArrayList<Source> candidateScratch = new ArrayList<Source>();
+
+	/**
+	 * Finished temporary sources kept for quickPlay() to reuse.
+	 */
+	private final SourcePool sourcePool = new SourcePool();
+
+	/**
+	 * Sounds registered with registerSound().
+	 */
+	private final HandleTable<FilenameURL> soundHandles = new HandleTable<FilenameURL>();
+
+	/**
+	 * Sources which have a handle.
+	 */
+	private final HandleTable<SourceAudioTrack> sourceHandles = new HandleTable<SourceAudioTrack>();
+
+	/**
+	 * Number of sources created through sound handles, used to name them.
+	 */
+	private long handleSourceCount = 0;
+
+	/**
+	 * Prefix of the names of sources created through sound handles.
+	 */
+	private static final String HANDLE_SOURCE_PREFIX = "handle#";
+
+	/**
+	 * Minimum number of sources to recompute on worker threads (0 to always recompute on the calling thread).
+	 */
+	private static int parallelUpdateThreshold = 0;
+
+	/**
+	 * Batch used to recompute many sources in parallel, created when first needed.
+	 */
+	private SourceBatch batch = null;
+
+	/**
+	 * Scratch list of sources for the batch.
+	 */
+	private final ArrayList<SourceAudioTrack> batchScratch = new ArrayList<SourceAudioTrack>();
+
+	/**
+	 * Scratch list of virtual voices used by updateVirtualVoices().
+	 */
+	private final ArrayList<SourceAudioTrack> virtualScratch = new ArrayList<SourceAudioTrack>();
+
+	/**
+	 * @return true if new LibraryAudioTrack instances use the software mixer
+	 */
+	public static boolean isMixerMode() {
+		return mixerMode;
+	}
+
+	/**
+	 * Set whether new LibraryAudioTrack instances mix every source in software into one shared AudioTrack
+	 * instead of giving each channel its own AudioTrack. Must be set before the library is initialized.
+	 * @param mixerMode true to use the software mixer
+	 */
+	public static void setMixerMode(boolean mixerMode) {
+		LibraryAudioTrack.mixerMode = mixerMode;
+	}
+
+	/**
+	 * @return true if sounds loaded from files are converted to the device's native output format
+	 */
+	public static boolean isCanonicalFormat() {
+		return canonicalFormat;
+	}
+
+	/**
+	 * Set whether sounds loaded from files are converted to 16-bit PCM at the device's native output rate.
+	 * Conversion happens once at load time (before the disk cache), so AudioTrack never has to resample them while playing.
+	 * Sounds which would grow beyond the maximum clip size are left as they are.
+	 * @param canonicalFormat true to convert loaded sounds
+	 */
+	public static void setCanonicalFormat(boolean canonicalFormat) {
+		LibraryAudioTrack.canonicalFormat = canonicalFormat;
+	}
+
+	/**
+	 * @return Native output sample rate of the device
+	 */
+	private int getCanonicalSampleRate() {
+		if(canonicalSampleRate <= 0) {
+			canonicalSampleRate = LowLatencyProfile.getNativeSampleRate();
+		}
+		return canonicalSampleRate;
+	}
+
+	/**
+	 * @return true if virtual voices are on
+	 */
+	public static boolean isVirtualVoices() {
+		return virtualVoices;
+	}
+
+	/**
+	 * Set whether normal sources that can't get a channel (or whose gain is below the threshold) become virtual voices.
+	 * A virtual voice doesn't hold an AudioTrack, but keeps its playback position advancing, and the most audible
+	 * virtual voices are moved back onto real channels by updateVirtualVoices().
+	 * @param virtualVoices true to use virtual voices
+	 */
+	public static void setVirtualVoices(boolean virtualVoices) {
+		LibraryAudioTrack.virtualVoices = virtualVoices;
+	}
+
+	/**
+	 * @return Gain below which a source doesn't hold a channel while virtual voices are on
+	 */
+	public static float getVirtualGainThreshold() {
+		return virtualGainThreshold;
+	}
+
+	/**
+	 * Set the gain below which a source doesn't hold a channel while virtual voices are on.
+	 * @param virtualGainThreshold Gain (0 to only virtualize sources that can't get a channel)
+	 */
+	public static void setVirtualGainThreshold(float virtualGainThreshold) {
+		LibraryAudioTrack.virtualGainThreshold = virtualGainThreshold;
+	}
+
+	/**
+	 * @return Pool of finished temporary sources (for its settings and usage statistics)
+	 */
+	public SourcePool getSourcePool() {
+		return sourcePool;
+	}
+
+	/**
+	 * @return true if new LibraryAudioTrack instances index source positions
+	 */
+	public static boolean isSpatialIndex() {
+		return spatialIndex;
+	}
+
+	/**
+	 * Set whether new LibraryAudioTrack instances keep a grid of source positions. With the grid, listener moves,
+	 * Doppler changes and master volume changes only recompute the sources which can be heard (plus the ones which
+	 * just went out of range), instead of every source. The cell size is set with SourceGrid.setDefaultCellSize().
+	 * @param spatialIndex true to index source positions
+	 */
+	public static void setSpatialIndex(boolean spatialIndex) {
+		LibraryAudioTrack.spatialIndex = spatialIndex;
+	}
+
+	/**
+	 * @return Minimum number of sources to recompute on worker threads (0 if never)
+	 */
+	public static int getParallelUpdateThreshold() {
+		return parallelUpdateThreshold;
+	}
+
+	/**
+	 * Set the minimum number of sources a listener update must touch before gain, pan and pitch are computed
+	 * as a batch on worker threads. Smaller updates aren't worth handing off.
+	 * @param parallelUpdateThreshold Number of sources (0 to always recompute on the calling thread)
+	 */
+	public static void setParallelUpdateThreshold(int parallelUpdateThreshold) {
+		LibraryAudioTrack.parallelUpdateThreshold = parallelUpdateThreshold;
+	}
+
 	public LibraryAudioTrack() throws SoundSystemException {
 		super();
 		reverseByteOrder = reversByteOrder();
+		bufferMap = new SoundBufferCache(this);
+		if(spatialIndex) grid = new SourceGrid();
+	}
+
+	/**
+	 * Initialize LibraryAudioTrack.
+	 */
+	@Override
+	public void init() throws SoundSystemException {
+		// The mixer has to exist before the channels are created
+		if(mixerMode) {
+			mixer = new AudioTrackMixer();
+			if(!mixer.init()) {
+				importantMessage("Software mixer unavailable, using one AudioTrack per channel");
+				mixer.cleanup();
+				mixer = null;
+			}
+		}
+		super.init();
+		message("AudioTrack library initialized" + ((mixer != null) ? " in mixer mode." : "."));
+	}
+
+	/**
+	 * Checks if the AudioTrack library type is compatible.
+	 * @return True or false.
+	 */
+	public static boolean libraryCompatible()
+	{
+		try {
+			Class.forName("android.media.AudioTrack");
+		} catch (Throwable e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a new channel of the specified type (normal or streaming).  Possible
+	 * values for channel type can be found in the
+	 * {@link paulscode.sound.SoundSystemConfig SoundSystemConfig} class.
+	 * @param type Type of channel.
+	 */
+	@Override
+	protected Channel createChannel(int type) {
+		if(mixer != null)
+			return new ChannelMixer(type, mixer);
+		return new ChannelAudioTrack(type);
+	}
+
+	/**
+	 * Returns the channel to play the specified source on.
+	 * For a normal source, if the chosen channel doesn't already hold the source's SoundBuffer but another
+	 * idle channel does, the two channels exchange their AudioTracks so that the data doesn't have to be uploaded again.
+	 * @param source Source to play.
+	 * @return Channel to play on, or null if none is available.
+	 */
+	@Override
+	protected Channel getNextChannel(Source source) {
+		// With virtual voices, a full set of channels gives up its least audible source, if the new one is louder:
+		if(virtualVoices && source != null && !source.toStream && !hasIdleChannel(normalChannels)) {
+			SourceAudioTrack quietest = findQuietest(normalChannels);
+			if(quietest == null || quietest.gain * STEAL_MARGIN >= source.gain)
+				return null;
+			quietest.virtualize();
+		}
+
+		Channel channel = super.getNextChannel(source);
+
+		// The software mixer doesn't upload anything, so there is nothing to save
+		if(mixer != null)
+			return channel;
+
+		if(source == null || source.toStream || source.soundBuffer == null || !(channel instanceof ChannelAudioTrack))
+			return channel;
+
+		ChannelAudioTrack chosen = (ChannelAudioTrack) channel;
+		if(chosen.holdsStaticData(source.soundBuffer))
+			return channel;
+
+		for(int i = 0; i < normalChannels.size(); i++) {
+			Channel c = normalChannels.get(i);
+			if(c == channel || !(c instanceof ChannelAudioTrack))
+				continue;
+			ChannelAudioTrack other = (ChannelAudioTrack) c;
+			if(other.holdsStaticData(source.soundBuffer) && other.idle()) {
+				chosen.swapStaticData(other);
+				break;
+			}
+		}
+
+		return channel;
+	}
+
+	/**
+	 * @param channels Channels to check
+	 * @return true if one of the channels is not playing anything
+	 */
+	private static boolean hasIdleChannel(List<Channel> channels) {
+		for(int i = 0; i < channels.size(); i++) {
+			Channel c = channels.get(i);
+			if(c.attachedSource == null || !c.attachedSource.playing())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param channels Channels to check
+	 * @return The least audible non-priority source playing on the channels, or null if there is none
+	 */
+	private static SourceAudioTrack findQuietest(List<Channel> channels) {
+		SourceAudioTrack quietest = null;
+		for(int i = 0; i < channels.size(); i++) {
+			Source s = channels.get(i).attachedSource;
+			if(!(s instanceof SourceAudioTrack) || s.priority || s.toStream)
+				continue;
+			if(quietest == null || s.gain < quietest.gain)
+				quietest = (SourceAudioTrack) s;
+		}
+		return quietest;
+	}
+
+	/**
+	 * Plays the specified source. With virtual voices on, a normal source that is too quiet or can't get a channel
+	 * becomes a virtual voice.
+	 * @param source The source to play.
+	 */
+	@Override
+	public void play(Source source) {
+		if(!virtualVoices || !(source instanceof SourceAudioTrack) || source.toStream) {
+			super.play(source);
+			return;
+		}
+
+		SourceAudioTrack s = (SourceAudioTrack) source;
+		// Already playing as far as the caller is concerned:
+		if(s.isVirtual())
+			return;
+		if(!s.playing() && s.active() && s.gain < virtualGainThreshold) {
+			s.virtualize();
+			return;
+		}
+
+		super.play(source);
+		if(s.active() && (s.channel == null || s.channel.attachedSource != s))
+			s.virtualize();
+	}
+
+	/**
+	 * Moves the most audible virtual voices onto real channels and turns playing sources that fell below the gain
+	 * threshold into virtual voices. Virtual voices which reached the end of their sound are stopped.
+	 * This is done whenever the listener moves or the master volume changes; call it once per frame if sources
+	 * move on their own.
+	 */
+	public void updateVirtualVoices() {
+		if(!virtualVoices)
+			return;
+
+		ArrayList<SourceAudioTrack> candidates = virtualScratch;
+		candidates.clear();
+		Iterator<Source> iter = sourceMap.values().iterator();
+		while(iter.hasNext()) {
+			Source source = iter.next();
+			if(!(source instanceof SourceAudioTrack) || source.toStream)
+				continue;
+			SourceAudioTrack s = (SourceAudioTrack) source;
+			if(s.isVirtual()) {
+				if(s.virtualFinished())
+					s.stop();
+				else if(s.gain >= virtualGainThreshold)
+					candidates.add(s);
+			} else if(!s.priority && s.gain < virtualGainThreshold && s.playing()) {
+				s.virtualize();
+			}
+		}
+
+		Collections.sort(candidates, loudestFirst);
+		for(int i = 0; i < candidates.size(); i++) {
+			SourceAudioTrack s = candidates.get(i);
+			s.devirtualize();
+			super.play(s);
+			if(s.channel == null || s.channel.attachedSource != s) {
+				// No channel for this one, so none for the quieter ones either
+				s.virtualize();
+				break;
+			}
+		}
+		candidates.clear();
+	}
+
+	/**
+	 * Also runs updateVirtualVoices(), keeps temporary sources alive while they are virtual voices,
+	 * and gives the finished ones to the source pool.
+	 */
+	@Override
+	public synchronized void removeTemporarySources() {
+		updateVirtualVoices();
+		Iterator<Source> iter = sourceMap.values().iterator();
+		while(iter.hasNext()) {
+			Source source = iter.next();
+			if(source != null && source.temporary && !source.playing()
+					&& !(source instanceof SourceAudioTrack && ((SourceAudioTrack) source).isVirtual())) {
+				iter.remove();
+				sourceRemoved(source);
+				// Finished temporary sources are kept for quickPlay() to reuse:
+				if(source instanceof SourceAudioTrack)
+					sourcePool.release((SourceAudioTrack) source);
+				else
+					source.cleanup();
+			}
+		}
+	}
+
+	/**
+	 * Stops all sources, and removes references to all instantiated objects.
+	 */
+	@Override
+	public void cleanup() {
+		preloader.cleanup();
+		super.cleanup();
+		if(grid != null) grid.clear();
+		sourcesInRange.clear();
+		clearSourceHandles();
+		soundHandles.clear();
+		sourcePool.clear();
+		if(batch != null) {
+			batch.cleanup();
+			batch = null;
+		}
+		if(mixer != null) {
+			mixer.cleanup();
+			mixer = null;
+		}
+		// Release the idle AudioTracks left behind by the channels:
+		ChannelAudioTrack.getAudioTrackPool().clear();
+	}
+
+	/**
+	 * Pre-loads a sound into memory.
+	 * @param filenameURL Filename/URL of a sound file to load.
+	 * @return True if the sound loaded properly.
+	 */
+	@Override
+	public boolean loadSound(FilenameURL filenameURL) {
+        // Make sure the buffer map exists:
+        SoundBufferCache cache = getBufferCache();
+
+        // make sure they gave us a filename:
+        if( errorCheck( filenameURL == null,
+                          "Filename/URL not specified in method 'loadSound'" ) )
+            return false;
+
+        // check if it is already loaded:
+        if( bufferMap.get( filenameURL.getFilename() ) != null )
+            return true;
+
+        // if it is being preloaded, wait for that instead of decoding it again:
+        SoundBuffer buffer = preloader.await( filenameURL.getFilename() );
+        if( buffer == null )
+        {
+            ICodec codec = SoundSystemConfig.getCodec( filenameURL.getFilename() );
+            if( errorCheck( codec == null, "No codec found for file '" +
+                                           filenameURL.getFilename() +
+                                           "' in method 'loadSound'" ) )
+                return false;
+
+            if( errorCheck( filenameURL.getURL() == null, "Unable to open file '" +
+                                                          filenameURL.getFilename() +
+                                                          "' in method 'loadSound'" ) )
+                return false;
+
+            buffer = decodeSound( filenameURL, codec );
+        }
+
+        if( buffer != null )
+            cache.putReloadable( filenameURL.getFilename(), buffer );
+        else if( !isStreamOnly( filenameURL ) )
+            errorMessage( "Sound buffer null in method 'loadSound'" );
+
+        return true;
+	}
+
+	/**
+	 * Checks if a sound file was found to be too long to be played as a normal source.
+	 * Normal sources of such sounds are created as streaming sources instead.
+	 * @param filenameURL Filename/URL of a sound file.
+	 * @return True if the sound has to be streamed.
+	 */
+	public boolean isStreamOnly(FilenameURL filenameURL) {
+		return filenameURL != null && streamOnlySounds.contains(filenameURL.getFilename());
+	}
+
+	/**
+	 * Decodes a whole sound file. This doesn't touch the buffer map, so it may be called from any thread.
+	 * @param filenameURL Filename/URL of a sound file to decode.
+	 * @return Decoded sound, or null if it could not be decoded.
+	 */
+	SoundBuffer decodeSound(FilenameURL filenameURL) {
+        ICodec codec = SoundSystemConfig.getCodec( filenameURL.getFilename() );
+        if( codec == null || filenameURL.getURL() == null )
+            return null;
+        return decodeSound( filenameURL, codec );
+	}
+
+	/**
+	 * Decodes a whole sound file with the specified codec, or reads it from the disk cache if it was decoded before.
+	 * @param filenameURL Filename/URL of a sound file to decode.
+	 * @param codec Codec to use.
+	 * @return Decoded sound, or null if it could not be decoded.
+	 */
+	private SoundBuffer decodeSound(FilenameURL filenameURL, ICodec codec) {
+        String variant = getCacheVariant();
+        if( diskCache.enabled() )
+        {
+            SoundBuffer cached = diskCache.read( filenameURL, variant );
+            if( cached != null )
+                return cached;
+
+            // A sound cached while canonicalFormat was off only needs converting
+            if( variant != null )
+            {
+                cached = diskCache.read( filenameURL, null );
+                if( cached != null )
+                {
+                    SoundBuffer converted = canonicalize( filenameURL, cached );
+                    diskCache.write( filenameURL, variant, converted );
+                    return converted;
+                }
+            }
+        }
+
+        URL url = filenameURL.getURL();
+
+        codec.reverseByteOrder(reverseByteOrder());
+        codec.initialize( filenameURL );
+        message("Now Loading:" + url.toString());
+        SoundBuffer buffer = readClip( filenameURL, codec );
+        if( buffer != null )
+            message(filenameURL.getFilename() + " loaded");
+        codec.cleanup();
+        codec = null;
+
+        if( buffer != null )
+            buffer = canonicalize( filenameURL, buffer );
+        if( buffer != null && diskCache.enabled() )
+            diskCache.write( filenameURL, variant, buffer );
+        return buffer;
+	}
+
+	/**
+	 * @return Disk cache variant of the conversion canonicalize() applies now (null if it doesn't convert)
+	 */
+	private String getCacheVariant() {
+		if(!canonicalFormat) return null;
+		return "pcm16@" + getCanonicalSampleRate();
+	}
+
+	/**
+	 * Converts a decoded sound to 16-bit PCM at the native output rate if canonicalFormat is on.
+	 * @param filenameURL Filename/URL of the sound (for messages)
+	 * @param buffer Decoded sound
+	 * @return Converted sound, or the same SoundBuffer if it was not converted
+	 */
+	private SoundBuffer canonicalize(FilenameURL filenameURL, SoundBuffer buffer) {
+		if(!canonicalFormat || buffer.audioData == null || buffer.audioFormat == null) return buffer;
+
+		int sampleRate = getCanonicalSampleRate();
+		if(PcmConverter.isCanonical(buffer.audioFormat, sampleRate)) return buffer;
+		if(PcmConverter.convertedSize(buffer, sampleRate) > maxClipSize) {
+			message(filenameURL.getFilename() + " would be too large at " + sampleRate + "Hz, so it is not converted");
+			return buffer;
+		}
+
+		return PcmConverter.convert(buffer, sampleRate);
+	}
+
+	/**
+	 * Reads a whole sound from an initialized codec, one streaming buffer at a time.
+	 * Decoding stops as soon as the sound is longer than maxClipSize, and the sound is remembered as stream-only.
+	 * @param filenameURL Filename/URL of the sound file.
+	 * @param codec Initialized codec.
+	 * @return Decoded sound, or null if it is too long or could not be decoded.
+	 */
+	private SoundBuffer readClip(FilenameURL filenameURL, ICodec codec) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PAudioFormat format = null;
+
+		while(true) {
+			SoundBuffer chunk = codec.read();
+			if(chunk == null)
+				break;
+			if(format == null)
+				format = chunk.audioFormat;
+			if(chunk.audioData != null)
+				out.write(chunk.audioData, 0, chunk.audioData.length);
+			chunk.cleanup();
+
+			if(out.size() > maxClipSize) {
+				streamOnlySounds.add(filenameURL.getFilename());
+				message(filenameURL.getFilename() + " is longer than " + maxClipSize + " bytes, so it will be streamed");
+				return null;
+			}
+			if(codec.endOfStream())
+				break;
+		}
+
+		if(format == null)
+			format = codec.getAudioFormat();
+		if(out.size() == 0 || format == null)
+			return null;
+		return new SoundBuffer(out.toByteArray(), format);
+	}
+
+	/**
+	 * Returns the disk cache of decoded sounds. It is disabled unless PcmDiskCache has a default directory.
+	 * @return The disk cache.
+	 */
+	public PcmDiskCache getDiskCache() {
+		return diskCache;
+	}
+
+	/**
+	 * Decodes many sounds in the background, on a bounded pool of worker threads.
+	 * Sounds which are already loaded or being decoded are not decoded twice, and loadSound() waits for
+	 * a sound being preloaded instead of decoding it again.
+	 * Decoded sounds are put into the buffer map on the library's own thread, the next time it looks up a sound.
+	 * @param filenameURLs Filenames/URLs of the sound files to decode.
+	 * @param listener Called from a worker thread when every sound has been decoded (can be null).
+	 * @return Future which gives the number of sounds decoded successfully.
+	 */
+	public Future<Integer> preloadSounds(Collection<FilenameURL> filenameURLs, SoundPreloader.PreloadListener listener) {
+		return preloader.preload(filenameURLs, listener);
+	}
+
+	/**
+	 * Decodes many sounds in the background, on a bounded pool of worker threads.
+	 * @param filenameURLs Filenames/URLs of the sound files to decode.
+	 * @return Future which gives the number of sounds decoded successfully.
+	 * @see #preloadSounds(Collection, SoundPreloader.PreloadListener)
+	 */
+	public Future<Integer> preloadSounds(Collection<FilenameURL> filenameURLs) {
+		return preloader.preload(filenameURLs, null);
+	}
+
+	/**
+	 * Saves the specified sample data, under the specified identifier.  This
+	 * identifier can be later used in place of 'filename' parameters to reference
+	 * the sample data.
+	 * @param buffer the sample data and audio format to save.
+	 * @param identifier What to call the sample.
+	 * @return True if there weren't any problems.
+	 */
+    @Override
+    public boolean loadSound( SoundBuffer buffer, String identifier )
+    {
+        // Make sure the buffer map exists:
+        SoundBufferCache cache = getBufferCache();
+
+        // make sure they gave us an identifier:
+        if( errorCheck(identifier == null,
+                          "Identifier not specified in method 'loadSound'" ) )
+            return false;
+
+        // check if it is already loaded:
+        if( bufferMap.get( identifier ) != null )
+            return true;
+
+        // save it for later (it can't be loaded again, so it is never evicted):
+        if( buffer != null )
+        {
+            cache.put( identifier, buffer );
+            cache.trim();
+        }
+        else
+            errorMessage( "Sound buffer null in method 'loadSound'" );
+
+        return true;
+    }
+
+	/**
+	 * Checks whether a sound is in the buffer map, without counting a lookup. May be called from any thread.
+	 * @param filename Filename or identifier
+	 * @return True if the sound is loaded
+	 */
+	boolean isBufferLoaded(String filename) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			return bufferMap != null && bufferMap.containsKey(filename);
+		}
+	}
+
+	/**
+	 * Returns the buffer map, which is a SoundBufferCache. It is (re)created if needed.
+	 * Use it to change the memory budget or read its statistics.
+	 * @return The buffer map.
+	 */
+	public SoundBufferCache getBufferCache() {
+		if(!(bufferMap instanceof SoundBufferCache)) {
+			SoundBufferCache cache = new SoundBufferCache(this);
+			if(bufferMap != null) {
+				Iterator<String> iter = bufferMap.keySet().iterator();
+				while(iter.hasNext()) {
+					String key = iter.next();
+					cache.put(key, bufferMap.get(key));
+				}
+			} else
+				importantMessage("Buffer Map was null in method 'getBufferCache'");
+			bufferMap = cache;
+		}
+		SoundBufferCache cache = (SoundBufferCache) bufferMap;
+		// Collect the sounds decoded in the background:
+		preloader.drain(cache);
+		return cache;
+	}
+
+	/**
+	 * Collects the sound buffers used by the sources, which must not be evicted from the buffer map.
+	 * @param inUse Map to fill with the sound buffers in use (cleared first).
+	 */
+	void getBuffersInUse(IdentityHashMap<SoundBuffer, Boolean> inUse) {
+		inUse.clear();
+		if(sourceMap == null)
+			return;
+		Iterator<Source> iter = sourceMap.values().iterator();
+		while(iter.hasNext()) {
+			Source source = iter.next();
+			if(source != null && source.soundBuffer != null)
+				inUse.put(source.soundBuffer, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Grabs the sound buffer for a normal source from the buffer map, loading it if it isn't there
+	 * (never loaded, or evicted). Returns null without an error if the sound has to be streamed.
+	 * @param filenameURL Filename/URL of the sound file.
+	 * @param sourcename Name of the source, used in error messages.
+	 * @return Sound buffer, or null if it could not be loaded.
+	 */
+	private SoundBuffer getSoundBuffer(FilenameURL filenameURL, String sourcename) {
+		// Grab the audio data for this file:
+		SoundBuffer buffer = getBufferCache().lookup(filenameURL.getFilename());
+		if(buffer != null)
+			return buffer;
+
+		// It's already known to be too long, don't decode it again:
+		if(isStreamOnly(filenameURL))
+			return null;
+
+		// if not found, try loading it:
+		if(!loadSound(filenameURL)) {
+			errorMessage("Source '" + sourcename + "' was not created " + "because an error occurred while loading " + filenameURL.getFilename());
+			return null;
+		}
+		// try and grab the sound buffer again:
+		buffer = bufferMap.get(filenameURL.getFilename());
+		// see if it was there this time:
+		if(buffer == null && !isStreamOnly(filenameURL)) {
+			errorMessage("Source '" + sourcename + "' was not created " + "because audio data was not found for " + filenameURL.getFilename());
+			return null;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Sets the overall volume to the specified value, affecting all sources.
+	 * @param value New volume, float value ( 0.0f - 1.0f ).
+	 */
+    @Override
+    public void setMasterVolume( float value )
+    {
+        super.setMasterVolume( value );
+
+        // update the volume of all sources:
+        updateSources();
+    }
+
+	/**
+	 * Updates the sources after the listener moved, then reassigns virtual voices.
+	 */
+	@Override
+	public void listenerMoved() {
+		updateSources();
+	}
+
+	/**
+	 * Moves the listener to the specified location.
+	 * @param x Destination X coordinate.
+	 * @param y Destination Y coordinate.
+	 * @param z Destination Z coordinate.
+	 */
+	@Override
+	public void setListenerPosition(float x, float y, float z) {
+		listener.setPosition(x, y, z);
+		updateSources();
+	}
+
+	/**
+	 * Turns the listener counterclockwise by "angle" radians around the y-axis, relative to the positive x-axis.
+	 * @param angle Angle in radians.
+	 */
+	@Override
+	public void setListenerAngle(float angle) {
+		listener.setAngle(angle);
+		updateSources();
+	}
+
+	/**
+	 * Changes the listener's orientation using the specified coordinates.
+	 * @param lookX X element of the look-at direction.
+	 * @param lookY Y element of the look-at direction.
+	 * @param lookZ Z element of the look-at direction.
+	 * @param upX X element of the up direction.
+	 * @param upY Y element of the up direction.
+	 * @param upZ Z element of the up direction.
+	 */
+	@Override
+	public void setListenerOrientation(float lookX, float lookY, float lookZ, float upX, float upY, float upZ) {
+		listener.setOrientation(lookX, lookY, lookZ, upX, upY, upZ);
+		updateSources();
+	}
+
+	/**
+	 * Changes the listener's position and orientation using the specified listener data.
+	 * @param l Listener data to use.
+	 */
+	@Override
+	public void setListenerData(ListenerData l) {
+		listener.setData(l);
+		updateSources();
+	}
+
+	/**
+	 * Recomputes gain, pan and pitch of the sources after a listener or global change, then reassigns virtual voices.
+	 * With the spatial index, only the sources which can be heard from the listener's position are recomputed,
+	 * plus the ones which could be heard last time (so they fall silent).
+	 * When there are at least parallelUpdateThreshold sources to recompute, they are computed as a batch on worker threads.
+	 */
+	private void updateSources() {
+		ArrayList<Source> candidates = candidateScratch;
+		candidates.clear();
+		if(grid == null) {
+			Iterator<Source> iter = sourceMap.values().iterator();
+			while(iter.hasNext())
+				candidates.add(iter.next());
+		} else {
+			IdentityHashMap<Source, Boolean> inRange = sourcesInRangeNext;
+			inRange.clear();
+			grid.collect(listener.position.x, listener.position.y, listener.position.z, candidates);
+			for(int i = 0; i < candidates.size(); i++)
+				inRange.put(candidates.get(i), Boolean.TRUE);
+			// Sources which just went out of range still need their gain brought down to 0:
+			Iterator<Source> iter = sourcesInRange.keySet().iterator();
+			while(iter.hasNext()) {
+				Source source = iter.next();
+				if(!inRange.containsKey(source) && sourceMap.get(source.sourcename) == source)
+					candidates.add(source);
+			}
+			sourcesInRangeNext = sourcesInRange;
+			sourcesInRange = inRange;
+		}
+
+		if(parallelUpdateThreshold > 0 && candidates.size() >= parallelUpdateThreshold) {
+			ArrayList<SourceAudioTrack> batchSources = batchScratch;
+			batchSources.clear();
+			for(int i = 0; i < candidates.size(); i++) {
+				Source source = candidates.get(i);
+				if(source instanceof SourceAudioTrack)
+					batchSources.add((SourceAudioTrack) source);
+				else if(source != null)
+					source.listenerMoved();
+			}
+			if(batch == null) batch = new SourceBatch();
+			batch.load(batchSources, listener);
+			batch.compute();
+			batch.apply();
+			batchSources.clear();
+		} else {
+			for(int i = 0; i < candidates.size(); i++) {
+				Source source = candidates.get(i);
+				if(source != null)
+					source.listenerMoved();
+			}
+		}
+		candidates.clear();
+		updateVirtualVoices();
+	}
+
+	/**
+	 * Puts a source into the source map, replacing (and unindexing) any source of the same name.
+	 * @param sourcename Name of the source
+	 * @param source Source
+	 */
+	private void putSource(String sourcename, Source source) {
+		Source old = sourceMap.put(sourcename, source);
+		if(old != null && old != source) sourceRemoved(old);
+		if(source instanceof SourceAudioTrack) ((SourceAudioTrack) source).sideCache = listenerSide;
+		if(grid != null) grid.update(source);
+	}
+
+	/**
+	 * Drops a source which left the source map from the grid and the handle table.
+	 * @param source Source
+	 */
+	private void sourceRemoved(Source source) {
+		if(grid != null) grid.remove(source);
+		if(source instanceof SourceAudioTrack) {
+			SourceAudioTrack s = (SourceAudioTrack) source;
+			if(s.handle >= 0) {
+				sourceHandles.remove(s.handle);
+				s.handle = -1;
+			}
+		}
+	}
+
+	/**
+	 * Invalidates every source handle.
+	 */
+	private void clearSourceHandles() {
+		for(int i = 0; i < sourceHandles.slots(); i++) {
+			SourceAudioTrack s = sourceHandles.get(sourceHandles.handleAt(i));
+			if(s != null) s.handle = -1;
+		}
+		sourceHandles.clear();
+	}
+
+	/**
+	 * Moves a source to the specified location.
+	 * @param sourcename Identifier for the source.
+	 * @param x destination X coordinate.
+	 * @param y destination Y coordinate.
+	 * @param z destination Z coordinate.
+	 */
+	@Override
+	public void setPosition(String sourcename, float x, float y, float z) {
+		super.setPosition(sourcename, x, y, z);
+		if(grid != null) grid.update(sourceMap.get(sourcename));
+	}
+
+	/**
+	 * Changes a source's attenuation model.
+	 * @param sourcename Identifier for the source.
+	 * @param model Attenuation model to use.
+	 */
+	@Override
+	public void setAttenuation(String sourcename, int model) {
+		super.setAttenuation(sourcename, model);
+		if(grid != null) grid.update(sourceMap.get(sourcename));
 	}
 
 	/**
-	 * Initialize LibraryAudioTrack.
+	 * Changes a source's fade distance or rolloff factor.
+	 * @param sourcename Identifier for the source.
+	 * @param dr Either the fading distance or rolloff factor, depending on the attenuation model used.
 	 */
 	@Override
-	public void init() throws SoundSystemException {
-		super.init();
-		message("AudioTrack library initialized.");
+	public void setDistOrRoll(String sourcename, float dr) {
+		super.setDistOrRoll(sourcename, dr);
+		if(grid != null) grid.update(sourceMap.get(sourcename));
 	}
 
 	/**
-	 * Checks if the AudioTrack library type is compatible.
-	 * @return True or false.
+	 * Removes the specified source and clears up any memory it used.
+	 * @param sourcename Identifier for the source.
 	 */
-	public static boolean libraryCompatible()
-	{
-		try {
-			Class.forName("android.media.AudioTrack");
-		} catch (Throwable e) {
-			return false;
-		}
-		return true;
+	@Override
+	public void removeSource(String sourcename) {
+		Source source = sourceMap.get(sourcename);
+		super.removeSource(sourcename);
+		if(source != null && sourceMap.get(sourcename) != source) sourceRemoved(source);
 	}
 
 	/**
-	 * Creates a new channel of the specified type (normal or streaming).  Possible
-	 * values for channel type can be found in the
-	 * {@link paulscode.sound.SoundSystemConfig SoundSystemConfig} class.
-	 * @param type Type of channel.
+	 * Registers a sound for use with the handle methods, loading it if needed.
+	 *<br><br>
+	 * The handle methods bypass SoundSystem's command queue, so they may be called from any thread:
+	 * each of them holds SoundSystemConfig.THREAD_SYNC, the lock the CommandThread holds while it runs commands
+	 * and removes temporary sources. Because of that they wait while a command (such as loading a sound) is running.
+	 * @param filenameURL Filename/URL of the sound file.
+	 * @return Sound handle, or -1 if the sound could not be loaded.
 	 */
-	@Override
-	protected Channel createChannel(int type) {
-		return new ChannelAudioTrack(type);
+	public int registerSound(FilenameURL filenameURL) {
+		if(errorCheck(filenameURL == null, "Filename/URL not specified in method 'registerSound'"))
+			return -1;
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			if(!loadSound(filenameURL) && !isStreamOnly(filenameURL))
+				return -1;
+			return soundHandles.add(filenameURL);
+		}
 	}
 
 	/**
-	 * Stops all sources, and removes references to all instantiated objects.
+	 * Forgets a sound handle. The sound itself stays loaded.
+	 * @param soundHandle Sound handle.
 	 */
-	@Override
-	public void cleanup() {
-		super.cleanup();
+	public void unregisterSound(int soundHandle) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			soundHandles.remove(soundHandle);
+		}
 	}
 
 	/**
-	 * Pre-loads a sound into memory.
-	 * @param filenameURL Filename/URL of a sound file to load.
-	 * @return True if the sound loaded properly.
+	 * Creates a new source for a registered sound.
+	 * @param soundHandle Sound handle from registerSound().
+	 * @param priority Setting this to true will prevent other sounds from overriding this one.
+	 * @param toLoop Should this source loop, or play only once.
+	 * @param x X position for this source.
+	 * @param y Y position for this source.
+	 * @param z Z position for this source.
+	 * @param attModel Attenuation model to use.
+	 * @param distOrRoll Either the fading distance or rolloff factor, depending on the value of "attmodel".
+	 * @return Source handle, or -1 if the source could not be created.
 	 */
-	@Override
-	public boolean loadSound(FilenameURL filenameURL) {
-        // Make sure the buffer map exists:
-        if( bufferMap == null )
-        {
-            bufferMap = new HashMap<String, SoundBuffer>();
-            importantMessage( "Buffer Map was null in method 'loadSound'" );
-        }
-
-        // make sure they gave us a filename:
-        if( errorCheck( filenameURL == null,
-                          "Filename/URL not specified in method 'loadSound'" ) )
-            return false;
-
-        // check if it is already loaded:
-        if( bufferMap.get( filenameURL.getFilename() ) != null )
-            return true;
+	public int newSource(int soundHandle, boolean priority, boolean toLoop, float x, float y, float z, int attModel, float distOrRoll) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			FilenameURL filenameURL = soundHandles.get(soundHandle);
+			if(errorCheck(filenameURL == null, "Invalid sound handle in method 'newSource'"))
+				return -1;
+			String sourcename = nextHandleSourceName();
+			newSource(priority, false, toLoop, sourcename, filenameURL, x, y, z, attModel, distOrRoll);
+			return getSourceHandle(sourcename);
+		}
+	}
 
-        ICodec codec = SoundSystemConfig.getCodec( filenameURL.getFilename() );
-        if( errorCheck( codec == null, "No codec found for file '" +
-                                       filenameURL.getFilename() +
-                                       "' in method 'loadSound'" ) )
-            return false;
+	/**
+	 * Creates a new source for a registered sound and plays it.
+	 * Temporary sources are taken from the source pool, and a recycled handle source keeps its name,
+	 * so this doesn't build a source name or look the source up by name.
+	 * @param soundHandle Sound handle from registerSound().
+	 * @param priority Setting this to true will prevent other sounds from overriding this one.
+	 * @param toLoop Should this source loop, or play only once.
+	 * @param x X position for this source.
+	 * @param y Y position for this source.
+	 * @param z Z position for this source.
+	 * @param attModel Attenuation model to use.
+	 * @param distOrRoll Either the fading distance or rolloff factor, depending on the value of "attmodel".
+	 * @param temporary Whether or not this source should be removed after it finishes playing.
+	 * @return Source handle, or -1 if the source could not be created.
+	 */
+	public int quickPlay(int soundHandle, boolean priority, boolean toLoop, float x, float y, float z, int attModel, float distOrRoll, boolean temporary) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			FilenameURL filenameURL = soundHandles.get(soundHandle);
+			if(errorCheck(filenameURL == null, "Invalid sound handle in method 'quickPlay'"))
+				return -1;
+			SourceAudioTrack source = quickPlaySource(priority, false, toLoop, null, filenameURL, x, y, z, attModel, distOrRoll, temporary);
+			if(source == null)
+				return -1;
+			int handle = registerHandle(source);
+			play(source);
+			return handle;
+		}
+	}
 
-        URL url = filenameURL.getURL();
+	/**
+	 * Returns a handle for an existing source, registering it on the first call.
+	 * @param sourcename Identifier for the source.
+	 * @return Source handle, or -1 if there is no such source.
+	 */
+	public int getSourceHandle(String sourcename) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			Source source = sourceMap.get(sourcename);
+			if(!(source instanceof SourceAudioTrack))
+				return -1;
+			return registerHandle((SourceAudioTrack) source);
+		}
+	}
 
-        if( errorCheck( url == null, "Unable to open file '" +
-                                     filenameURL.getFilename() +
-                                     "' in method 'loadSound'" ) )
-            return false;
+	/**
+	 * Gives a source a handle if it doesn't have one yet.
+	 * @param source Source in the source map
+	 * @return Source handle
+	 */
+	private int registerHandle(SourceAudioTrack source) {
+		if(source.handle < 0)
+			source.handle = sourceHandles.add(source);
+		return source.handle;
+	}
 
-        codec.reverseByteOrder(reverseByteOrder());
-        codec.initialize( filenameURL );
-        message("Now Loading:" + url.toString());
-        SoundBuffer buffer = codec.readAll();
-        message(filenameURL.getFilename() + " loaded");
-        codec.cleanup();
-        codec = null;
-        if( buffer != null )
-            bufferMap.put( filenameURL.getFilename(), buffer );
-        else
-            errorMessage( "Sound buffer null in method 'loadSound'" );
+	/**
+	 * Only use the returned source while holding SoundSystemConfig.THREAD_SYNC.
+	 * @param sourceHandle Source handle.
+	 * @return The source, or null if the handle is no longer valid.
+	 */
+	public SourceAudioTrack getSource(int sourceHandle) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			return sourceHandles.get(sourceHandle);
+		}
+	}
 
-        return true;
+	/**
+	 * Plays the source of a handle.
+	 * @param sourceHandle Source handle.
+	 */
+	public void play(int sourceHandle) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			SourceAudioTrack source = sourceHandles.get(sourceHandle);
+			if(source != null)
+				play(source);
+		}
 	}
 
 	/**
-	 * Saves the specified sample data, under the specified identifier.  This
-	 * identifier can be later used in place of 'filename' parameters to reference
-	 * the sample data.
-	 * @param buffer the sample data and audio format to save.
-	 * @param identifier What to call the sample.
-	 * @return True if there weren't any problems.
+	 * Stops the source of a handle.
+	 * @param sourceHandle Source handle.
 	 */
-    @Override
-    public boolean loadSound( SoundBuffer buffer, String identifier )
-    {
-        // Make sure the buffer map exists:
-        if( bufferMap == null )
-        {
-            bufferMap = new HashMap<String, SoundBuffer>();
-            importantMessage( "Buffer Map was null in method 'loadSound'" );
-        }
+	public void stop(int sourceHandle) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			SourceAudioTrack source = sourceHandles.get(sourceHandle);
+			if(source != null)
+				source.stop();
+		}
+	}
 
-        // make sure they gave us an identifier:
-        if( errorCheck(identifier == null,
-                          "Identifier not specified in method 'loadSound'" ) )
-            return false;
+	/**
+	 * Pauses the source of a handle.
+	 * @param sourceHandle Source handle.
+	 */
+	public void pause(int sourceHandle) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			SourceAudioTrack source = sourceHandles.get(sourceHandle);
+			if(source != null)
+				source.pause();
+		}
+	}
 
-        // check if it is already loaded:
-        if( bufferMap.get( identifier ) != null )
-            return true;
+	/**
+	 * Rewinds the source of a handle.
+	 * @param sourceHandle Source handle.
+	 */
+	public void rewind(int sourceHandle) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			SourceAudioTrack source = sourceHandles.get(sourceHandle);
+			if(source != null)
+				source.rewind();
+		}
+	}
 
-        // save it for later:
-        if( buffer != null )
-            bufferMap.put( identifier, buffer );
-        else
-            errorMessage( "Sound buffer null in method 'loadSound'" );
+	/**
+	 * @param sourceHandle Source handle.
+	 * @return true if the source of the handle is playing (on a channel or as a virtual voice).
+	 */
+	public boolean playing(int sourceHandle) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			SourceAudioTrack source = sourceHandles.get(sourceHandle);
+			return source != null && (source.playing() || source.isVirtual());
+		}
+	}
 
-        return true;
-    }
+	/**
+	 * Moves the source of a handle.
+	 * @param sourceHandle Source handle.
+	 * @param x destination X coordinate.
+	 * @param y destination Y coordinate.
+	 * @param z destination Z coordinate.
+	 */
+	public void setPosition(int sourceHandle, float x, float y, float z) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			SourceAudioTrack source = sourceHandles.get(sourceHandle);
+			if(source == null)
+				return;
+			source.setPosition(x, y, z);
+			if(grid != null) grid.update(source);
+		}
+	}
 
 	/**
-	 * Sets the overall volume to the specified value, affecting all sources.
+	 * Changes the volume of the source of a handle.
+	 * @param sourceHandle Source handle.
 	 * @param value New volume, float value ( 0.0f - 1.0f ).
 	 */
-    @Override
-    public void setMasterVolume( float value )
-    {
-        super.setMasterVolume( value );
+	public void setVolume(int sourceHandle, float value) {
+		if(value < 0.0f)
+			value = 0.0f;
+		else if(value > 1.0f)
+			value = 1.0f;
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			SourceAudioTrack source = sourceHandles.get(sourceHandle);
+			if(source == null)
+				return;
+			source.sourceVolume = value;
+			source.positionChanged();
+		}
+	}
+
+	/**
+	 * Changes the pitch of the source of a handle.
+	 * @param sourceHandle Source handle.
+	 * @param value A float value ( 0.5f - 2.0f ).
+	 */
+	public void setPitch(int sourceHandle, float value) {
+		if(value < 0.5f)
+			value = 0.5f;
+		else if(value > 2.0f)
+			value = 2.0f;
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			SourceAudioTrack source = sourceHandles.get(sourceHandle);
+			if(source != null)
+				source.setPitch(value);
+		}
+	}
 
-        Set<String> keys = sourceMap.keySet();
-        Iterator<String> iter = keys.iterator();
-        String sourcename;
-        Source source;
+	/**
+	 * Removes the source of a handle. The handle becomes invalid.
+	 * @param sourceHandle Source handle.
+	 */
+	public void removeSource(int sourceHandle) {
+		synchronized(SoundSystemConfig.THREAD_SYNC) {
+			SourceAudioTrack source = sourceHandles.get(sourceHandle);
+			if(source != null)
+				removeSource(source.sourcename);
+		}
+	}
 
-        // loop through and update the volume of all sources:
-        while( iter.hasNext() )
-        {
-            sourcename = iter.next();
-            source = sourceMap.get( sourcename );
-            if( source != null )
-                source.positionChanged();
-        }
-    }
+	/**
+	 * @return A source name for a source created through a sound handle
+	 */
+	private String nextHandleSourceName() {
+		return HANDLE_SOURCE_PREFIX + (handleSourceCount++);
+	}
 
 	/**
 	 * Creates a new source and places it into the source map.
@@ -235,28 +1361,20 @@ public class LibraryAudioTrack extends Library {
 		SoundBuffer buffer = null;
 
 		if(!toStream) {
-			// Grab the audio data for this file:
-			buffer = bufferMap.get(filenameURL.getFilename());
-			// if not found, try loading it:
+			buffer = getSoundBuffer(filenameURL, sourcename);
 			if(buffer == null) {
-				if(!loadSound(filenameURL)) {
-					errorMessage("Source '" + sourcename + "' was not created " + "because an error occurred while loading " + filenameURL.getFilename());
+				if(!isStreamOnly(filenameURL))
 					return;
-				}
-			}
-			// try and grab the sound buffer again:
-			buffer = bufferMap.get(filenameURL.getFilename());
-			// see if it was there this time:
-			if(buffer == null) {
-				errorMessage("Source '" + sourcename + "' was not created " + "because audio data was not found for " + filenameURL.getFilename());
-				return;
+				// Too long for a normal source, so stream it instead of cutting it off:
+				toStream = true;
 			}
 		}
 
+		// Only buffers which didn't come from a file (so can't be streamed) can still be too long here:
 		if(!toStream && buffer != null)
 			buffer.trimData(maxClipSize);
 
-		sourceMap.put(sourcename, new SourceAudioTrack(listener, priority, toStream, toLoop, sourcename, filenameURL, buffer, x, y, z, attModel, distOrRoll, false));
+		putSource(sourcename, new SourceAudioTrack(listener, priority, toStream, toLoop, sourcename, filenameURL, buffer, x, y, z, attModel, distOrRoll, false));
 	}
 
 	/**
@@ -272,7 +1390,242 @@ public class LibraryAudioTrack extends Library {
 	 */
 	@Override
 	public void rawDataStream(PAudioFormat audioFormat, boolean priority, String sourcename, float x, float y, float z, int attModel, float distOrRoll) {
-		sourceMap.put(sourcename, new SourceAudioTrack(listener, audioFormat, priority, sourcename, x, y, z, attModel, distOrRoll));
+		putSource(sourcename, new SourceAudioTrack(listener, audioFormat, priority, sourcename, x, y, z, attModel, distOrRoll));
+	}
+
+	/**
+	 * Get the channel a streaming source is currently playing on
+	 * @param sourcename Source name
+	 * @return Channel, or null if the source doesn't exist, isn't a stream or isn't playing on a channel
+	 */
+	private ChannelAudioTrack getStreamChannel(String sourcename) {
+		Source source = sourceMap.get(sourcename);
+		if(source == null || !(source.channel instanceof ChannelAudioTrack) || source.channel.attachedSource != source)
+			return null;
+		if(source.channel.channelType != SoundSystemConfig.TYPE_STREAMING)
+			return null;
+		return (ChannelAudioTrack)source.channel;
+	}
+
+	/**
+	 * Feeds raw audio data from a ByteBuffer (preferably a direct one) to a source created by rawDataStream.
+	 * The bytes must already be in the source's format and in native (little-endian) order.
+	 * They are copied straight into the stream queue of the source's channel, without an intermediate array.
+	 * The buffer's position is moved to its limit, unless the data was rejected.
+	 *<br><br>
+	 * Like the handle methods this bypasses SoundSystem's command queue and holds SoundSystemConfig.THREAD_SYNC instead,
+	 * so it never queues data at the same time as the CommandThread does for SoundSystem.feedRawAudioData.
+	 * Both may be used on the same source, but chunks fed through SoundSystem are only queued when their command runs.
+	 * Under RAW_OVERFLOW_BLOCK the wait for room happens after letting go of THREAD_SYNC, so it never holds up the CommandThread.
+	 * @param sourcename Source name
+	 * @param buffer Buffer containing raw audio data, from its position to its limit
+	 * @return Number of prior buffers that have been processed, -1 if error,
+	 * or {@link ChannelAudioTrack#RAW_QUEUE_FULL} if the data was rejected under RAW_OVERFLOW_BACKOFF.
+	 */
+	public int feedRawAudioData(String sourcename, ByteBuffer buffer) {
+		if(errorCheck(buffer == null || !buffer.hasRemaining(), "Buffer null or empty in method 'feedRawAudioData'"))
+			return -1;
+
+		return feedRawStream(sourcename, buffer, 0, buffer.remaining());
+	}
+
+	/**
+	 * Feeds raw 16-bit samples to a source created by rawDataStream.
+	 * Samples are native values, so decoders don't have to byte-swap them.
+	 * The threading rules are the same as {@link #feedRawAudioData(String, ByteBuffer)}.
+	 * @param sourcename Source name
+	 * @param samples Array containing the samples (interleaved if stereo)
+	 * @param offset Offset of the first sample in the array
+	 * @param count Number of samples
+	 * @return Number of prior buffers that have been processed, -1 if error,
+	 * or {@link ChannelAudioTrack#RAW_QUEUE_FULL} if the data was rejected under RAW_OVERFLOW_BACKOFF.
+	 */
+	public int feedRawAudioData(String sourcename, short[] samples, int offset, int count) {
+		if(errorCheck(samples == null || count <= 0, "Samples null or empty in method 'feedRawAudioData'"))
+			return -1;
+
+		return feedRawStream(sourcename, samples, offset, count * 2);
+	}
+
+	/**
+	 * Queues raw audio data on the channel of a raw data stream while holding SoundSystemConfig.THREAD_SYNC.
+	 * Under RAW_OVERFLOW_BLOCK the data is only queued once there is room, and the wait for room happens outside
+	 * of THREAD_SYNC. The CommandThread only queues data while holding it too, so the room can't be taken in the meantime.
+	 * @param sourcename Source name
+	 * @param data ByteBuffer or short[] of samples
+	 * @param offset Offset of the first sample (ignored for a ByteBuffer)
+	 * @param length Length of the chunk in bytes
+	 * @return Number of prior buffers that have been processed, -1 if error,
+	 * or {@link ChannelAudioTrack#RAW_QUEUE_FULL} if the data was rejected under RAW_OVERFLOW_BACKOFF.
+	 */
+	private int feedRawStream(String sourcename, Object data, int offset, int length) {
+		long deadline = 0;
+		while(true) {
+			ChannelAudioTrack channel;
+			synchronized(SoundSystemConfig.THREAD_SYNC) {
+				channel = startRawStreamChannel(sourcename);
+				if(channel == null)
+					return -1;
+
+				if(ChannelAudioTrack.getRawOverflowPolicy() != ChannelAudioTrack.RAW_OVERFLOW_BLOCK || channel.hasRawQueueSpace(length))
+					return feedRawChannel(channel, data, offset, length);
+
+				long now = System.currentTimeMillis();
+				if(deadline == 0)
+					deadline = now + ChannelAudioTrack.getRawQueueBlockTimeout();
+				else if(now >= deadline)
+					return dropRawChunk(channel, data);
+			}
+
+			if(!channel.awaitRawQueueSpace(length, deadline - System.currentTimeMillis())) {
+				synchronized(SoundSystemConfig.THREAD_SYNC) {
+					return dropRawChunk(channel, data);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queues raw audio data on a channel. Must be called while holding SoundSystemConfig.THREAD_SYNC.
+	 * @param channel Channel
+	 * @param data ByteBuffer or short[] of samples
+	 * @param offset Offset of the first sample (ignored for a ByteBuffer)
+	 * @param length Length of the chunk in bytes
+	 * @return Result of the channel's feedRawAudioData
+	 */
+	private int feedRawChannel(ChannelAudioTrack channel, Object data, int offset, int length) {
+		if(data instanceof ByteBuffer)
+			return channel.feedRawAudioData((ByteBuffer)data);
+		return channel.feedRawAudioData((short[])data, offset, length / 2);
+	}
+
+	/**
+	 * Drops a chunk which found no room before rawQueueBlockTimeout, the same way the channel itself does.
+	 * Must be called while holding SoundSystemConfig.THREAD_SYNC.
+	 * @param channel Channel
+	 * @param data ByteBuffer or short[] of samples
+	 * @return Number of prior buffers that have been processed
+	 */
+	private int dropRawChunk(ChannelAudioTrack channel, Object data) {
+		channel.rawChunkDropped();
+		if(data instanceof ByteBuffer)
+			((ByteBuffer)data).position(((ByteBuffer)data).limit());
+		// A null chunk just reports the processed buffers
+		return channel.feedRawAudioData((ByteBuffer)null);
+	}
+
+	/**
+	 * Get the channel a raw data stream is playing on, starting the stream first if it isn't playing yet.
+	 * Must be called while holding SoundSystemConfig.THREAD_SYNC.
+	 * @param sourcename Source name
+	 * @return Channel, or null if the source isn't a raw data stream or couldn't be started
+	 */
+	private ChannelAudioTrack startRawStreamChannel(String sourcename) {
+		ChannelAudioTrack channel = getRawStreamChannel(sourcename);
+		if(channel != null)
+			return channel;
+
+		// Not playing yet: let the Library pick a channel and start the stream, with no data (channels ignore a null chunk)
+		if(feedRawAudioData(sourcename, (byte[])null) < 0)
+			return null;
+		channel = getRawStreamChannel(sourcename);
+		errorCheck(channel == null, "Unable to start raw data stream '" + sourcename + "'");
+		return channel;
+	}
+
+	/**
+	 * Get the channel a raw data stream is playing on, so data can be fed to it directly
+	 * @param sourcename Source name
+	 * @return Channel, or null if the source isn't a raw data stream or isn't playing yet
+	 */
+	private ChannelAudioTrack getRawStreamChannel(String sourcename) {
+		Source source = sourceMap.get(sourcename);
+		if(source == null || !source.rawDataStream || !source.playing())
+			return null;
+		return getStreamChannel(sourcename);
+	}
+
+	/**
+	 * Get how much audio is waiting in the stream queue of a streaming source.
+	 * Raw audio producers can use this to pace themselves.
+	 * @param sourcename Source name
+	 * @return Milliseconds of queued audio (0 if the source isn't playing on a streaming channel)
+	 */
+	public float getStreamQueueMillis(String sourcename) {
+		ChannelAudioTrack channel = getStreamChannel(sourcename);
+		return (channel != null) ? channel.getQueuedMillis() : 0;
+	}
+
+	/**
+	 * Get how many bytes are waiting in the stream queue of a streaming source
+	 * @param sourcename Source name
+	 * @return Number of queued bytes (0 if the source isn't playing on a streaming channel)
+	 */
+	public int getStreamQueueBytes(String sourcename) {
+		ChannelAudioTrack channel = getStreamChannel(sourcename);
+		return (channel != null) ? channel.getQueuedBytes() : 0;
+	}
+
+	/**
+	 * Get the backoff hint of a raw data stream: how long to wait before feeding another chunk,
+	 * so it fits under the raw queue limit (see {@link ChannelAudioTrack#setRawQueueMaxMillis(int)}).
+	 * @param sourcename Source name
+	 * @return Milliseconds to wait (0 if the next chunk fits now)
+	 */
+	public float getRawBackoffMillis(String sourcename) {
+		ChannelAudioTrack channel = getStreamChannel(sourcename);
+		return (channel != null) ? channel.getRawBackoffMillis() : 0;
+	}
+
+	/**
+	 * Get how many chunks of a raw data stream were discarded because its queue was over the limit
+	 * @param sourcename Source name
+	 * @return Number of chunks discarded by the source's current channel
+	 */
+	public long getRawChunksDropped(String sourcename) {
+		ChannelAudioTrack channel = getStreamChannel(sourcename);
+		return (channel != null) ? channel.getRawChunksDropped() : 0;
+	}
+
+	/**
+	 * Get how far ahead a streaming source's channel currently writes into its AudioTrack.
+	 * With {@link StreamBufferController#setEnabled(boolean)} this is the size the controller chose.
+	 * @param sourcename Source name
+	 * @return Buffer size in milliseconds (0 if the source isn't playing on a streaming channel)
+	 */
+	public float getStreamBufferMillis(String sourcename) {
+		ChannelAudioTrack channel = getStreamChannel(sourcename);
+		return (channel != null) ? channel.getStreamBufferMillis() : 0;
+	}
+
+	/**
+	 * Get the current delay of a raw data stream's jitter buffer (see {@link ChannelAudioTrack#setJitterBuffer(boolean)})
+	 * @param sourcename Source name
+	 * @return Delay in milliseconds (0 if the source isn't playing on a streaming channel)
+	 */
+	public float getJitterDelayMillis(String sourcename) {
+		ChannelAudioTrack channel = getStreamChannel(sourcename);
+		return (channel != null) ? channel.getJitterDelayMillis() : 0;
+	}
+
+	/**
+	 * Get how many times a raw data stream's jitter buffer ran dry because the data came too late
+	 * @param sourcename Source name
+	 * @return Late count of the source's current channel
+	 */
+	public int getJitterLateCount(String sourcename) {
+		ChannelAudioTrack channel = getStreamChannel(sourcename);
+		return (channel != null) ? channel.getJitterLateCount() : 0;
+	}
+
+	/**
+	 * Get how many chunks a raw data stream's jitter buffer had to shorten because the data came too early
+	 * @param sourcename Source name
+	 * @return Early count of the source's current channel
+	 */
+	public int getJitterEarlyCount(String sourcename) {
+		ChannelAudioTrack channel = getStreamChannel(sourcename);
+		return (channel != null) ? channel.getJitterEarlyCount() : 0;
 	}
 
 	/**
@@ -291,31 +1644,53 @@ public class LibraryAudioTrack extends Library {
 	 */
 	@Override
 	public void quickPlay(boolean priority, boolean toStream, boolean toLoop, String sourcename, FilenameURL filenameURL, float x, float y, float z, int attModel, float distOrRoll, boolean temporary) {
+		quickPlaySource(priority, toStream, toLoop, sourcename, filenameURL, x, y, z, attModel, distOrRoll, temporary);
+	}
+
+	/**
+	 * Creates a source (or reinitializes one from the source pool) and places it into the source map.
+	 * @param priority Setting this to true will prevent other sounds from overriding this one.
+	 * @param toStream Setting this to true will load the sound in pieces rather than all at once.
+	 * @param toLoop Should this source loop, or play only once.
+	 * @param sourcename A unique identifier for this source, or null for a source created through a sound handle.
+	 * A recycled handle source keeps its old name, otherwise a new one is generated.
+	 * @param filenameURL Filename/URL of the sound file to play at this source.
+	 * @param x X position for this source.
+	 * @param y Y position for this source.
+	 * @param z Z position for this source.
+	 * @param attModel Attenuation model to use.
+	 * @param distOrRoll Either the fading distance or rolloff factor, depending on the value of "attmodel".
+	 * @param temporary Whether or not this source should be removed after it finishes playing.
+	 * @return The source, or null if it could not be created.
+	 */
+	private SourceAudioTrack quickPlaySource(boolean priority, boolean toStream, boolean toLoop, String sourcename, FilenameURL filenameURL, float x, float y, float z, int attModel, float distOrRoll, boolean temporary) {
 		SoundBuffer buffer = null;
 
 		if(!toStream) {
-			// Grab the audio data for this file:
-			buffer = bufferMap.get(filenameURL.getFilename());
-			// if not found, try loading it:
-			if(buffer == null) {
-				if(!loadSound(filenameURL)) {
-					errorMessage("Source '" + sourcename + "' was not created " + "because an error occurred while loading " + filenameURL.getFilename());
-					return;
-				}
-			}
-			// try and grab the sound buffer again:
-			buffer = bufferMap.get(filenameURL.getFilename());
-			// see if it was there this time:
+			buffer = getSoundBuffer(filenameURL, (sourcename != null) ? sourcename : HANDLE_SOURCE_PREFIX);
 			if(buffer == null) {
-				errorMessage("Source '" + sourcename + "' was not created " + "because audio data was not found for " + filenameURL.getFilename());
-				return;
+				if(!isStreamOnly(filenameURL))
+					return null;
+				// Too long for a normal source, so stream it instead of cutting it off:
+				toStream = true;
 			}
 		}
 
+		// Only buffers which didn't come from a file (so can't be streamed) can still be too long here:
 		if(!toStream && buffer != null)
 			buffer.trimData(maxClipSize);
 
-		sourceMap.put(sourcename, new SourceAudioTrack(listener, priority, toStream, toLoop, sourcename, filenameURL, buffer, x, y, z, attModel, distOrRoll, temporary));
+		SourceAudioTrack source = (temporary && !toStream) ? sourcePool.obtain() : null;
+		boolean handleName = (sourcename == null);
+		if(handleName)
+			sourcename = (source != null && source.handleName) ? source.sourcename : nextHandleSourceName();
+		if(source != null)
+			source.changeSource(priority, toStream, toLoop, sourcename, filenameURL, buffer, x, y, z, attModel, distOrRoll, temporary);
+		else
+			source = new SourceAudioTrack(listener, priority, toStream, toLoop, sourcename, filenameURL, buffer, x, y, z, attModel, distOrRoll, temporary);
+		source.handleName = handleName;
+		putSource(sourcename, source);
+		return source;
 	}
 
 	/**
@@ -332,13 +1707,13 @@ public class LibraryAudioTrack extends Library {
 		Source source;
 
 		// Make sure the buffer map exists:
-		if(bufferMap == null) {
-			bufferMap = new HashMap<String, SoundBuffer>();
-			importantMessage("Buffer Map was null in method 'copySources'");
-		}
+		getBufferCache();
 
 		// remove any existing sources before starting:
 		sourceMap.clear();
+		if(grid != null) grid.clear();
+		sourcesInRange.clear();
+		clearSourceHandles();
 
 		SoundBuffer buffer;
 		// loop through and copy all the sources:
@@ -355,7 +1730,11 @@ public class LibraryAudioTrack extends Library {
 					buffer.trimData(maxClipSize);
 				}
 				if(source.toStream || buffer != null) {
-					sourceMap.put(sourcename, new SourceAudioTrack(listener, source, buffer));
+					putSource(sourcename, new SourceAudioTrack(listener, source, buffer));
+				} else if(isStreamOnly(source.filenameURL)) {
+					// Too long for a normal source, so copy it as a streaming source:
+					putSource(sourcename, new SourceAudioTrack(listener, source.priority, true, source.toLoop, sourcename, source.filenameURL, null,
+						source.position.x, source.position.y, source.position.z, source.attModel, source.distOrRoll, source.temporary));
 				}
 			}
 		}
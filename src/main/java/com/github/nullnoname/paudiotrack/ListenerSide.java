@@ -0,0 +1,85 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import paulscode.sound.ListenerData;
+import paulscode.sound.Vector3D;
+
+/**
+ * The ListenerSide class is the listener's side vector (up cross lookAt, normalized), which the pan calculation needs,
+ * together with the orientation it was computed from.
+ * It is immutable, so a library can share the last one with all of its sources through an AtomicReference
+ * and only compute a new one when the listener turns, without any locking.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+final class ListenerSide {
+	/** Listener orientation the side vector was computed from */
+	private final float lookX, lookY, lookZ, upX, upY, upZ;
+
+	/** Side vector */
+	final float x, y, z;
+
+	/**
+	 * Constructor
+	 * @param l Listener
+	 */
+	ListenerSide(ListenerData l) {
+		Vector3D lookAt = l.lookAt;
+		Vector3D up = l.up;
+		lookX = lookAt.x;
+		lookY = lookAt.y;
+		lookZ = lookAt.z;
+		upX = up.x;
+		upY = up.y;
+		upZ = up.z;
+
+		float sx = upY * lookZ - lookY * upZ;
+		float sy = upZ * lookX - lookZ * upX;
+		float sz = upX * lookY - lookX * upY;
+		float length = (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+		if(length > 0) {
+			sx /= length;
+			sy /= length;
+			sz /= length;
+		}
+		x = sx;
+		y = sy;
+		z = sz;
+	}
+
+	/**
+	 * @param l Listener
+	 * @return true if this side vector was computed from the listener's current orientation
+	 */
+	boolean matches(ListenerData l) {
+		Vector3D lookAt = l.lookAt;
+		Vector3D up = l.up;
+		return lookX == lookAt.x && lookY == lookAt.y && lookZ == lookAt.z && upX == up.x && upY == up.y && upZ == up.z;
+	}
+}
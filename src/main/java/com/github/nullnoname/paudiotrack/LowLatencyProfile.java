@@ -0,0 +1,274 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.lang.reflect.Method;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+/**
+ * The LowLatencyProfile class holds the low-latency output settings, for games which need sound to follow input closely.
+ * When enabled, stream buffers are sized as a small multiple of the device's native burst (frames per buffer)
+ * instead of a multiple of AudioTrack.getMinBufferSize(), the software mixer mixes one burst at a time,
+ * and AudioTracks are created in the low-latency performance mode where available (Android 8.0 or later).
+ * Sounds should also be played at the native sample rate, see {@link LibraryAudioTrack#setCanonicalFormat(boolean)}.
+ *<br><br>
+ * The native sample rate and burst come from AudioManager.getProperty() (Android 4.2 or later), which needs a Context,
+ * so call {@link #init(Context)} once before the sound system starts. Without it, the native sample rate still comes
+ * from AudioTrack, but stream buffers stay at the minimum buffer size.
+ * Newer APIs are called by reflection, so this class is safe to use on older devices.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class LowLatencyProfile {
+	/**
+	 * AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE (API 17)
+	 */
+	private static final String PROPERTY_OUTPUT_SAMPLE_RATE = "android.media.property.OUTPUT_SAMPLE_RATE";
+
+	/**
+	 * AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER (API 17)
+	 */
+	private static final String PROPERTY_OUTPUT_FRAMES_PER_BUFFER = "android.media.property.OUTPUT_FRAMES_PER_BUFFER";
+
+	/**
+	 * AudioTrack.PERFORMANCE_MODE_LOW_LATENCY (API 26)
+	 */
+	private static final int PERFORMANCE_MODE_LOW_LATENCY = 1;
+
+	/**
+	 * AudioAttributes.USAGE_GAME (API 21)
+	 */
+	private static final int USAGE_GAME = 14;
+
+	/**
+	 * AudioAttributes.CONTENT_TYPE_SONIFICATION (API 21)
+	 */
+	private static final int CONTENT_TYPE_SONIFICATION = 4;
+
+	/**
+	 * true if the low-latency profile is used
+	 */
+	private static boolean enabled = false;
+
+	/**
+	 * Stream buffer size in native bursts
+	 */
+	private static int burstMultiplier = 2;
+
+	/**
+	 * Native output sample rate (0 if not known yet)
+	 */
+	private static int nativeSampleRate = 0;
+
+	/**
+	 * Native frames per buffer (0 if unknown)
+	 */
+	private static int framesPerBurst = 0;
+
+	/**
+	 * true once the AudioTrack.Builder methods have been looked up
+	 */
+	private static boolean builderChecked = false;
+
+	/**
+	 * Reflected AudioFormat.Builder, AudioAttributes.Builder and AudioTrack.Builder methods (null if not available)
+	 */
+	private static Class<?> formatBuilderClass, attributesBuilderClass, trackBuilderClass;
+	private static Method setSampleRate, setChannelMask, setEncoding, buildFormat;
+	private static Method setUsage, setContentType, buildAttributes;
+	private static Method setAudioAttributes, setAudioFormat, setBufferSizeInBytes, setTransferMode, setPerformanceMode, buildTrack;
+
+	/**
+	 * @return true if the low-latency profile is used
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enable or disable the low-latency profile. Takes effect for AudioTracks created afterwards
+	 * (the software mixer's output is created when the library is initialized).
+	 * @param enabled true to enable
+	 */
+	public static void setEnabled(boolean enabled) {
+		LowLatencyProfile.enabled = enabled;
+	}
+
+	/**
+	 * @return Stream buffer size in native bursts
+	 */
+	public static int getBurstMultiplier() {
+		return burstMultiplier;
+	}
+
+	/**
+	 * Set the stream buffer size in native bursts. 2 is the lowest latency, raise it if the sound breaks up.
+	 * @param burstMultiplier Number of bursts (minimum 1)
+	 */
+	public static void setBurstMultiplier(int burstMultiplier) {
+		LowLatencyProfile.burstMultiplier = Math.max(1, burstMultiplier);
+	}
+
+	/**
+	 * Query the native output sample rate and frames per buffer from the AudioManager.
+	 * @param context Any Context
+	 * @return true if the native frames per buffer is known now
+	 */
+	public static synchronized boolean init(Context context) {
+		try {
+			Object audioManager = context.getSystemService(Context.AUDIO_SERVICE);
+			Method getProperty = AudioManager.class.getMethod("getProperty", String.class);
+			int rate = parseInt((String)getProperty.invoke(audioManager, PROPERTY_OUTPUT_SAMPLE_RATE));
+			int frames = parseInt((String)getProperty.invoke(audioManager, PROPERTY_OUTPUT_FRAMES_PER_BUFFER));
+			if(rate > 0) nativeSampleRate = rate;
+			if(frames > 0) framesPerBurst = frames;
+		} catch (Exception e) {
+			// AudioManager.getProperty() needs Android 4.2
+		}
+		return framesPerBurst > 0;
+	}
+
+	/**
+	 * @param value String from AudioManager.getProperty()
+	 * @return Parsed value, or 0 if null or not a number
+	 */
+	private static int parseInt(String value) {
+		if(value == null) return 0;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return Native output sample rate of the device
+	 */
+	public static synchronized int getNativeSampleRate() {
+		if(nativeSampleRate <= 0) {
+			int rate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+			nativeSampleRate = (rate > 0) ? rate : 44100;
+		}
+		return nativeSampleRate;
+	}
+
+	/**
+	 * @return Native frames per buffer (burst size), or 0 if unknown
+	 */
+	public static synchronized int getFramesPerBurst() {
+		return framesPerBurst;
+	}
+
+	/**
+	 * Get the stream buffer size to use under the low-latency profile
+	 * @param minBufferSize AudioTrack.getMinBufferSize() of the format
+	 * @param bytesPerFrame Bytes per frame of the format
+	 * @return Buffer size in bytes (never below minBufferSize)
+	 */
+	public static int getStreamBufferSize(int minBufferSize, int bytesPerFrame) {
+		int frames = getFramesPerBurst();
+		if(frames <= 0)
+			return minBufferSize;
+		return Math.max(minBufferSize, frames * burstMultiplier * bytesPerFrame);
+	}
+
+	/**
+	 * @return true if AudioTracks can be created in the low-latency performance mode (Android 8.0 or later)
+	 */
+	public static synchronized boolean isPerformanceModeAvailable() {
+		if(!builderChecked) {
+			builderChecked = true;
+			try {
+				Class<?> attributesClass = Class.forName("android.media.AudioAttributes");
+				Class<?> formatClass = Class.forName("android.media.AudioFormat");
+				formatBuilderClass = Class.forName("android.media.AudioFormat$Builder");
+				attributesBuilderClass = Class.forName("android.media.AudioAttributes$Builder");
+				trackBuilderClass = Class.forName("android.media.AudioTrack$Builder");
+				setSampleRate = formatBuilderClass.getMethod("setSampleRate", int.class);
+				setChannelMask = formatBuilderClass.getMethod("setChannelMask", int.class);
+				setEncoding = formatBuilderClass.getMethod("setEncoding", int.class);
+				buildFormat = formatBuilderClass.getMethod("build");
+				setUsage = attributesBuilderClass.getMethod("setUsage", int.class);
+				setContentType = attributesBuilderClass.getMethod("setContentType", int.class);
+				buildAttributes = attributesBuilderClass.getMethod("build");
+				setAudioAttributes = trackBuilderClass.getMethod("setAudioAttributes", attributesClass);
+				setAudioFormat = trackBuilderClass.getMethod("setAudioFormat", formatClass);
+				setBufferSizeInBytes = trackBuilderClass.getMethod("setBufferSizeInBytes", int.class);
+				setTransferMode = trackBuilderClass.getMethod("setTransferMode", int.class);
+				setPerformanceMode = trackBuilderClass.getMethod("setPerformanceMode", int.class);
+				buildTrack = trackBuilderClass.getMethod("build");
+			} catch (Exception e) {
+				trackBuilderClass = null;
+			}
+		}
+		return trackBuilderClass != null;
+	}
+
+	/**
+	 * Create an AudioTrack. When the profile is enabled and the device supports it,
+	 * the track is built with the low-latency performance mode and game usage.
+	 * Otherwise (or if that fails) the plain STREAM_MUSIC constructor is used.
+	 * @param sampleRate Sample rate
+	 * @param channelConfig Channel mask (AudioFormat.CHANNEL_OUT_*)
+	 * @param encoding Encoding (AudioFormat.ENCODING_*)
+	 * @param bufferSize Buffer size in bytes
+	 * @param mode AudioTrack.MODE_STATIC or AudioTrack.MODE_STREAM
+	 * @return AudioTrack
+	 * @throws IllegalArgumentException If the AudioTrack constructor does
+	 */
+	public static AudioTrack newAudioTrack(int sampleRate, int channelConfig, int encoding, int bufferSize, int mode) {
+		if(enabled && isPerformanceModeAvailable()) {
+			try {
+				Object formatBuilder = formatBuilderClass.getConstructor().newInstance();
+				setSampleRate.invoke(formatBuilder, sampleRate);
+				setChannelMask.invoke(formatBuilder, channelConfig);
+				setEncoding.invoke(formatBuilder, encoding);
+				Object format = buildFormat.invoke(formatBuilder);
+
+				Object attributesBuilder = attributesBuilderClass.getConstructor().newInstance();
+				setUsage.invoke(attributesBuilder, USAGE_GAME);
+				setContentType.invoke(attributesBuilder, CONTENT_TYPE_SONIFICATION);
+				Object attributes = buildAttributes.invoke(attributesBuilder);
+
+				Object trackBuilder = trackBuilderClass.getConstructor().newInstance();
+				setAudioAttributes.invoke(trackBuilder, attributes);
+				setAudioFormat.invoke(trackBuilder, format);
+				setBufferSizeInBytes.invoke(trackBuilder, bufferSize);
+				setTransferMode.invoke(trackBuilder, mode);
+				setPerformanceMode.invoke(trackBuilder, PERFORMANCE_MODE_LOW_LATENCY);
+				return (AudioTrack)buildTrack.invoke(trackBuilder);
+			} catch (Exception e) {
+				// Fall back to the constructor below
+			}
+		}
+		return new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig, encoding, bufferSize, mode);
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import paulscode.sound.PAudioFormat;
+import paulscode.sound.SoundBuffer;
+
+/**
+ * The PcmConverter class converts decoded sounds to 16-bit PCM at a given sample rate, keeping the number of channels.
+ * Resampling uses a Blackman-windowed sinc filter, which also low-passes the sound when the rate goes down.
+ * Input is 8-bit unsigned or 16-bit little-endian signed PCM (what AudioTrack plays), output is 16-bit little-endian signed.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class PcmConverter {
+	/** Number of zero crossings on each side of the filter kernel */
+	private static final int ZERO_CROSSINGS = 16;
+
+	/** Number of kernel table entries per zero crossing */
+	private static final int TABLE_RESOLUTION = 256;
+
+	/** Kernel table: windowed sinc from 0 to ZERO_CROSSINGS, one extra entry for interpolation */
+	private static final float[] kernel = makeKernel();
+
+	/**
+	 * @return Kernel table
+	 */
+	private static float[] makeKernel() {
+		int size = ZERO_CROSSINGS * TABLE_RESOLUTION + 2;
+		float[] table = new float[size];
+		for(int i = 0; i < size; i++) {
+			double x = (double)i / TABLE_RESOLUTION;
+			if(x >= ZERO_CROSSINGS) {
+				table[i] = 0f;
+				continue;
+			}
+			double sinc = (i == 0) ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+			double w = x / ZERO_CROSSINGS;
+			double window = 0.42 + 0.5 * Math.cos(Math.PI * w) + 0.08 * Math.cos(2.0 * Math.PI * w);
+			table[i] = (float)(sinc * window);
+		}
+		return table;
+	}
+
+	/**
+	 * Check if a format is already 16-bit at the target rate.
+	 * @param format Audio format
+	 * @param sampleRate Target sample rate
+	 * @return true if nothing would be converted
+	 */
+	public static boolean isCanonical(PAudioFormat format, int sampleRate) {
+		return format.getSampleSizeInBits() == 16 && (int)format.getSampleRate() == sampleRate;
+	}
+
+	/**
+	 * Compute the size of a converted sound without converting it.
+	 * @param buffer Sound
+	 * @param sampleRate Target sample rate
+	 * @return Size in bytes after conversion
+	 */
+	public static long convertedSize(SoundBuffer buffer, int sampleRate) {
+		PAudioFormat format = buffer.audioFormat;
+		int channels = (format.getChannels() == 1) ? 1 : 2;
+		long inFrames = buffer.audioData.length / ((format.getSampleSizeInBits() / 8) * channels);
+		long outFrames = (long)Math.ceil(inFrames * (double)sampleRate / format.getSampleRate());
+		return outFrames * channels * 2;
+	}
+
+	/**
+	 * Convert a sound to 16-bit PCM at the given sample rate.
+	 * @param buffer Sound
+	 * @param sampleRate Target sample rate
+	 * @return Converted sound, or the same SoundBuffer if it is already in that format
+	 */
+	public static SoundBuffer convert(SoundBuffer buffer, int sampleRate) {
+		PAudioFormat format = buffer.audioFormat;
+		if(isCanonical(format, sampleRate))
+			return buffer;
+
+		int channels = (format.getChannels() == 1) ? 1 : 2;
+		float[][] in = toFloat(buffer.audioData, format.getSampleSizeInBits() == 8, channels);
+		int inRate = (int)format.getSampleRate();
+
+		byte[] out;
+		if(inRate == sampleRate) {
+			out = toPcm16(in, in[0].length);
+		} else {
+			int outFrames = (int)Math.ceil(in[0].length * (double)sampleRate / inRate);
+			float[][] resampled = new float[channels][];
+			for(int c = 0; c < channels; c++) {
+				resampled[c] = resample(in[c], inRate, sampleRate, outFrames);
+			}
+			out = toPcm16(resampled, outFrames);
+		}
+
+		return new SoundBuffer(out, new PAudioFormat(sampleRate, 16, channels, true, false));
+	}
+
+	/**
+	 * Split PCM data into one float array per channel.
+	 * @param data PCM data
+	 * @param eightBit true for 8-bit unsigned, false for 16-bit little-endian signed
+	 * @param channels Number of channels
+	 * @return Samples (-32768 to 32767) of each channel
+	 */
+	private static float[][] toFloat(byte[] data, boolean eightBit, int channels) {
+		int bytesPerSample = eightBit ? 1 : 2;
+		int frames = data.length / (bytesPerSample * channels);
+		float[][] out = new float[channels][frames];
+		int index = 0;
+		for(int f = 0; f < frames; f++) {
+			for(int c = 0; c < channels; c++) {
+				if(eightBit) {
+					out[c][f] = ((data[index] & 0xFF) - 128) << 8;
+				} else {
+					out[c][f] = (short)((data[index] & 0xFF) | (data[index + 1] << 8));
+				}
+				index += bytesPerSample;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Interleave channels into 16-bit little-endian PCM, clipping as needed.
+	 * @param in Samples of each channel
+	 * @param frames Number of frames
+	 * @return PCM data
+	 */
+	private static byte[] toPcm16(float[][] in, int frames) {
+		int channels = in.length;
+		byte[] out = new byte[frames * channels * 2];
+		int index = 0;
+		for(int f = 0; f < frames; f++) {
+			for(int c = 0; c < channels; c++) {
+				float v = in[c][f];
+				int s = (int)((v >= 0) ? v + 0.5f : v - 0.5f);
+				if(s > 32767) s = 32767;
+				else if(s < -32768) s = -32768;
+				out[index++] = (byte)s;
+				out[index++] = (byte)(s >> 8);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Resample one channel with the windowed sinc filter.
+	 * @param in Input samples
+	 * @param inRate Input sample rate
+	 * @param outRate Output sample rate
+	 * @param outFrames Number of output samples
+	 * @return Output samples
+	 */
+	private static float[] resample(float[] in, int inRate, int outRate, int outFrames) {
+		float[] out = new float[outFrames];
+		double step = (double)inRate / outRate;
+		// Lower the cutoff when downsampling, so nothing above the new Nyquist frequency aliases
+		double cutoff = Math.min(1.0, (double)outRate / inRate);
+		double halfWidth = ZERO_CROSSINGS / cutoff;
+		int inFrames = in.length;
+
+		for(int n = 0; n < outFrames; n++) {
+			double t = n * step;
+			int first = (int)Math.ceil(t - halfWidth);
+			int last = (int)Math.floor(t + halfWidth);
+			if(first < 0) first = 0;
+			if(last > inFrames - 1) last = inFrames - 1;
+
+			double sum = 0;
+			double weights = 0;
+			for(int k = first; k <= last; k++) {
+				double pos = Math.abs(t - k) * cutoff * TABLE_RESOLUTION;
+				int i = (int)pos;
+				if(i >= kernel.length - 1) continue;
+				double frac = pos - i;
+				double w = kernel[i] + (kernel[i + 1] - kernel[i]) * frac;
+				sum += in[k] * w;
+				weights += w;
+			}
+			// Normalizing keeps unity gain, also near the ends where part of the kernel is missing
+			out[n] = (weights != 0) ? (float)(sum / weights) : 0f;
+		}
+		return out;
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+
+import paulscode.sound.FilenameURL;
+import paulscode.sound.PAudioFormat;
+import paulscode.sound.SoundBuffer;
+import paulscode.sound.SoundSystemConfig;
+import paulscode.sound.SoundSystemLogger;
+
+/**
+ * The PcmDiskCache class stores decoded sounds in a directory, so they don't have to be decoded again on the next start.
+ * Each file holds the PCM data and its PAudioFormat. Files are keyed by the URL plus the size and modification time
+ * of the original file, so a changed sound is decoded again. Assets can't be dated one by one, so their key holds
+ * the asset version instead (see {@link #setDefaultAssetVersion(Context)}); assets are not cached until it is set.
+ * Other URLs are keyed by their content length, and not cached if it is unknown.
+ * The key also holds a variant string describing any conversion applied after decoding (such as the target format),
+ * so data converted under one setting is never served under another.
+ * Cached files are read through a memory-mapped buffer.
+ * It is disabled until a directory is set. All methods may be called from any thread.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class PcmDiskCache {
+	/** File signature */
+	private static final int MAGIC = 0x50434D43;	// "PCMC"
+
+	/** File format version (3: keys include the asset version, the signed flag comes from the format) */
+	private static final int VERSION = 3;
+
+	/** File extension */
+	private static final String EXTENSION = ".pcm";
+
+	/**
+	 * Default directory for new caches (null to disable)
+	 */
+	private static File defaultDirectory = null;
+
+	/**
+	 * Default asset version for new caches (null if unknown)
+	 */
+	private static String defaultAssetVersion = null;
+
+	/**
+	 * Directory of the cached files (null if disabled)
+	 */
+	private File directory;
+
+	/**
+	 * Version of the assets, which changes whenever they may have changed (null if unknown)
+	 */
+	private String assetVersion;
+
+	/**
+	 * Processes status messages, warnings, and error messages.
+	 */
+	private SoundSystemLogger logger;
+
+	/**
+	 * @return Default directory for new caches (null if disabled)
+	 */
+	public static File getDefaultDirectory() {
+		return defaultDirectory;
+	}
+
+	/**
+	 * Set the default directory for new caches, such as new File(context.getCacheDir(), "pcm").
+	 * To cache assets, also call {@link #setDefaultAssetVersion(Context)}.
+	 * @param defaultDirectory Default directory (null to disable)
+	 */
+	public static void setDefaultDirectory(File defaultDirectory) {
+		PcmDiskCache.defaultDirectory = defaultDirectory;
+	}
+
+	/**
+	 * @return Default asset version for new caches (null if unknown)
+	 */
+	public static String getDefaultAssetVersion() {
+		return defaultAssetVersion;
+	}
+
+	/**
+	 * Set the default asset version for new caches. It must change whenever any asset may have changed,
+	 * such as the app's version code.
+	 * @param defaultAssetVersion Default asset version (null if unknown, which disables caching of assets)
+	 */
+	public static void setDefaultAssetVersion(String defaultAssetVersion) {
+		PcmDiskCache.defaultAssetVersion = defaultAssetVersion;
+	}
+
+	/**
+	 * Set the default asset version for new caches from the size and modification time of the app's APK,
+	 * which change on every install or update.
+	 * @param context Context of the app
+	 */
+	public static void setDefaultAssetVersion(Context context) {
+		File apk = new File(context.getApplicationInfo().sourceDir);
+		setDefaultAssetVersion(apk.length() + "@" + apk.lastModified());
+	}
+
+	/**
+	 * Constructor. Uses the default directory.
+	 */
+	public PcmDiskCache() {
+		this(defaultDirectory);
+	}
+
+	/**
+	 * Constructor
+	 * @param directory Directory of the cached files (null to disable)
+	 */
+	public PcmDiskCache(File directory) {
+		this.directory = directory;
+		this.assetVersion = defaultAssetVersion;
+		this.logger = SoundSystemConfig.getLogger();
+	}
+
+	/**
+	 * @return Version of the assets (null if unknown)
+	 */
+	public String getAssetVersion() {
+		return assetVersion;
+	}
+
+	/**
+	 * Set the version of the assets. It must change whenever any asset may have changed.
+	 * @param assetVersion Asset version (null if unknown, which disables caching of assets)
+	 */
+	public void setAssetVersion(String assetVersion) {
+		this.assetVersion = assetVersion;
+	}
+
+	/**
+	 * @return true if a directory is set
+	 */
+	public boolean enabled() {
+		return directory != null;
+	}
+
+	/**
+	 * Read a cached sound, as it was decoded.
+	 * @param filenameURL Filename/URL of the original sound file
+	 * @return Sound, or null if it isn't cached (or the original has changed)
+	 */
+	public SoundBuffer read(FilenameURL filenameURL) {
+		return read(filenameURL, null);
+	}
+
+	/**
+	 * Read a cached sound.
+	 * @param filenameURL Filename/URL of the original sound file
+	 * @param variant Conversion applied after decoding (null for none)
+	 * @return Sound, or null if it isn't cached (or the original has changed)
+	 */
+	public SoundBuffer read(FilenameURL filenameURL, String variant) {
+		if(directory == null || filenameURL == null) return null;
+		String key = makeKey(filenameURL, variant);
+		if(key == null) return null;
+		File file = getFile(key);
+		if(!file.isFile()) return null;
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if(map.getInt() != MAGIC || map.getInt() != VERSION) return null;
+
+			// Check the key itself, in case two keys have the same hash
+			byte[] keyBytes = new byte[map.getInt()];
+			map.get(keyBytes);
+			if(!key.equals(new String(keyBytes, "UTF-8"))) return null;
+
+			float sampleRate = map.getFloat();
+			int sampleSizeInBits = map.getInt();
+			int channels = map.getInt();
+			boolean signed = map.get() != 0;
+			boolean bigEndian = map.get() != 0;
+			int length = map.getInt();
+			if(length < 0 || length > map.remaining()) return null;
+
+			byte[] data = new byte[length];
+			map.get(data);
+
+			message("Loaded decoded " + filenameURL.getFilename() + " from the disk cache");
+			return new SoundBuffer(data, new PAudioFormat(sampleRate, sampleSizeInBits, channels, signed, bigEndian));
+		} catch (Exception e) {
+			importantMessage("Unable to read " + file + " from the disk cache");
+			return null;
+		} finally {
+			if(raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Write a sound as it was decoded.
+	 * @param filenameURL Filename/URL of the original sound file
+	 * @param buffer Decoded sound
+	 * @return true if written
+	 */
+	public boolean write(FilenameURL filenameURL, SoundBuffer buffer) {
+		return write(filenameURL, null, buffer);
+	}
+
+	/**
+	 * Write a decoded sound. The file is written under a temporary name first, so a half-written file is never read.
+	 * @param filenameURL Filename/URL of the original sound file
+	 * @param variant Conversion applied after decoding (null for none)
+	 * @param buffer Decoded sound
+	 * @return true if written
+	 */
+	public boolean write(FilenameURL filenameURL, String variant, SoundBuffer buffer) {
+		if(directory == null || filenameURL == null || buffer == null || buffer.audioData == null || buffer.audioFormat == null)
+			return false;
+		String key = makeKey(filenameURL, variant);
+		if(key == null) return false;
+		if(!directory.isDirectory() && !directory.mkdirs()) return false;
+
+		File file = getFile(key);
+		File tempFile = null;
+		DataOutputStream out = null;
+		try {
+			tempFile = File.createTempFile("pcm", ".tmp", directory);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+			PAudioFormat format = buffer.audioFormat;
+			byte[] keyBytes = key.getBytes("UTF-8");
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(keyBytes.length);
+			out.write(keyBytes);
+			out.writeFloat(format.getSampleRate());
+			out.writeInt(format.getSampleSizeInBits());
+			out.writeInt(format.getChannels());
+			out.writeByte(format.isSigned() ? 1 : 0);
+			out.writeByte(format.isBigEndian() ? 1 : 0);
+			out.writeInt(buffer.audioData.length);
+			out.write(buffer.audioData);
+			out.close();
+			out = null;
+
+			if(file.exists()) file.delete();
+			if(!tempFile.renameTo(file)) {
+				tempFile.delete();
+				return false;
+			}
+			return true;
+		} catch (Exception e) {
+			importantMessage("Unable to write " + file + " to the disk cache");
+			if(tempFile != null) tempFile.delete();
+			return false;
+		} finally {
+			if(out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Delete every cached file.
+	 */
+	public void clear() {
+		if(directory == null) return;
+		File[] files = directory.listFiles();
+		if(files == null) return;
+		for(int i = 0; i < files.length; i++) {
+			if(files[i].getName().endsWith(EXTENSION) || files[i].getName().endsWith(".tmp"))
+				files[i].delete();
+		}
+	}
+
+	/**
+	 * Make the key of a sound file, which changes when the file changes.
+	 * @param filenameURL Filename/URL of the sound file
+	 * @param variant Conversion applied after decoding (null for none)
+	 * @return Key, or null if the file can't be identified
+	 */
+	private String makeKey(FilenameURL filenameURL, String variant) {
+		URL url = filenameURL.getURL();
+		if(url == null) return null;
+
+		StringBuilder sb = new StringBuilder(url.toString());
+		if(AssetFileInputProvider.isAssetURL(url)) {
+			// An asset may be replaced by one of the same size in an update, so the length alone can't tell
+			String version = assetVersion;
+			if(version == null) return null;
+			sb.append('|').append(filenameURL.getContentLength()).append('|').append(version);
+		} else if("file".equals(url.getProtocol())) {
+			File original = new File(url.getPath());
+			if(!original.isFile()) return null;
+			sb.append('|').append(original.length()).append('|').append(original.lastModified());
+		} else {
+			long length = filenameURL.getContentLength();
+			if(length < 0) return null;
+			sb.append('|').append(length);
+		}
+		if(variant != null)
+			sb.append('|').append(variant);
+		return sb.toString();
+	}
+
+	/**
+	 * @param key Key
+	 * @return Cached file of the key
+	 */
+	private File getFile(String key) {
+		return new File(directory, Integer.toHexString(key.hashCode()) + "_" + key.length() + EXTENSION);
+	}
+
+	/**
+	 * Prints a message.
+	 * @param message Message to print.
+	 */
+	protected void message(String message) {
+		if(logger != null) logger.message(message, 0);
+	}
+
+	/**
+	 * Prints an important message.
+	 * @param message Message to print.
+	 */
+	protected void importantMessage(String message) {
+		if(logger != null) logger.importantMessage(message, 0);
+	}
+}
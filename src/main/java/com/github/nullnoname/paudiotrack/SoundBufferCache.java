@@ -0,0 +1,293 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import paulscode.sound.SoundBuffer;
+
+/**
+ * The SoundBufferCache class is the buffer map of LibraryAudioTrack.
+ * It is a LinkedHashMap, so it can be used anywhere Library expects its HashMap,
+ * and it keeps the total size of the decoded sound data under a budget by evicting the least recently used buffers.
+ * The map itself stays in insertion order, so get() never changes it and code iterating it is safe;
+ * recency is tracked in a private map, which only {@link #lookup(String)} and put() touch.
+ * Only buffers which were loaded from a file are evicted (they are loaded again the next time they are needed),
+ * and never while a source is using them.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class SoundBufferCache extends LinkedHashMap<String, SoundBuffer> {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default budget in bytes for new caches (0 for no limit)
+	 */
+	private static long defaultMaxBytes = 64L * 1024L * 1024L;
+
+	/**
+	 * The library whose sources may be using the buffers
+	 */
+	private final LibraryAudioTrack library;
+
+	/**
+	 * Budget in bytes (0 for no limit)
+	 */
+	private long maxBytes;
+
+	/**
+	 * Size of each buffer when it was added, in access order (least recently used first)
+	 */
+	private final LinkedHashMap<String, Integer> sizes = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+
+	/**
+	 * Scratch map of the buffers used by sources, reused by every trim()
+	 */
+	private final IdentityHashMap<SoundBuffer, Boolean> inUse = new IdentityHashMap<SoundBuffer, Boolean>();
+
+	/**
+	 * Scratch list of the buffers to evict, reused by every trim()
+	 */
+	private final ArrayList<String> victims = new ArrayList<String>();
+
+	/**
+	 * Buffers which were loaded from a file and can be loaded again
+	 */
+	private final HashSet<String> reloadable = new HashSet<String>();
+
+	/**
+	 * Total size of the buffers in bytes
+	 */
+	private long totalBytes = 0;
+
+	/**
+	 * Number of lookups which found the buffer
+	 */
+	private long hits = 0;
+
+	/**
+	 * Number of lookups which had to load the buffer
+	 */
+	private long misses = 0;
+
+	/**
+	 * Number of buffers evicted to stay under the budget
+	 */
+	private long evictions = 0;
+
+	/**
+	 * @return Default budget in bytes for new caches (0 for no limit)
+	 */
+	public static long getDefaultMaxBytes() {
+		return defaultMaxBytes;
+	}
+
+	/**
+	 * Set the default budget for new caches
+	 * @param defaultMaxBytes Default budget in bytes (0 for no limit)
+	 */
+	public static void setDefaultMaxBytes(long defaultMaxBytes) {
+		SoundBufferCache.defaultMaxBytes = defaultMaxBytes;
+	}
+
+	/**
+	 * Constructor
+	 * @param library The library whose sources may be using the buffers
+	 */
+	public SoundBufferCache(LibraryAudioTrack library) {
+		super(16, 0.75f, false);
+		this.library = library;
+		this.maxBytes = defaultMaxBytes;
+	}
+
+	/**
+	 * Get a buffer and count it as a hit or miss.
+	 * @param filename Filename or identifier
+	 * @return SoundBuffer, or null if not loaded
+	 */
+	public SoundBuffer lookup(String filename) {
+		SoundBuffer buffer = get(filename);
+		if(buffer != null) {
+			hits++;
+			// Mark it as recently used
+			sizes.get(filename);
+		} else
+			misses++;
+		return buffer;
+	}
+
+	/**
+	 * Add a buffer which was loaded from a file, so it may be evicted and loaded again later.
+	 * @param filename Filename
+	 * @param buffer SoundBuffer
+	 */
+	public void putReloadable(String filename, SoundBuffer buffer) {
+		put(filename, buffer);
+		reloadable.add(filename);
+		trim(filename);
+	}
+
+	@Override
+	public SoundBuffer put(String key, SoundBuffer value) {
+		SoundBuffer old = super.put(key, value);
+		Integer oldSize = sizes.remove(key);
+		if(oldSize != null)
+			totalBytes -= oldSize.intValue();
+		reloadable.remove(key);
+		int size = sizeOf(value);
+		sizes.put(key, Integer.valueOf(size));
+		totalBytes += size;
+		return old;
+	}
+
+	@Override
+	public SoundBuffer remove(Object key) {
+		SoundBuffer old = super.remove(key);
+		Integer oldSize = sizes.remove(key);
+		if(oldSize != null)
+			totalBytes -= oldSize.intValue();
+		reloadable.remove(key);
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		sizes.clear();
+		reloadable.clear();
+		totalBytes = 0;
+	}
+
+	/**
+	 * Evict least recently used buffers until the total size is under the budget.
+	 * Buffers used by a source and buffers which can't be loaded again are kept.
+	 */
+	public void trim() {
+		trim(null);
+	}
+
+	/**
+	 * Evict least recently used buffers until the total size is under the budget.
+	 * Buffers used by a source and buffers which can't be loaded again are kept.
+	 * @param keep Filename of a buffer which must be kept too, because it is about to be used (can be null)
+	 */
+	private void trim(String keep) {
+		if(maxBytes <= 0 || totalBytes <= maxBytes)
+			return;
+
+		library.getBuffersInUse(inUse);
+		long bytes = totalBytes;
+
+		// Iteration order is least recently used first
+		Iterator<Map.Entry<String, Integer>> iter = sizes.entrySet().iterator();
+		while(iter.hasNext() && bytes > maxBytes) {
+			Map.Entry<String, Integer> entry = iter.next();
+			String key = entry.getKey();
+			if(key.equals(keep) || !reloadable.contains(key) || inUse.containsKey(get(key)))
+				continue;
+			victims.add(key);
+			bytes -= entry.getValue().intValue();
+		}
+
+		for(int i = 0; i < victims.size(); i++) {
+			remove(victims.get(i));
+			evictions++;
+		}
+		// Don't hold on to the buffers until the next trim
+		victims.clear();
+		inUse.clear();
+	}
+
+	/**
+	 * @param buffer SoundBuffer
+	 * @return Size of the sound data in bytes
+	 */
+	private static int sizeOf(SoundBuffer buffer) {
+		if(buffer == null || buffer.audioData == null)
+			return 0;
+		return buffer.audioData.length;
+	}
+
+	/**
+	 * @return Budget in bytes (0 for no limit)
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Set the budget, and evict buffers if it is exceeded.
+	 * @param maxBytes Budget in bytes (0 for no limit)
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	/**
+	 * @return Total size of the buffers in bytes
+	 */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return Number of lookups which found the buffer
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return Number of lookups which had to load the buffer
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return Number of buffers evicted to stay under the budget
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Set the hit, miss and eviction counters back to zero.
+	 */
+	public void resetStatistics() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+}
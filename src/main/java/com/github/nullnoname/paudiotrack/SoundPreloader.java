@@ -0,0 +1,342 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import paulscode.sound.FilenameURL;
+import paulscode.sound.SoundBuffer;
+
+/**
+ * The SoundPreloader class decodes sound files for LibraryAudioTrack on a bounded pool of worker threads.
+ * Requests for a filename which is already being decoded are merged into the same decode.
+ * Decoded buffers are not put into the buffer map from the worker threads; the library collects them
+ * on its own thread with {@link #drain(SoundBufferCache)}.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class SoundPreloader {
+	/**
+	 * Called when every sound of a preloadSounds() request has been decoded.
+	 */
+	public interface PreloadListener {
+		/**
+		 * @param loaded Number of sounds decoded successfully
+		 * @param failed Number of sounds which could not be decoded
+		 */
+		void soundsPreloaded(int loaded, int failed);
+	}
+
+	/**
+	 * Default number of worker threads (0 to use the number of processors)
+	 */
+	private static int defaultThreads = 0;
+
+	/**
+	 * The library which decodes the sounds
+	 */
+	private final LibraryAudioTrack library;
+
+	/**
+	 * Worker threads, created when first needed
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * Decodes which are queued, running, or finished but not collected yet
+	 */
+	private final ConcurrentHashMap<String, DecodeTask> decodes = new ConcurrentHashMap<String, DecodeTask>();
+
+	/**
+	 * @return Default number of worker threads (0 to use the number of processors)
+	 */
+	public static int getDefaultThreads() {
+		return defaultThreads;
+	}
+
+	/**
+	 * Set the default number of worker threads
+	 * @param defaultThreads Default number of worker threads (0 to use the number of processors)
+	 */
+	public static void setDefaultThreads(int defaultThreads) {
+		SoundPreloader.defaultThreads = defaultThreads;
+	}
+
+	/**
+	 * Constructor
+	 * @param library The library which decodes the sounds
+	 */
+	public SoundPreloader(LibraryAudioTrack library) {
+		this.library = library;
+	}
+
+	/**
+	 * Start decoding the specified sounds in the background. Sounds already in the buffer map are not decoded again.
+	 * @param filenameURLs Sounds to decode
+	 * @param listener Called from a worker thread when everything has been decoded (can be null)
+	 * @return Future which gives the number of sounds decoded successfully (including the ones already loaded)
+	 */
+	public Future<Integer> preload(Collection<FilenameURL> filenameURLs, PreloadListener listener) {
+		// Look at the buffer map before locking this object, since cleanup() is called while holding the library's lock
+		ArrayList<FilenameURL> toDecode = new ArrayList<FilenameURL>(filenameURLs.size());
+		int alreadyLoaded = 0;
+		Iterator<FilenameURL> iter = filenameURLs.iterator();
+		while(iter.hasNext()) {
+			FilenameURL filenameURL = iter.next();
+			if(filenameURL == null || filenameURL.getFilename() == null)
+				continue;
+			if(library.isBufferLoaded(filenameURL.getFilename()))
+				alreadyLoaded++;
+			else
+				toDecode.add(filenameURL);
+		}
+
+		ArrayList<DecodeTask> tasks = new ArrayList<DecodeTask>(toDecode.size());
+		synchronized(this) {
+			for(int i = 0; i < toDecode.size(); i++) {
+				tasks.add(getDecodeTask(toDecode.get(i)));
+			}
+		}
+
+		Batch batch = new Batch(tasks.size(), alreadyLoaded, listener);
+		for(int i = 0; i < tasks.size(); i++) {
+			tasks.get(i).addBatch(batch);
+		}
+		if(tasks.isEmpty())
+			batch.result.run();
+		return batch.result;
+	}
+
+	/**
+	 * Get the running decode of a sound, or start a new one.
+	 * @param filenameURL Sound to decode
+	 * @return Decode task
+	 */
+	private DecodeTask getDecodeTask(FilenameURL filenameURL) {
+		String filename = filenameURL.getFilename();
+		DecodeTask task = decodes.get(filename);
+		if(task == null) {
+			task = new DecodeTask(filenameURL);
+			decodes.put(filename, task);
+			getExecutor().execute(task);
+		}
+		return task;
+	}
+
+	/**
+	 * @return Worker threads
+	 */
+	private ExecutorService getExecutor() {
+		if(executor == null) {
+			int threads = (defaultThreads > 0) ? defaultThreads : Runtime.getRuntime().availableProcessors();
+			executor = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SoundPreloader-" + count.incrementAndGet());
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Wait for the decode of a sound if it has been requested, and collect it.
+	 * @param filename Filename
+	 * @return Decoded buffer, or null if the sound has not been requested or could not be decoded
+	 */
+	public SoundBuffer await(String filename) {
+		DecodeTask task = decodes.get(filename);
+		if(task == null)
+			return null;
+		try {
+			// Decode it on this thread if no worker has started yet (does nothing if one has)
+			task.run();
+			return task.get();
+		} catch (Exception e) {
+			return null;
+		} finally {
+			decodes.remove(filename);
+		}
+	}
+
+	/**
+	 * Put every finished decode into the buffer map. Must be called from the library's thread.
+	 * @param cache Buffer map
+	 */
+	public void drain(SoundBufferCache cache) {
+		if(decodes.isEmpty())
+			return;
+		Iterator<Map.Entry<String, DecodeTask>> iter = decodes.entrySet().iterator();
+		while(iter.hasNext()) {
+			Map.Entry<String, DecodeTask> entry = iter.next();
+			DecodeTask task = entry.getValue();
+			if(!task.isDone())
+				continue;
+			iter.remove();
+			SoundBuffer buffer = null;
+			try {
+				buffer = task.get();
+			} catch (Exception e) {}
+			if(buffer != null && cache.get(entry.getKey()) == null)
+				cache.putReloadable(entry.getKey(), buffer);
+		}
+	}
+
+	/**
+	 * Stop the worker threads and forget the decodes which haven't been collected.
+	 * Decodes which haven't finished are cancelled, so the batches waiting for them complete (counting them as failed).
+	 */
+	public synchronized void cleanup() {
+		if(executor != null) {
+			List<Runnable> queued = executor.shutdownNow();
+			for(int i = 0; i < queued.size(); i++) {
+				Runnable task = queued.get(i);
+				if(task instanceof Future)
+					((Future<?>)task).cancel(false);
+			}
+			executor = null;
+		}
+		// Running decodes may not notice the interrupt, so cancel them too
+		Iterator<DecodeTask> iter = decodes.values().iterator();
+		while(iter.hasNext()) {
+			iter.next().cancel(false);
+		}
+		decodes.clear();
+	}
+
+	/**
+	 * Decodes one sound and notifies every batch waiting for it.
+	 */
+	private class DecodeTask extends FutureTask<SoundBuffer> {
+		/** Batches waiting for this decode */
+		private final ArrayList<Batch> batches = new ArrayList<Batch>(1);
+
+		DecodeTask(final FilenameURL filenameURL) {
+			super(new Callable<SoundBuffer>() {
+				public SoundBuffer call() {
+					return library.decodeSound(filenameURL);
+				}
+			});
+		}
+
+		/**
+		 * Notify the batch when this decode finishes (right away if it already has).
+		 * @param batch Batch
+		 */
+		void addBatch(Batch batch) {
+			synchronized(batches) {
+				if(!isDone()) {
+					batches.add(batch);
+					return;
+				}
+			}
+			batch.finished(succeeded());
+		}
+
+		/**
+		 * @return True if the sound was decoded successfully
+		 */
+		private boolean succeeded() {
+			try {
+				return get() != null;
+			} catch (Exception e) {
+				return false;
+			}
+		}
+
+		@Override
+		protected void done() {
+			boolean success = succeeded();
+			synchronized(batches) {
+				for(int i = 0; i < batches.size(); i++) {
+					batches.get(i).finished(success);
+				}
+				batches.clear();
+			}
+		}
+	}
+
+	/**
+	 * One preload() request.
+	 */
+	private static class Batch {
+		/** Number of sounds not decoded yet */
+		private final AtomicInteger remaining;
+		/** Number of sounds decoded successfully */
+		private final AtomicInteger loaded;
+		/** Number of sounds which could not be decoded */
+		private final AtomicInteger failed = new AtomicInteger();
+		/** Completes when the last sound is decoded */
+		final FutureTask<Integer> result;
+
+		/**
+		 * Constructor
+		 * @param count Number of sounds to decode
+		 * @param alreadyLoaded Number of sounds which were already loaded (counted as decoded successfully)
+		 * @param listener Called when the last sound is decoded (can be null)
+		 */
+		Batch(int count, int alreadyLoaded, final PreloadListener listener) {
+			remaining = new AtomicInteger(count);
+			loaded = new AtomicInteger(alreadyLoaded);
+			result = new FutureTask<Integer>(new Callable<Integer>() {
+				public Integer call() {
+					if(listener != null)
+						listener.soundsPreloaded(loaded.get(), failed.get());
+					return Integer.valueOf(loaded.get());
+				}
+			});
+		}
+
+		/**
+		 * @param success True if the sound was decoded successfully
+		 */
+		void finished(boolean success) {
+			if(success)
+				loaded.incrementAndGet();
+			else
+				failed.incrementAndGet();
+			if(remaining.decrementAndGet() == 0)
+				result.run();
+		}
+	}
+}
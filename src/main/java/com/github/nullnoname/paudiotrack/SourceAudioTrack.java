@@ -1,6 +1,7 @@
 package com.github.nullnoname.paudiotrack;
 
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import paulscode.sound.Channel;
 import paulscode.sound.FilenameURL;
@@ -65,6 +66,47 @@ public class SourceAudioTrack extends Source {
 	 */
 	private float pan = 0.0f;
 
+	/**
+	 * true while positionChanged() is recomputing everything, so the channel is only updated once at the end.
+	 */
+	private boolean updatingControls = false;
+
+	/**
+	 * Handle of this source in LibraryAudioTrack's handle table (-1 if it has none).
+	 */
+	int handle = -1;
+
+	/**
+	 * true if the name of this source was generated by LibraryAudioTrack for a handle source,
+	 * so it can keep it when it comes back from the source pool.
+	 */
+	boolean handleName = false;
+
+	/**
+	 * true while this source is logically playing without holding a channel (a virtual voice).
+	 */
+	private boolean virtual = false;
+
+	/**
+	 * System.nanoTime() when the virtual voice started or was rewound.
+	 */
+	private long virtualSince = 0;
+
+	/**
+	 * Position in milliseconds the virtual voice started from.
+	 */
+	private float virtualOffset = 0;
+
+	/**
+	 * Position in milliseconds the next play() starts from (0 to start at the beginning).
+	 */
+	private float resumeMillis = 0;
+
+	/**
+	 * Cached listener side vector. LibraryAudioTrack replaces it with the one shared by all of its sources.
+	 */
+	volatile AtomicReference<ListenerSide> sideCache = new AtomicReference<ListenerSide>();
+
 	/**
 	 * Constructor:  Creates a new source using the specified parameters.
 	 * @param listener Handle to information about the listener.
@@ -135,6 +177,7 @@ public class SourceAudioTrack extends Source {
 	 */
 	@Override
 	public void cleanup() {
+		virtual = false;
 		super.cleanup();
 	}
 
@@ -157,11 +200,37 @@ public class SourceAudioTrack extends Source {
 	@Override
 	public void changeSource(boolean priority, boolean toStream, boolean toLoop, String sourcename, FilenameURL filenameURL, SoundBuffer soundBuffer, float x, float y, float z, int attModel, float distOrRoll, boolean temporary) {
 		super.changeSource(priority, toStream, toLoop, sourcename, filenameURL, soundBuffer, x, y, z, attModel, distOrRoll, temporary);
+		virtual = false;
+		resumeMillis = 0;
 		if(channelAudioTrack != null)
 			channelAudioTrack.setLooping(toLoop);
 		positionChanged();
 	}
 
+	/**
+	 * Resets this finished source so it can be reinitialized with changeSource() later (see SourcePool).
+	 * It lets go of its channel and sound data, and its volume, pitch, velocity and fades go back to the defaults.
+	 */
+	public void recycle() {
+		stop();
+		if(channel != null && channel.attachedSource == this)
+			channel.attachedSource = null;
+		channel = null;
+		channelAudioTrack = null;
+		soundBuffer = null;
+		filenameURL = null;
+		sourceVolume = 1.0f;
+		pitch = 1.0f;
+		velocity.x = 0;
+		velocity.y = 0;
+		velocity.z = 0;
+		fadeOutGain = -1.0f;
+		fadeInGain = 1.0f;
+		toPlay = false;
+		preLoad = false;
+		activate();
+	}
+
 	/**
 	 * Called every time the listener's position or orientation changes.
 	 */
@@ -199,9 +268,20 @@ public class SourceAudioTrack extends Source {
 	 */
 	@Override
 	public void positionChanged() {
+		updatingControls = true;
 		calculateGain();
 		calculatePan();
 		calculatePitch();
+		updatingControls = false;
+		applyControls();
+	}
+
+	/**
+	 * Sends the calculated gain, pan and pitch to the channel, unless positionChanged() will do it later.
+	 */
+	private void applyControls() {
+		if(!updatingControls && channel != null && channel.attachedSource == this && channelAudioTrack != null)
+			channelAudioTrack.applyControls();
 	}
 
 	/**
@@ -263,6 +343,10 @@ public class SourceAudioTrack extends Source {
 
 		channelAudioTrack = (ChannelAudioTrack) channel;
 
+		// The channel may have handed its data to another channel since we last played on it:
+		if(!toStream && channelAudioTrack != null && !channelAudioTrack.holdsStaticData(soundBuffer))
+			newChannel = true;
+
 		// Make sure the channel exists:
 		// check if we are already on this channel:
 		if(newChannel) {
@@ -283,6 +367,11 @@ public class SourceAudioTrack extends Source {
 		}
 		positionChanged(); // set new pan and gain
 
+		// Continue where the virtual voice was:
+		if(resumeMillis > 0 && !toStream && channelAudioTrack != null)
+			channelAudioTrack.setStartPosition(resumeMillis);
+		resumeMillis = 0;
+
 		// See if we are already playing:
 		if(wasStopped || !playing()) {
 			if(toStream && !wasPaused) {
@@ -292,6 +381,113 @@ public class SourceAudioTrack extends Source {
 		}
 	}
 
+	/**
+	 * Stops the source.
+	 */
+	@Override
+	public void stop() {
+		virtual = false;
+		resumeMillis = 0;
+		super.stop();
+	}
+
+	/**
+	 * Pauses the source. A virtual voice remembers its position and continues from there on the next play().
+	 */
+	@Override
+	public void pause() {
+		if(virtual) {
+			resumeMillis = getPositionMillis();
+			virtual = false;
+		}
+		super.pause();
+	}
+
+	/**
+	 * Rewinds the source to the beginning.
+	 */
+	@Override
+	public void rewind() {
+		if(virtual) {
+			virtualOffset = 0;
+			virtualSince = System.nanoTime();
+		}
+		resumeMillis = 0;
+		super.rewind();
+	}
+
+	/**
+	 * @return true if this source is logically playing without holding a channel.
+	 * Virtual voices are not reported by playing(), since they don't occupy a channel.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Returns the playback position, which keeps advancing while this source is a virtual voice.
+	 * @return Position in milliseconds
+	 */
+	public float getPositionMillis() {
+		if(virtual)
+			return virtualOffset + (System.nanoTime() - virtualSince) / 1000000f * pitch;
+		if(channel != null && channel.attachedSource == this) {
+			float p = channel.millisecondsPlayed();
+			return (p > 0) ? p : 0;
+		}
+		return resumeMillis;
+	}
+
+	/**
+	 * @return Length of the sound in milliseconds, or -1 if unknown (streams)
+	 */
+	public float getLengthMillis() {
+		if(toStream || soundBuffer == null || soundBuffer.audioData == null || soundBuffer.audioFormat == null)
+			return -1;
+		PAudioFormat format = soundBuffer.audioFormat;
+		int frames = soundBuffer.audioData.length / ChannelAudioTrack.getBytesPerFrame(format);
+		return frames * 1000f / format.getSampleRate();
+	}
+
+	/**
+	 * @return true if this virtual voice has played past the end of its (non-looping) sound
+	 */
+	public boolean virtualFinished() {
+		if(!virtual || toLoop)
+			return false;
+		float length = getLengthMillis();
+		return length >= 0 && getPositionMillis() >= length;
+	}
+
+	/**
+	 * Turns this source into a virtual voice: it gives up its channel but keeps its playback position advancing.
+	 * Only normal (non-streaming) sources can be virtual.
+	 */
+	public void virtualize() {
+		if(virtual || toStream)
+			return;
+		float position = getPositionMillis();
+		if(channel != null && channel.attachedSource == this) {
+			channel.stop();
+			channel.attachedSource = null;
+		}
+		channel = null;
+		channelAudioTrack = null;
+		virtual = true;
+		virtualOffset = position;
+		virtualSince = System.nanoTime();
+	}
+
+	/**
+	 * Ends the virtual voice so the source can be played on a real channel, continuing from the current position.
+	 */
+	public void devirtualize() {
+		if(!virtual)
+			return;
+		resumeMillis = getPositionMillis();
+		virtual = false;
+	}
+
 	/**
 	 * Queues up the initial stream-buffers for the stream.
 	 * @return False if the end of the stream was reached.
@@ -351,45 +547,39 @@ public class SourceAudioTrack extends Source {
 		distanceFromListener = (float) Math.sqrt(distX * distX + distY * distY + distZ * distZ);
 
 		// Calculate the source's gain using the specified attenuation model:
-		switch(attModel) {
-			case SoundSystemConfig.ATTENUATION_LINEAR:
-				if(distanceFromListener <= 0) {
-					gain = 1.0f;
-				} else if(distanceFromListener >= distOrRoll) {
-					gain = 0.0f;
-				} else {
-					gain = 1.0f - (distanceFromListener / distOrRoll);
-				}
-				break;
-			case SoundSystemConfig.ATTENUATION_ROLLOFF:
-				if(distanceFromListener <= 0) {
-					gain = 1.0f;
-				} else {
-					float tweakFactor = 0.0005f;
-					float attenuationFactor = distOrRoll * distanceFromListener * distanceFromListener * tweakFactor;
-					// Make sure we don't do a division by zero:
-					// (rolloff should NEVER be negative)
-					if(attenuationFactor < 0)
-						attenuationFactor = 0;
-
-					gain = 1.0f / (1 + attenuationFactor);
-				}
-				break;
-			default:
-				gain = 1.0f;
-				break;
+		gain = SourceBatch.attenuate(attModel, distOrRoll, distanceFromListener);
+		gain *= SoundSystemConfig.getMasterGain() * getVolumeFactor();
+
+		// update the channel's gain:
+		if(channel != null && channel.attachedSource == this && channelAudioTrack != null) {
+			channelAudioTrack.setGain(gain);
 		}
-		// make sure gain is between 0 and 1:
-		if(gain > 1.0f)
-			gain = 1.0f;
-		if(gain < 0.0f)
-			gain = 0.0f;
+		applyControls();
+	}
 
-		gain *= sourceVolume * SoundSystemConfig.getMasterGain() * Math.abs(fadeOutGain) * fadeInGain;
+	/**
+	 * @return Source volume multiplied by the fade-in and fade-out gains
+	 */
+	public float getVolumeFactor() {
+		return sourceVolume * Math.abs(fadeOutGain) * fadeInGain;
+	}
 
-		// update the channel's gain:
+	/**
+	 * Sets the results of a batch update (see SourceBatch) and sends them to the channel.
+	 * @param distance Distance from the listener
+	 * @param gain Gain
+	 * @param pan Pan
+	 * @param pitch Pitch with the Doppler effect applied
+	 */
+	public void applySpatial(float distance, float gain, float pan, float pitch) {
+		distanceFromListener = distance;
+		this.gain = gain;
+		this.pan = pan;
 		if(channel != null && channel.attachedSource == this && channelAudioTrack != null) {
 			channelAudioTrack.setGain(gain);
+			channelAudioTrack.setPan((attModel == SoundSystemConfig.ATTENUATION_NONE) ? 0 : pan);
+			channelAudioTrack.setPitch(pitch);
+			channelAudioTrack.applyControls();
 		}
 	}
 
@@ -397,13 +587,12 @@ public class SourceAudioTrack extends Source {
 	 * Calculates the panning for this source based on its position in relation to the listener.
 	 */
 	public void calculatePan() {
-		Vector3D side = listener.up.cross(listener.lookAt);
-		side.normalize();
-		float x = position.dot(position.subtract(listener.position), side);
-		float z = position.dot(position.subtract(listener.position), listener.lookAt);
-		side = null;
-		float angle = (float) Math.atan2(x, z);
-		pan = (float) -Math.sin(angle);
+		Vector3D lookAt = listener.lookAt;
+		ListenerSide side = getSide();
+		float relX = position.x - listener.position.x;
+		float relY = position.y - listener.position.y;
+		float relZ = position.z - listener.position.z;
+		pan = SourceBatch.pan(relX, relY, relZ, side.x, side.y, side.z, lookAt.x, lookAt.y, lookAt.z);
 
 		if(channel != null && channel.attachedSource == this && channelAudioTrack != null) {
 			if(attModel == SoundSystemConfig.ATTENUATION_NONE)
@@ -411,6 +600,22 @@ public class SourceAudioTrack extends Source {
 			else
 				channelAudioTrack.setPan(pan);
 		}
+		applyControls();
+	}
+
+	/**
+	 * Get the listener's side vector, computing a new one only if the listener turned since the cached one.
+	 * Threads racing here may each compute one, which is harmless since they are the same.
+	 * @return Side vector
+	 */
+	private ListenerSide getSide() {
+		AtomicReference<ListenerSide> cache = sideCache;
+		ListenerSide side = cache.get();
+		if(side == null || !side.matches(listener)) {
+			side = new ListenerSide(listener);
+			cache.set(side);
+		}
+		return side;
 	}
 
 	/**
@@ -422,29 +627,17 @@ public class SourceAudioTrack extends Source {
 			if(SoundSystemConfig.getDopplerFactor() == 0) {
 				channelAudioTrack.setPitch(pitch);
 			} else {
-				float SS = 343.3f;
-
 				Vector3D SV = velocity;
 				Vector3D LV = listener.velocity;
-				float DV = SoundSystemConfig.getDopplerVelocity();
-				float DF = SoundSystemConfig.getDopplerFactor();
-				Vector3D SL = listener.position.subtract(position);
-
-				float vls = SL.dot(LV) / SL.length();
-				float vss = SL.dot(SV) / SL.length();
-
-				vss = min(vss, SS / DF);
-				vls = min(vls, SS / DF);
-				float newPitch = pitch * (SS * DV - DF * vls) / (SS * DV - DF * vss);
-
-				if(newPitch < 0.5f)
-					newPitch = 0.5f;
-				else if(newPitch > 2.0f)
-					newPitch = 2.0f;
+				float newPitch = SourceBatch.dopplerPitch(pitch,
+						listener.position.x - position.x, listener.position.y - position.y, listener.position.z - position.z,
+						LV.x, LV.y, LV.z, SV.x, SV.y, SV.z,
+						SoundSystemConfig.getDopplerVelocity(), SoundSystemConfig.getDopplerFactor());
 
 				channelAudioTrack.setPitch(newPitch);
 			}
 		}
+		applyControls();
 	}
 
 	public float min(float a, float b) {
@@ -0,0 +1,377 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import paulscode.sound.ListenerData;
+import paulscode.sound.SoundSystemConfig;
+import paulscode.sound.Vector3D;
+
+/**
+ * The SourceBatch class recomputes gain, pan and pitch of many sources at once.
+ * Source and listener state is copied into flat arrays on the calling thread, the math is split over a pool of
+ * worker threads, and the results are applied to the sources (and so to the channels) on the calling thread again.
+ * The math itself is shared with SourceAudioTrack, so the serial and batch paths give the same results.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class SourceBatch {
+	/** Minimum number of sources in one worker's slice */
+	private static final int MIN_SLICE = 64;
+
+	/** Sources of the current batch */
+	private SourceAudioTrack[] sources = new SourceAudioTrack[0];
+
+	/** Number of sources in the current batch */
+	private int count = 0;
+
+	/** Source state (inputs) */
+	private float[] posX, posY, posZ, velX, velY, velZ, distOrRoll, volume, basePitch;
+	private int[] attModel;
+
+	/** Results */
+	private float[] gain, pan, pitch, distance;
+
+	/** Listener state (inputs) */
+	private float listenerX, listenerY, listenerZ, listenerVelX, listenerVelY, listenerVelZ;
+	private float lookX, lookY, lookZ, sideX, sideY, sideZ;
+
+	/** Global state (inputs) */
+	private float masterGain, dopplerFactor, dopplerVelocity;
+
+	/** Worker threads, created when first needed */
+	private ExecutorService executor;
+
+	/** Number of worker threads */
+	private int threads;
+
+	/** One task per worker thread, reused for every batch */
+	private final ArrayList<Slice> slices = new ArrayList<Slice>();
+
+	/**
+	 * Constructor
+	 */
+	public SourceBatch() {
+		ensureCapacity(64);
+	}
+
+	/**
+	 * Copy the state of the sources and the listener into the arrays.
+	 * @param list Sources to update
+	 * @param listener Listener
+	 */
+	public void load(List<SourceAudioTrack> list, ListenerData listener) {
+		int n = list.size();
+		ensureCapacity(n);
+		count = n;
+		for(int i = 0; i < n; i++) {
+			SourceAudioTrack s = list.get(i);
+			sources[i] = s;
+			posX[i] = s.position.x;
+			posY[i] = s.position.y;
+			posZ[i] = s.position.z;
+			velX[i] = s.velocity.x;
+			velY[i] = s.velocity.y;
+			velZ[i] = s.velocity.z;
+			attModel[i] = s.attModel;
+			distOrRoll[i] = s.distOrRoll;
+			volume[i] = s.getVolumeFactor();
+			basePitch[i] = s.pitch;
+		}
+
+		listenerX = listener.position.x;
+		listenerY = listener.position.y;
+		listenerZ = listener.position.z;
+		listenerVelX = listener.velocity.x;
+		listenerVelY = listener.velocity.y;
+		listenerVelZ = listener.velocity.z;
+		Vector3D lookAt = listener.lookAt;
+		Vector3D up = listener.up;
+		lookX = lookAt.x;
+		lookY = lookAt.y;
+		lookZ = lookAt.z;
+		float x = up.y * lookAt.z - lookAt.y * up.z;
+		float y = up.z * lookAt.x - lookAt.z * up.x;
+		float z = up.x * lookAt.y - lookAt.x * up.y;
+		float length = (float) Math.sqrt(x * x + y * y + z * z);
+		if(length > 0) {
+			x /= length;
+			y /= length;
+			z /= length;
+		}
+		sideX = x;
+		sideY = y;
+		sideZ = z;
+
+		masterGain = SoundSystemConfig.getMasterGain();
+		dopplerFactor = SoundSystemConfig.getDopplerFactor();
+		dopplerVelocity = SoundSystemConfig.getDopplerVelocity();
+	}
+
+	/**
+	 * Compute the results, on the worker threads if there are enough sources to be worth it.
+	 */
+	public void compute() {
+		if(count < MIN_SLICE * 2 || getThreads() < 2) {
+			computeRange(0, count);
+			return;
+		}
+
+		int sliceCount = Math.min(getThreads(), count / MIN_SLICE);
+		int sliceSize = (count + sliceCount - 1) / sliceCount;
+		while(slices.size() < sliceCount) slices.add(new Slice());
+		List<Slice> tasks = slices.subList(0, sliceCount);
+		for(int i = 0; i < sliceCount; i++) {
+			Slice slice = slices.get(i);
+			slice.from = i * sliceSize;
+			slice.to = Math.min(count, slice.from + sliceSize);
+		}
+		try {
+			getExecutor().invokeAll(tasks);
+		} catch (InterruptedException e) {
+			// Finish on this thread rather than leaving the sources half updated
+			Thread.currentThread().interrupt();
+			computeRange(0, count);
+		}
+	}
+
+	/**
+	 * Apply the results to the sources. Must be called on the thread that owns the sources.
+	 */
+	public void apply() {
+		for(int i = 0; i < count; i++) {
+			sources[i].applySpatial(distance[i], gain[i], pan[i], pitch[i]);
+			sources[i] = null;
+		}
+		count = 0;
+	}
+
+	/**
+	 * Stop the worker threads.
+	 */
+	public void cleanup() {
+		if(executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		for(int i = 0; i < sources.length; i++) sources[i] = null;
+		count = 0;
+	}
+
+	/**
+	 * Compute the results for a range of sources.
+	 * @param from First index
+	 * @param to Last index + 1
+	 */
+	private void computeRange(int from, int to) {
+		boolean doppler = dopplerFactor != 0;
+		for(int i = from; i < to; i++) {
+			float relX = posX[i] - listenerX;
+			float relY = posY[i] - listenerY;
+			float relZ = posZ[i] - listenerZ;
+			float dist = (float) Math.sqrt(relX * relX + relY * relY + relZ * relZ);
+			distance[i] = dist;
+			gain[i] = attenuate(attModel[i], distOrRoll[i], dist) * volume[i] * masterGain;
+			pan[i] = pan(relX, relY, relZ, sideX, sideY, sideZ, lookX, lookY, lookZ);
+			if(doppler) {
+				pitch[i] = dopplerPitch(basePitch[i], -relX, -relY, -relZ, listenerVelX, listenerVelY, listenerVelZ,
+						velX[i], velY[i], velZ[i], dopplerVelocity, dopplerFactor);
+			} else {
+				pitch[i] = basePitch[i];
+			}
+		}
+	}
+
+	/**
+	 * Gain of a source (between 0 and 1) from its attenuation model and distance.
+	 * @param attModel Attenuation model
+	 * @param distOrRoll Fade distance or rolloff factor
+	 * @param distance Distance from the listener
+	 * @return Gain
+	 */
+	static float attenuate(int attModel, float distOrRoll, float distance) {
+		float gain;
+		switch(attModel) {
+			case SoundSystemConfig.ATTENUATION_LINEAR:
+				if(distance <= 0) {
+					gain = 1.0f;
+				} else if(distance >= distOrRoll) {
+					gain = 0.0f;
+				} else {
+					gain = 1.0f - (distance / distOrRoll);
+				}
+				break;
+			case SoundSystemConfig.ATTENUATION_ROLLOFF:
+				if(distance <= 0) {
+					gain = 1.0f;
+				} else {
+					float tweakFactor = 0.0005f;
+					float attenuationFactor = distOrRoll * distance * distance * tweakFactor;
+					// Make sure we don't do a division by zero:
+					// (rolloff should NEVER be negative)
+					if(attenuationFactor < 0)
+						attenuationFactor = 0;
+
+					gain = 1.0f / (1 + attenuationFactor);
+				}
+				break;
+			default:
+				gain = 1.0f;
+				break;
+		}
+		// make sure gain is between 0 and 1:
+		if(gain > 1.0f)
+			gain = 1.0f;
+		if(gain < 0.0f)
+			gain = 0.0f;
+		return gain;
+	}
+
+	/**
+	 * Pan of a source from its position relative to the listener.
+	 * @return -sin(atan2(x, z)), where x and z are the position along the listener's side and look-at vectors
+	 */
+	static float pan(float relX, float relY, float relZ, float sideX, float sideY, float sideZ, float lookX, float lookY, float lookZ) {
+		float x = relX * sideX + relY * sideY + relZ * sideZ;
+		float z = relX * lookX + relY * lookY + relZ * lookZ;
+		float hyp = (float) Math.sqrt(x * x + z * z);
+		return (hyp > 0) ? -x / hyp : 0.0f;
+	}
+
+	/**
+	 * Pitch of a source with the Doppler effect applied, clamped to 0.5f - 2.0f.
+	 * @param pitch Pitch set on the source
+	 * @param slX X of the vector from the source to the listener
+	 * @param slY Y of the vector from the source to the listener
+	 * @param slZ Z of the vector from the source to the listener
+	 * @param lvX Listener velocity X
+	 * @param lvY Listener velocity Y
+	 * @param lvZ Listener velocity Z
+	 * @param svX Source velocity X
+	 * @param svY Source velocity Y
+	 * @param svZ Source velocity Z
+	 * @param DV Doppler velocity
+	 * @param DF Doppler factor
+	 * @return Pitch
+	 */
+	static float dopplerPitch(float pitch, float slX, float slY, float slZ, float lvX, float lvY, float lvZ,
+			float svX, float svY, float svZ, float DV, float DF) {
+		float SS = 343.3f;
+		float slLength = (float) Math.sqrt(slX * slX + slY * slY + slZ * slZ);
+
+		float vls = 0;
+		float vss = 0;
+		if(slLength > 0) {
+			vls = (slX * lvX + slY * lvY + slZ * lvZ) / slLength;
+			vss = (slX * svX + slY * svY + slZ * svZ) / slLength;
+		}
+
+		vss = Math.min(vss, SS / DF);
+		vls = Math.min(vls, SS / DF);
+		float newPitch = pitch * (SS * DV - DF * vls) / (SS * DV - DF * vss);
+
+		if(newPitch < 0.5f)
+			newPitch = 0.5f;
+		else if(newPitch > 2.0f)
+			newPitch = 2.0f;
+		return newPitch;
+	}
+
+	/**
+	 * Grow the arrays.
+	 * @param capacity Number of sources needed
+	 */
+	private void ensureCapacity(int capacity) {
+		if(posX != null && posX.length >= capacity) return;
+		int size = Math.max(capacity, (posX == null) ? 0 : posX.length * 2);
+		SourceAudioTrack[] newSources = new SourceAudioTrack[size];
+		System.arraycopy(sources, 0, newSources, 0, sources.length);
+		sources = newSources;
+		posX = new float[size];
+		posY = new float[size];
+		posZ = new float[size];
+		velX = new float[size];
+		velY = new float[size];
+		velZ = new float[size];
+		distOrRoll = new float[size];
+		volume = new float[size];
+		basePitch = new float[size];
+		attModel = new int[size];
+		gain = new float[size];
+		pan = new float[size];
+		pitch = new float[size];
+		distance = new float[size];
+	}
+
+	/**
+	 * @return Number of worker threads
+	 */
+	private int getThreads() {
+		if(threads == 0) threads = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+		return threads;
+	}
+
+	/**
+	 * @return Worker threads, created when first needed
+	 */
+	private ExecutorService getExecutor() {
+		if(executor == null) {
+			executor = Executors.newFixedThreadPool(getThreads(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SourceBatch-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Computes one slice of the batch on a worker thread.
+	 */
+	private class Slice implements Callable<Object> {
+		/** First index */
+		int from;
+		/** Last index + 1 */
+		int to;
+
+		public Object call() {
+			computeRange(from, to);
+			return null;
+		}
+	}
+}
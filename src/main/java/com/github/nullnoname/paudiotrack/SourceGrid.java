@@ -0,0 +1,373 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import paulscode.sound.SoundSystemConfig;
+import paulscode.sound.Source;
+
+/**
+ * The SourceGrid class is a uniform grid of source positions, used by LibraryAudioTrack to find the sources
+ * which can be heard from the listener's position without going through every source.
+ * Only sources with linear attenuation have a limited range, so only they are put in cells;
+ * every other source (and linear ones with a very large fade distance) is always returned as a candidate.
+ * It is not thread-safe; LibraryAudioTrack only uses it on the thread which runs its commands.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class SourceGrid {
+	/** Default size of a cell in world units */
+	private static float defaultCellSize = 32f;
+
+	/** Linear sources with a fade distance larger than this many cells are not put in cells */
+	private static final int MAX_RADIUS_CELLS = 8;
+
+	/** Cell key of sources which are not put in cells */
+	private static final long UNBOUNDED = Long.MIN_VALUE;
+
+	/** Size of a cell in world units */
+	private final float cellSize;
+
+	/** Sources of each cell */
+	private final HashMap<CellKey, ArrayList<Source>> cells = new HashMap<CellKey, ArrayList<Source>>();
+
+	/** Placement of each source in the grid */
+	private final IdentityHashMap<Source, Placement> placements = new IdentityHashMap<Source, Placement>();
+
+	/** Sources which are always candidates */
+	private final ArrayList<Source> unbounded = new ArrayList<Source>();
+
+	/** Reusable key for looking up cells, so queries don't allocate */
+	private final CellKey probe = new CellKey(0);
+
+	/** Largest fade distance of the sources in cells */
+	private float largestRadius = 0f;
+
+	/** true if the source with the largest fade distance left its cell, so largestRadius must be recomputed */
+	private boolean radiusDirty = false;
+
+	/**
+	 * @return Default size of a cell in world units
+	 */
+	public static float getDefaultCellSize() {
+		return defaultCellSize;
+	}
+
+	/**
+	 * Set the default size of a cell. About the typical fade distance of the sources works well.
+	 * @param defaultCellSize Size of a cell in world units
+	 */
+	public static void setDefaultCellSize(float defaultCellSize) {
+		SourceGrid.defaultCellSize = defaultCellSize;
+	}
+
+	/**
+	 * Constructor
+	 */
+	public SourceGrid() {
+		this(defaultCellSize);
+	}
+
+	/**
+	 * Constructor
+	 * @param cellSize Size of a cell in world units
+	 */
+	public SourceGrid(float cellSize) {
+		this.cellSize = (cellSize > 0) ? cellSize : 32f;
+	}
+
+	/**
+	 * @return Number of sources in the grid
+	 */
+	public int size() {
+		return placements.size();
+	}
+
+	/**
+	 * Add a source, or move it to the cell of its current position and attenuation.
+	 * @param source Source
+	 */
+	public void update(Source source) {
+		if(source == null) return;
+		long key = cellOf(source);
+		float radius = (key == UNBOUNDED) ? 0f : source.distOrRoll;
+		Placement placement = placements.get(source);
+		if(placement != null && placement.key == key) {
+			// Same cell, but the fade distance may have changed
+			if(key != UNBOUNDED && radius != placement.radius) {
+				if(placement.radius >= largestRadius) radiusDirty = true;
+				placement.radius = radius;
+				if(radius > largestRadius) largestRadius = radius;
+			}
+			return;
+		}
+
+		if(placement != null) {
+			detach(source, placement);
+		} else {
+			placement = new Placement();
+			placements.put(source, placement);
+		}
+		placement.key = key;
+		placement.radius = radius;
+		if(key == UNBOUNDED) {
+			unbounded.add(source);
+		} else {
+			ArrayList<Source> cell = cells.get(probe.set(key));
+			if(cell == null) {
+				cell = new ArrayList<Source>(4);
+				cells.put(new CellKey(key), cell);
+			}
+			cell.add(source);
+			if(radius > largestRadius) largestRadius = radius;
+		}
+	}
+
+	/**
+	 * Remove a source.
+	 * @param source Source
+	 */
+	public void remove(Source source) {
+		if(source == null) return;
+		Placement placement = placements.remove(source);
+		if(placement != null) detach(source, placement);
+	}
+
+	/**
+	 * Remove every source which is no longer the one in the source map under its name.
+	 * @param sourceMap Source map
+	 */
+	public void removeMissing(Map<String, Source> sourceMap) {
+		Iterator<Map.Entry<Source, Placement>> iter = placements.entrySet().iterator();
+		while(iter.hasNext()) {
+			Map.Entry<Source, Placement> entry = iter.next();
+			Source source = entry.getKey();
+			if(sourceMap.get(source.sourcename) != source) {
+				iter.remove();
+				detach(source, entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Remove every source.
+	 */
+	public void clear() {
+		cells.clear();
+		placements.clear();
+		unbounded.clear();
+		largestRadius = 0f;
+		radiusDirty = false;
+	}
+
+	/**
+	 * Find the sources which may be heard from a position: sources in cells whose fade distance reaches it,
+	 * and every source that is not in a cell.
+	 * @param x X position of the listener
+	 * @param y Y position of the listener
+	 * @param z Z position of the listener
+	 * @param out List to add the sources to
+	 */
+	public void collect(float x, float y, float z, List<Source> out) {
+		out.addAll(unbounded);
+		if(cells.isEmpty()) return;
+
+		if(radiusDirty) recomputeRadius();
+		float r = largestRadius;
+		int minX = cellIndex(x - r), maxX = cellIndex(x + r);
+		int minY = cellIndex(y - r), maxY = cellIndex(y + r);
+		int minZ = cellIndex(z - r), maxZ = cellIndex(z + r);
+		long range = (long)(maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+
+		if(range > cells.size()) {
+			// Fewer occupied cells than cells in range, so go through the occupied ones
+			Iterator<Map.Entry<CellKey, ArrayList<Source>>> iter = cells.entrySet().iterator();
+			while(iter.hasNext()) {
+				Map.Entry<CellKey, ArrayList<Source>> entry = iter.next();
+				long key = entry.getKey().value;
+				int cx = unpack(key, 42), cy = unpack(key, 21), cz = unpack(key, 0);
+				if(cx >= minX && cx <= maxX && cy >= minY && cy <= maxY && cz >= minZ && cz <= maxZ)
+					collectCell(entry.getValue(), x, y, z, out);
+			}
+		} else {
+			for(int cx = minX; cx <= maxX; cx++) {
+				for(int cy = minY; cy <= maxY; cy++) {
+					for(int cz = minZ; cz <= maxZ; cz++) {
+						ArrayList<Source> cell = cells.get(probe.set(pack(cx, cy, cz)));
+						if(cell != null) collectCell(cell, x, y, z, out);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the sources of a cell which are within their fade distance of a position.
+	 * @param cell Sources of the cell
+	 * @param x X position
+	 * @param y Y position
+	 * @param z Z position
+	 * @param out List to add the sources to
+	 */
+	private static void collectCell(ArrayList<Source> cell, float x, float y, float z, List<Source> out) {
+		for(int i = 0; i < cell.size(); i++) {
+			Source source = cell.get(i);
+			float dx = source.position.x - x;
+			float dy = source.position.y - y;
+			float dz = source.position.z - z;
+			float r = source.distOrRoll;
+			if(dx * dx + dy * dy + dz * dz < r * r)
+				out.add(source);
+		}
+	}
+
+	/**
+	 * Remove a source from its cell or from the unbounded list.
+	 * @param source Source
+	 * @param placement Placement of the source
+	 */
+	private void detach(Source source, Placement placement) {
+		if(placement.key == UNBOUNDED) {
+			unbounded.remove(source);
+			return;
+		}
+		ArrayList<Source> cell = cells.get(probe.set(placement.key));
+		if(cell != null) {
+			cell.remove(source);
+			if(cell.isEmpty()) cells.remove(probe);
+		}
+		if(placement.radius >= largestRadius) radiusDirty = true;
+	}
+
+	/**
+	 * Find the largest fade distance of the sources in cells again, after the largest one left.
+	 */
+	private void recomputeRadius() {
+		float r = 0f;
+		Iterator<Placement> iter = placements.values().iterator();
+		while(iter.hasNext()) {
+			Placement placement = iter.next();
+			if(placement.key != UNBOUNDED && placement.radius > r) r = placement.radius;
+		}
+		largestRadius = r;
+		radiusDirty = false;
+	}
+
+	/**
+	 * @param source Source
+	 * @return Cell key for the source's position, or UNBOUNDED if its range is not limited
+	 */
+	private long cellOf(Source source) {
+		if(source.attModel != SoundSystemConfig.ATTENUATION_LINEAR || source.position == null)
+			return UNBOUNDED;
+		if(!(source.distOrRoll >= 0) || source.distOrRoll > cellSize * MAX_RADIUS_CELLS)
+			return UNBOUNDED;
+		return pack(cellIndex(source.position.x), cellIndex(source.position.y), cellIndex(source.position.z));
+	}
+
+	/**
+	 * @param v Coordinate
+	 * @return Cell index of the coordinate
+	 */
+	private int cellIndex(float v) {
+		return (int)Math.floor(v / cellSize);
+	}
+
+	/**
+	 * Pack three cell indices (21 bits each) into a key.
+	 * @param cx X index
+	 * @param cy Y index
+	 * @param cz Z index
+	 * @return Cell key
+	 */
+	private static long pack(int cx, int cy, int cz) {
+		return ((long)(cx & 0x1FFFFF) << 42) | ((long)(cy & 0x1FFFFF) << 21) | (cz & 0x1FFFFF);
+	}
+
+	/**
+	 * Get one cell index back from a key.
+	 * @param key Cell key
+	 * @param shift Bit position of the index
+	 * @return Cell index (sign-extended)
+	 */
+	private static int unpack(long key, int shift) {
+		return ((int)(key >>> shift) & 0x1FFFFF) << 11 >> 11;
+	}
+
+	/**
+	 * Cell and fade distance of a source in the grid. Kept per source and reused when it moves.
+	 */
+	private static class Placement {
+		/** Cell key, or UNBOUNDED */
+		long key;
+		/** Fade distance when it was put in the cell */
+		float radius;
+	}
+
+	/**
+	 * Mutable cell key. The grid looks cells up with one reusable instance instead of boxing a Long each time.
+	 * Keys stored in the map are never changed.
+	 */
+	private static class CellKey {
+		/** Packed cell indices */
+		long value;
+
+		/**
+		 * Constructor
+		 * @param value Packed cell indices
+		 */
+		CellKey(long value) {
+			this.value = value;
+		}
+
+		/**
+		 * @param value Packed cell indices
+		 * @return This key
+		 */
+		CellKey set(long value) {
+			this.value = value;
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)(value ^ (value >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof CellKey) && ((CellKey)obj).value == value;
+		}
+	}
+}
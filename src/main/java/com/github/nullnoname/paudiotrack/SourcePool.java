@@ -0,0 +1,175 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.util.ArrayList;
+
+/**
+ * The SourcePool class keeps finished temporary sources so that LibraryAudioTrack.quickPlay() can reinitialize
+ * them with changeSource() instead of constructing a new SourceAudioTrack for every fire-and-forget sound.
+ * Only normal (non-streaming) sources are pooled.
+ * All methods are thread-safe.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class SourcePool {
+	/**
+	 * Idle sources
+	 */
+	private final ArrayList<SourceAudioTrack> idleSources = new ArrayList<SourceAudioTrack>();
+
+	/**
+	 * Maximum number of idle sources kept
+	 */
+	private int maxIdle = 64;
+
+	/**
+	 * Number of obtain() calls served by an idle source
+	 */
+	private long hits = 0;
+
+	/**
+	 * Number of obtain() calls which found no idle source
+	 */
+	private long misses = 0;
+
+	/**
+	 * Number of sources cleaned up because the pool was full
+	 */
+	private long discards = 0;
+
+	/**
+	 * Largest number of idle sources seen
+	 */
+	private int peakIdle = 0;
+
+	/**
+	 * Take an idle source. The caller must reinitialize it with changeSource().
+	 * @return Idle source, or null if there is none
+	 */
+	public synchronized SourceAudioTrack obtain() {
+		int size = idleSources.size();
+		if(size == 0) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return idleSources.remove(size - 1);
+	}
+
+	/**
+	 * Give a finished source back to the pool. It is reset first; if the pool is full (or the source streams)
+	 * it is cleaned up instead.
+	 * @param source Source which was removed from the source map
+	 * @return true if the source was kept
+	 */
+	public synchronized boolean release(SourceAudioTrack source) {
+		if(source.toStream || source.rawDataStream || idleSources.size() >= maxIdle) {
+			if(!source.toStream && !source.rawDataStream) discards++;
+			source.cleanup();
+			return false;
+		}
+		source.recycle();
+		idleSources.add(source);
+		if(idleSources.size() > peakIdle) peakIdle = idleSources.size();
+		return true;
+	}
+
+	/**
+	 * Clean up every idle source.
+	 */
+	public synchronized void clear() {
+		for(int i = 0; i < idleSources.size(); i++) {
+			idleSources.get(i).cleanup();
+		}
+		idleSources.clear();
+	}
+
+	/**
+	 * @return Maximum number of idle sources kept
+	 */
+	public synchronized int getMaxIdle() {
+		return maxIdle;
+	}
+
+	/**
+	 * Set the maximum number of idle sources kept. Extra idle sources are cleaned up.
+	 * @param maxIdle Maximum number of idle sources (0 to disable pooling)
+	 */
+	public synchronized void setMaxIdle(int maxIdle) {
+		this.maxIdle = Math.max(maxIdle, 0);
+		while(idleSources.size() > this.maxIdle) {
+			idleSources.remove(idleSources.size() - 1).cleanup();
+		}
+	}
+
+	/**
+	 * @return Number of idle sources
+	 */
+	public synchronized int getIdleCount() {
+		return idleSources.size();
+	}
+
+	/**
+	 * @return Largest number of idle sources seen
+	 */
+	public synchronized int getPeakIdleCount() {
+		return peakIdle;
+	}
+
+	/**
+	 * @return Number of quickPlay() calls served by a recycled source
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return Number of quickPlay() calls which had to construct a new source
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return Number of finished sources cleaned up because the pool was full
+	 */
+	public synchronized long getDiscards() {
+		return discards;
+	}
+
+	/**
+	 * Reset the statistics.
+	 */
+	public synchronized void resetStatistics() {
+		hits = 0;
+		misses = 0;
+		discards = 0;
+		peakIdle = idleSources.size();
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.lang.reflect.Method;
+
+import android.media.AudioTrack;
+
+/**
+ * The StreamBufferController class adapts how far ahead a streaming ChannelAudioTrack writes into its AudioTrack.
+ * The AudioTrack is created with room for the largest allowed size, and the controller picks a target in between:
+ * it grows the target after every underrun, and shrinks it a little at a time back toward the minimum buffer size
+ * while playback stays clean. Long blocking writes also count as trouble, since they stall the StreamThread.
+ *<br><br>
+ * Underruns are detected by the channel (the AudioTrack ran out of data while more was queued), and also read from
+ * AudioTrack.getUnderrunCount() on Android 7.0 or later, which also lets the controller shrink the AudioTrack's own
+ * buffer with setBufferSizeInFrames(). Both are called by reflection.
+ * All methods except the getters are called from the StreamThread.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class StreamBufferController {
+	/**
+	 * true to adapt the buffer size of streaming channels
+	 */
+	private static boolean enabled = false;
+
+	/**
+	 * Largest buffer size, as a multiple of AudioTrack.getMinBufferSize()
+	 */
+	private static int maxMultiplier = 8;
+
+	/**
+	 * How long playback must stay clean before the buffer shrinks one step, in milliseconds
+	 */
+	private static int shrinkDelayMillis = 3000;
+
+	/**
+	 * Target growth after an underrun (1.5 = 50% larger)
+	 */
+	private static final float GROW_FACTOR = 1.5f;
+
+	/**
+	 * Target shrink per clean period (8 = 1/8 smaller)
+	 */
+	private static final int SHRINK_DIVISOR = 8;
+
+	/**
+	 * true once the API 24 methods have been looked up
+	 */
+	private static boolean checked = false;
+
+	/**
+	 * AudioTrack.getUnderrunCount() and AudioTrack.setBufferSizeInFrames(int) (API 24), or null if not available
+	 */
+	private static Method getUnderrunCount, setBufferSizeInFrames;
+
+	/** Smallest target in frames */
+	private int minFrames;
+
+	/** Largest target in frames (the AudioTrack's capacity) */
+	private int maxFrames;
+
+	/** Current target in frames */
+	private volatile int targetFrames;
+
+	/** Target last given to setBufferSizeInFrames (0 if none) */
+	private int appliedFrames;
+
+	/** Sample rate of the stream */
+	private int sampleRate = 44100;
+
+	/** Target relative to minFrames, kept when the channel is reset for another stream */
+	private float learnedRatio = 0f;
+
+	/** Frames pending in the AudioTrack at the last check */
+	private long lastPending = 0;
+
+	/** AudioTrack.getUnderrunCount() at the last check (-1 if unknown) */
+	private int lastTrackUnderruns = -1;
+
+	/** Time playback has been clean since, in milliseconds */
+	private long cleanSince = 0;
+
+	/** Number of underruns seen */
+	private volatile int underrunCount = 0;
+
+	/** Number of writes that blocked for too long */
+	private volatile int stallCount = 0;
+
+	/** Total time spent blocked in AudioTrack.write(), in nanoseconds */
+	private volatile long blockedNanos = 0;
+
+	/** Number of times the target grew */
+	private volatile int growCount = 0;
+
+	/** Number of times the target shrank */
+	private volatile int shrinkCount = 0;
+
+	/**
+	 * @return true if streaming channels adapt their buffer size
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enable or disable adaptive buffer sizing for streaming channels. Takes effect when a stream is (re)started.
+	 * While enabled, ChannelAudioTrack's default stream buffer size only sets the starting size
+	 * (unless it is a fixed size set with setDefaultStreamBufferSize, which disables adaptation).
+	 * @param enabled true to enable
+	 */
+	public static void setEnabled(boolean enabled) {
+		StreamBufferController.enabled = enabled;
+	}
+
+	/**
+	 * @return Largest buffer size, as a multiple of AudioTrack.getMinBufferSize()
+	 */
+	public static int getMaxMultiplier() {
+		return maxMultiplier;
+	}
+
+	/**
+	 * Set the largest buffer size, as a multiple of AudioTrack.getMinBufferSize()
+	 * @param maxMultiplier Multiplier (minimum 1)
+	 */
+	public static void setMaxMultiplier(int maxMultiplier) {
+		StreamBufferController.maxMultiplier = Math.max(1, maxMultiplier);
+	}
+
+	/**
+	 * @return How long playback must stay clean before the buffer shrinks one step, in milliseconds
+	 */
+	public static int getShrinkDelayMillis() {
+		return shrinkDelayMillis;
+	}
+
+	/**
+	 * Set how long playback must stay clean before the buffer shrinks one step
+	 * @param shrinkDelayMillis Delay in milliseconds
+	 */
+	public static void setShrinkDelayMillis(int shrinkDelayMillis) {
+		StreamBufferController.shrinkDelayMillis = shrinkDelayMillis;
+	}
+
+	/**
+	 * Look up the API 24 AudioTrack methods
+	 */
+	private static synchronized void checkMethods() {
+		if(checked) return;
+		checked = true;
+		try {
+			getUnderrunCount = AudioTrack.class.getMethod("getUnderrunCount");
+			setBufferSizeInFrames = AudioTrack.class.getMethod("setBufferSizeInFrames", int.class);
+		} catch (Exception e) {
+			getUnderrunCount = null;
+			setBufferSizeInFrames = null;
+		}
+	}
+
+	/**
+	 * Start controlling a new stream
+	 * @param minFrames Smallest target in frames (AudioTrack.getMinBufferSize())
+	 * @param maxFrames Largest target in frames (the AudioTrack's capacity)
+	 * @param initialFrames Target for the first stream on this channel
+	 * @param sampleRate Sample rate of the stream
+	 */
+	public void reset(int minFrames, int maxFrames, int initialFrames, int sampleRate) {
+		checkMethods();
+		this.minFrames = Math.max(1, Math.min(minFrames, maxFrames));
+		this.maxFrames = Math.max(this.minFrames, maxFrames);
+		this.sampleRate = (sampleRate > 0) ? sampleRate : 44100;
+		// A channel which already learned a size keeps it for the next stream
+		int target = (learnedRatio > 0f) ? (int)(this.minFrames * learnedRatio) : initialFrames;
+		targetFrames = clamp(target);
+		appliedFrames = 0;
+		lastPending = 0;
+		lastTrackUnderruns = -1;
+		cleanSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param frames Number of frames
+	 * @return frames limited to minFrames - maxFrames
+	 */
+	private int clamp(int frames) {
+		return Math.max(minFrames, Math.min(maxFrames, frames));
+	}
+
+	/**
+	 * Check for underruns and adjust the target. Call once per StreamThread pass, before topping the AudioTrack up.
+	 * @param track The stream's AudioTrack
+	 * @param pending Frames written but not played yet
+	 * @param queued true if more data is waiting to be written
+	 * @param playing true if the stream is playing
+	 */
+	public void update(AudioTrack track, long pending, boolean queued, boolean playing) {
+		long now = System.currentTimeMillis();
+		boolean underrun = false;
+
+		// The AudioTrack ran dry while there was more to play
+		if(playing && pending == 0 && lastPending > 0 && queued)
+			underrun = true;
+		lastPending = pending;
+
+		if(getUnderrunCount != null) {
+			try {
+				int count = ((Integer)getUnderrunCount.invoke(track)).intValue();
+				if(lastTrackUnderruns >= 0 && count > lastTrackUnderruns)
+					underrun = true;
+				lastTrackUnderruns = count;
+			} catch (Exception e) {
+				lastTrackUnderruns = -1;
+			}
+		}
+
+		if(underrun) {
+			underrunCount++;
+			grow(now);
+		} else if(playing && targetFrames > minFrames && now - cleanSince >= shrinkDelayMillis) {
+			targetFrames = clamp(targetFrames - Math.max(1, targetFrames / SHRINK_DIVISOR));
+			learnedRatio = (float)targetFrames / minFrames;
+			shrinkCount++;
+			cleanSince = now;
+		}
+
+		apply(track);
+	}
+
+	/**
+	 * Record the time spent in one AudioTrack.write(). A write blocked for more than half the target stalled the StreamThread,
+	 * which counts as trouble.
+	 * @param nanos Time spent in write(), in nanoseconds
+	 */
+	public void writeFinished(long nanos) {
+		blockedNanos += nanos;
+		if(nanos > targetFrames * 500000000L / sampleRate) {
+			stallCount++;
+			// Don't shrink right after a stall
+			cleanSince = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Grow the target after an underrun
+	 * @param now Current time in milliseconds
+	 */
+	private void grow(long now) {
+		int target = clamp(Math.max(targetFrames + minFrames / 2, (int)(targetFrames * GROW_FACTOR)));
+		if(target != targetFrames) {
+			targetFrames = target;
+			growCount++;
+		}
+		learnedRatio = (float)targetFrames / minFrames;
+		cleanSince = now;
+	}
+
+	/**
+	 * Shrink or grow the AudioTrack's own buffer to the target (API 24)
+	 * @param track The stream's AudioTrack
+	 */
+	private void apply(AudioTrack track) {
+		if(setBufferSizeInFrames == null || appliedFrames == targetFrames)
+			return;
+		try {
+			setBufferSizeInFrames.invoke(track, targetFrames);
+			appliedFrames = targetFrames;
+		} catch (Exception e) {
+			appliedFrames = targetFrames;	// Don't try again until the target changes
+		}
+	}
+
+	/**
+	 * @return Current target (how far ahead the channel writes) in frames
+	 */
+	public int getTargetFrames() {
+		return targetFrames;
+	}
+
+	/**
+	 * @return Current target in milliseconds
+	 */
+	public float getTargetMillis() {
+		return targetFrames * 1000f / sampleRate;
+	}
+
+	/**
+	 * @return Smallest target in frames
+	 */
+	public int getMinFrames() {
+		return minFrames;
+	}
+
+	/**
+	 * @return Largest target in frames
+	 */
+	public int getMaxFrames() {
+		return maxFrames;
+	}
+
+	/**
+	 * @return Number of underruns seen
+	 */
+	public int getUnderrunCount() {
+		return underrunCount;
+	}
+
+	/**
+	 * @return Number of writes that blocked for more than half the target
+	 */
+	public int getStallCount() {
+		return stallCount;
+	}
+
+	/**
+	 * @return Total time spent blocked in AudioTrack.write(), in milliseconds
+	 */
+	public long getBlockedMillis() {
+		return blockedNanos / 1000000L;
+	}
+
+	/**
+	 * @return Number of times the target grew
+	 */
+	public int getGrowCount() {
+		return growCount;
+	}
+
+	/**
+	 * @return Number of times the target shrank
+	 */
+	public int getShrinkCount() {
+		return shrinkCount;
+	}
+
+	/**
+	 * Reset the counters (the learned size is kept)
+	 */
+	public void resetStatistics() {
+		underrunCount = 0;
+		stallCount = 0;
+		blockedNanos = 0;
+		growCount = 0;
+		shrinkCount = 0;
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The StreamBufferRing class is a bounded FIFO of reusable byte slabs,
+ * used by ChannelAudioTrack to queue chunks of stream data.
+ * Queued data is copied into a slab owned by the ring, so once every slab has been
+ * allocated the stream path does not create any more garbage.
+ * Slabs are allocated lazily, so a ring that is never used costs almost nothing.
+ *<br><br>
+ * The ring is a lock-free single-producer/single-consumer queue: one thread may call {@link #offer(byte[], int, int)}
+ * while another calls {@link #peekData()}, {@link #peekLength()} and {@link #remove()}, without any locking.
+ * The producer publishes a chunk by writing the volatile tail after filling the slab, and the consumer frees a slot
+ * by advancing the head after it is done with the slab, so each side only sees slots the other side has finished with.
+ * {@link #clear()} may be called from any thread, but it only records a request: the consumer discards the chunks
+ * which were queued before it the next time it looks at the ring. Freeing the slots right away would let the producer
+ * overwrite a slab the consumer is still writing out.
+ * {@link #grow()} and {@link #release()} must only be called while neither side is using the ring.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class StreamBufferRing {
+	/** Byte slabs, one per slot */
+	private byte[][] slabs;
+
+	/** Number of valid bytes in each slot */
+	private int[] lengths;
+
+	/** Number of slots - 1 (the number of slots is a power of two) */
+	private int mask;
+
+	/** Preferred size of a newly allocated slab */
+	private final int slabSize;
+
+	/** Number of chunks ever removed. Only advanced by the consumer */
+	private volatile long head = 0;
+
+	/** Number of chunks ever queued. Only written by the producer */
+	private volatile long tail = 0;
+
+	/** Value of tail at the last clear() request. The consumer moves head up to it before using the ring */
+	private final AtomicLong clearMark = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param capacity Number of slots (minimum 1, rounded up to a power of two)
+	 * @param slabSize Preferred size of each slab in bytes
+	 */
+	public StreamBufferRing(int capacity, int slabSize) {
+		int slots = 1;
+		while(slots < capacity) slots <<= 1;
+		this.slabs = new byte[slots][];
+		this.lengths = new int[slots];
+		this.mask = slots - 1;
+		this.slabSize = slabSize;
+	}
+
+	/**
+	 * @return Number of slots
+	 */
+	public int capacity() {
+		return slabs.length;
+	}
+
+	/**
+	 * @return Number of queued chunks
+	 */
+	public int size() {
+		long size = tail - visibleHead();
+		return (size > 0) ? (int)size : 0;
+	}
+
+	/**
+	 * Count the bytes of every queued chunk. May be called from either thread (the result may be slightly stale).
+	 * @return Number of queued bytes
+	 */
+	public int queuedBytes() {
+		long h = visibleHead();
+		long t = tail;
+		int total = 0;
+		for(long i = h; i < t; i++) {
+			total += lengths[(int)i & mask];
+		}
+		return total;
+	}
+
+	/**
+	 * @return true if nothing is queued
+	 */
+	public boolean isEmpty() {
+		return tail <= visibleHead();
+	}
+
+	/**
+	 * A cleared ring stays full until the consumer has looked at it again.
+	 * @return true if every slot is in use
+	 */
+	public boolean isFull() {
+		return tail - head >= slabs.length;
+	}
+
+	/**
+	 * @return Head as seen by size() and isEmpty(), which already leaves out chunks a pending clear() will discard
+	 */
+	private long visibleHead() {
+		return Math.max(head, clearMark.get());
+	}
+
+	/**
+	 * Carry out a pending clear() request, freeing the slots of the discarded chunks. Consumer only.
+	 * The peek and remove methods do this by themselves; call it when the consumer has nothing to peek at.
+	 * @return Number of chunks removed so far
+	 */
+	public long applyClear() {
+		long h = head;
+		long mark = clearMark.get();
+		if(mark > h) {
+			head = mark;
+			return mark;
+		}
+		return h;
+	}
+
+	/**
+	 * Copy a chunk of data to the tail of the ring. Producer only.
+	 * A slab is only (re)allocated when the slot has never been used or the chunk is larger than it.
+	 * @param src Source array
+	 * @param offset Offset in the source array
+	 * @param length Number of bytes to copy
+	 * @return false if the ring is full
+	 */
+	public boolean offer(byte[] src, int offset, int length) {
+		long t = tail;
+		if(t - head >= slabs.length) return false;
+
+		int index = (int)t & mask;
+		byte[] slab = obtainSlab(index, length);
+		System.arraycopy(src, offset, slab, 0, length);
+		lengths[index] = length;
+		// Publish the chunk (the volatile write makes the slab contents visible to the consumer)
+		tail = t + 1;
+		return true;
+	}
+
+	/**
+	 * Copy the remaining bytes of a ByteBuffer to the tail of the ring. Producer only.
+	 * The bytes are copied as they are (in one bulk copy for direct buffers), and the buffer's position is not changed.
+	 * @param src Source buffer
+	 * @return false if the ring is full
+	 */
+	public boolean offer(ByteBuffer src) {
+		long t = tail;
+		if(t - head >= slabs.length) return false;
+
+		int index = (int)t & mask;
+		int length = src.remaining();
+		byte[] slab = obtainSlab(index, length);
+		int position = src.position();
+		src.get(slab, 0, length);
+		src.position(position);
+		lengths[index] = length;
+		tail = t + 1;
+		return true;
+	}
+
+	/**
+	 * Copy 16-bit samples to the tail of the ring as little-endian bytes, which is what AudioTrack expects. Producer only.
+	 * @param src Source array
+	 * @param offset Offset in the source array
+	 * @param count Number of samples to copy
+	 * @return false if the ring is full
+	 */
+	public boolean offer(short[] src, int offset, int count) {
+		long t = tail;
+		if(t - head >= slabs.length) return false;
+
+		int index = (int)t & mask;
+		byte[] slab = obtainSlab(index, count * 2);
+		for(int i = 0, j = 0; i < count; i++) {
+			short sample = src[offset + i];
+			slab[j++] = (byte)sample;
+			slab[j++] = (byte)(sample >> 8);
+		}
+		lengths[index] = count * 2;
+		tail = t + 1;
+		return true;
+	}
+
+	/**
+	 * Get the slab of a slot, (re)allocating it if it has never been used or is too small
+	 * @param index Slot index
+	 * @param length Number of bytes needed
+	 * @return Slab
+	 */
+	private byte[] obtainSlab(int index, int length) {
+		byte[] slab = slabs[index];
+		if(slab == null || slab.length < length) {
+			slab = new byte[Math.max(length, slabSize)];
+			slabs[index] = slab;
+		}
+		return slab;
+	}
+
+	/**
+	 * Consumer only.
+	 * @return Slab of the oldest queued chunk, or null if empty. Only the first {@link #peekLength()} bytes are valid.
+	 */
+	public byte[] peekData() {
+		long h = applyClear();
+		if(tail == h) return null;
+		return slabs[(int)h & mask];
+	}
+
+	/**
+	 * Consumer only.
+	 * @return Number of valid bytes in the oldest queued chunk, or 0 if empty
+	 */
+	public int peekLength() {
+		long h = applyClear();
+		if(tail == h) return 0;
+		return lengths[(int)h & mask];
+	}
+
+	/**
+	 * Dequeue the oldest chunk. The slab stays in the ring for reuse. Consumer only.
+	 * If clear() was called since the last peek, the chunk was already discarded, and nothing more is removed.
+	 * @return false if nothing was removed
+	 */
+	public boolean remove() {
+		long h = head;
+		if(applyClear() != h) return false;
+		if(tail == h) return false;
+		head = h + 1;
+		return true;
+	}
+
+	/**
+	 * Double the number of slots. Queued chunks and already allocated slabs are kept.
+	 * Not thread-safe: only use this while the producer and consumer are serialized by some other lock.
+	 */
+	public void grow() {
+		int oldCapacity = slabs.length;
+		long h = applyClear();
+		int count = (int)(tail - h);
+		byte[][] newSlabs = new byte[oldCapacity * 2][];
+		int[] newLengths = new int[oldCapacity * 2];
+		for(int i = 0; i < oldCapacity; i++) {
+			int index = (int)(h + i) & mask;
+			newSlabs[i] = slabs[index];
+			newLengths[i] = (i < count) ? lengths[index] : 0;
+		}
+		slabs = newSlabs;
+		lengths = newLengths;
+		mask = newSlabs.length - 1;
+		head = 0;
+		clearMark.set(0);
+		tail = count;
+	}
+
+	/**
+	 * Dequeue everything queued so far. Slabs are kept for reuse. May be called from any thread.
+	 * The ring looks empty right away, but the slots are only freed when the consumer next peeks or removes,
+	 * so chunks queued after this call are kept.
+	 */
+	public void clear() {
+		while(true) {
+			long mark = clearMark.get();
+			long t = tail;
+			if(t <= mark || clearMark.compareAndSet(mark, t)) return;
+		}
+	}
+
+	/**
+	 * Dequeue everything and drop all slabs. Only use this while neither side is using the ring.
+	 */
+	public void release() {
+		clear();
+		applyClear();
+		for(int i = 0; i < slabs.length; i++) slabs[i] = null;
+	}
+}
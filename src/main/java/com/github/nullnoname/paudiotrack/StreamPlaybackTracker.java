@@ -0,0 +1,175 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+/**
+ * The StreamPlaybackTracker class keeps track of which chunks written to a MODE_STREAM AudioTrack
+ * have finished playing, by comparing their end positions with AudioTrack.getPlaybackHeadPosition().
+ * The playback head is an unsigned 32-bit frame counter, so it is extended to 64 bits here
+ * and keeps counting correctly when it wraps around.
+ *<br><br>
+ * The StreamThread writes chunks and polls finished ones, while other threads (the CommandThread through playing(),
+ * and raw data producers) read it too, so every method is synchronized. Each of them is short and never blocks.
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class StreamPlaybackTracker {
+	/** End position (in frames) of each chunk that has been written but not finished yet */
+	private long[] chunkEnds;
+
+	/** Index of the oldest unfinished chunk */
+	private int head = 0;
+
+	/** Number of unfinished chunks */
+	private int count = 0;
+
+	/** Total number of frames written since the last reset */
+	private long framesWritten = 0;
+
+	/** Total number of frames played since the last reset (the 64-bit playback head) */
+	private long framesPlayed = 0;
+
+	/** Raw 32-bit playback head position seen on the last update */
+	private int lastHeadPosition = 0;
+
+	/**
+	 * Constructor
+	 * @param capacity Initial number of chunks that can be tracked (grows if needed)
+	 */
+	public StreamPlaybackTracker(int capacity) {
+		if(capacity < 1) capacity = 1;
+		chunkEnds = new long[capacity];
+	}
+
+	/**
+	 * Forget every chunk. Call this whenever the AudioTrack's playback head goes back to zero
+	 * (new AudioTrack, stop or flush).
+	 */
+	public synchronized void reset() {
+		head = 0;
+		count = 0;
+		framesWritten = 0;
+		framesPlayed = 0;
+		lastHeadPosition = 0;
+	}
+
+	/**
+	 * Record a chunk which was just written to the AudioTrack.
+	 * @param frames Number of frames in the chunk
+	 */
+	public synchronized void chunkWritten(int frames) {
+		if(frames <= 0) return;
+		if(count == chunkEnds.length) {
+			long[] newChunkEnds = new long[chunkEnds.length * 2];
+			for(int i = 0; i < count; i++) {
+				newChunkEnds[i] = chunkEnds[(head + i) % chunkEnds.length];
+			}
+			chunkEnds = newChunkEnds;
+			head = 0;
+		}
+		framesWritten += frames;
+		chunkEnds[(head + count) % chunkEnds.length] = framesWritten;
+		count++;
+	}
+
+	/**
+	 * Record part of a chunk which was just written to the AudioTrack.
+	 * The chunk only counts as written when its last part is recorded by {@link #chunkWritten(int)}.
+	 * @param frames Number of frames in the part
+	 */
+	public synchronized void partWritten(int frames) {
+		if(frames <= 0) return;
+		framesWritten += frames;
+	}
+
+	/**
+	 * Advance the 64-bit playback head.
+	 * A position behind the last one is ignored: it was read by another thread before the last update,
+	 * so it carries no news (the head only goes back to zero on stop or flush, which call {@link #reset()}).
+	 * @param headPosition Value of AudioTrack.getPlaybackHeadPosition()
+	 */
+	public synchronized void update(int headPosition) {
+		// The int difference is the right distance across a wraparound, as long as the head moved less than 2^31 frames
+		int delta = headPosition - lastHeadPosition;
+		if(delta <= 0) return;
+		lastHeadPosition = headPosition;
+		framesPlayed += delta;
+		// The head can't be ahead of what we wrote (it may be after a stop without reset)
+		if(framesPlayed > framesWritten) framesPlayed = framesWritten;
+	}
+
+	/**
+	 * @return Number of chunks which have finished playing, without forgetting them
+	 */
+	public synchronized int peekFinished() {
+		int finished = 0;
+		while(finished < count && chunkEnds[(head + finished) % chunkEnds.length] <= framesPlayed) {
+			finished++;
+		}
+		return finished;
+	}
+
+	/**
+	 * Forget the chunks which have finished playing.
+	 * @return Number of chunks which have finished playing since the last call
+	 */
+	public synchronized int pollFinished() {
+		int finished = peekFinished();
+		head = (head + finished) % chunkEnds.length;
+		count -= finished;
+		return finished;
+	}
+
+	/**
+	 * @return Number of chunks written but not finished yet
+	 */
+	public synchronized int chunksInFlight() {
+		return count;
+	}
+
+	/**
+	 * @return Number of frames written but not played yet
+	 */
+	public synchronized long framesPending() {
+		return framesWritten - framesPlayed;
+	}
+
+	/**
+	 * @return Total number of frames played since the last reset
+	 */
+	public synchronized long framesPlayed() {
+		return framesPlayed;
+	}
+
+	/**
+	 * @return Total number of frames written since the last reset
+	 */
+	public synchronized long framesWritten() {
+		return framesWritten;
+	}
+}
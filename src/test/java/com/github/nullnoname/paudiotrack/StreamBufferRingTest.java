@@ -0,0 +1,237 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link StreamBufferRing}
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class StreamBufferRingTest {
+	/**
+	 * Dequeue the oldest chunk and return a copy of its valid bytes
+	 * @param ring Ring
+	 * @return Copy of the chunk
+	 */
+	private static byte[] poll(StreamBufferRing ring) {
+		byte[] data = ring.peekData();
+		int length = ring.peekLength();
+		byte[] result = new byte[length];
+		System.arraycopy(data, 0, result, 0, length);
+		assertTrue(ring.remove());
+		return result;
+	}
+
+	/**
+	 * The capacity is rounded up to a power of two
+	 */
+	@Test
+	public void testCapacity() {
+		assertEquals(1, new StreamBufferRing(0, 16).capacity());
+		assertEquals(4, new StreamBufferRing(3, 16).capacity());
+		assertEquals(8, new StreamBufferRing(8, 16).capacity());
+	}
+
+	/**
+	 * An empty ring has nothing to peek or remove, and a full one refuses more chunks
+	 */
+	@Test
+	public void testFullAndEmpty() {
+		StreamBufferRing ring = new StreamBufferRing(2, 4);
+		assertTrue(ring.isEmpty());
+		assertFalse(ring.isFull());
+		assertNull(ring.peekData());
+		assertEquals(0, ring.peekLength());
+		assertFalse(ring.remove());
+
+		assertTrue(ring.offer(new byte[] {1}, 0, 1));
+		assertTrue(ring.offer(new byte[] {2, 3}, 0, 2));
+		assertTrue(ring.isFull());
+		assertFalse(ring.offer(new byte[] {4}, 0, 1));
+		assertEquals(2, ring.size());
+		assertEquals(3, ring.queuedBytes());
+
+		assertArrayEquals(new byte[] {1}, poll(ring));
+		assertFalse(ring.isFull());
+		assertArrayEquals(new byte[] {2, 3}, poll(ring));
+		assertTrue(ring.isEmpty());
+		assertEquals(0, ring.queuedBytes());
+	}
+
+	/**
+	 * Chunks come out in order, with the right contents, over many trips around the ring
+	 */
+	@Test
+	public void testWrap() {
+		StreamBufferRing ring = new StreamBufferRing(4, 2);
+		int next = 0;
+		int expected = 0;
+		for(int round = 0; round < 100; round++) {
+			// Fill up to 3 chunks, then take out 2, so the slots in use keep moving around the ring
+			for(int i = 0; i < 3 && !ring.isFull(); i++) {
+				// Chunks of 1 to 5 bytes, some larger than the slab size
+				int length = next % 5 + 1;
+				byte[] chunk = new byte[length];
+				for(int j = 0; j < length; j++) chunk[j] = (byte)(next + j);
+				assertTrue(ring.offer(chunk, 0, length));
+				next++;
+			}
+			for(int i = 0; i < 2; i++) {
+				int length = expected % 5 + 1;
+				byte[] chunk = poll(ring);
+				assertEquals(length, chunk.length);
+				for(int j = 0; j < length; j++) assertEquals((byte)(expected + j), chunk[j]);
+				expected++;
+			}
+		}
+		assertEquals(next - expected, ring.size());
+	}
+
+	/**
+	 * offer(byte[]) copies only the requested range
+	 */
+	@Test
+	public void testOfferByteArrayRange() {
+		StreamBufferRing ring = new StreamBufferRing(1, 1);
+		byte[] src = {1, 2, 3, 4, 5};
+		assertTrue(ring.offer(src, 1, 3));
+		src[2] = 0;
+		assertArrayEquals(new byte[] {2, 3, 4}, poll(ring));
+	}
+
+	/**
+	 * offer(ByteBuffer) copies the remaining bytes and leaves the position alone, for heap and direct buffers
+	 */
+	@Test
+	public void testOfferByteBuffer() {
+		StreamBufferRing ring = new StreamBufferRing(2, 1);
+		ByteBuffer heap = ByteBuffer.wrap(new byte[] {1, 2, 3, 4});
+		heap.position(1);
+		ByteBuffer direct = ByteBuffer.allocateDirect(3);
+		direct.put(new byte[] {5, 6, 7});
+		direct.flip();
+
+		assertTrue(ring.offer(heap));
+		assertTrue(ring.offer(direct));
+		assertEquals(1, heap.position());
+		assertEquals(0, direct.position());
+		assertArrayEquals(new byte[] {2, 3, 4}, poll(ring));
+		assertArrayEquals(new byte[] {5, 6, 7}, poll(ring));
+	}
+
+	/**
+	 * offer(short[]) stores the samples as little-endian bytes
+	 */
+	@Test
+	public void testOfferShortArray() {
+		StreamBufferRing ring = new StreamBufferRing(1, 1);
+		short[] src = {0, 0x1234, (short)0xFF80, 0};
+		assertTrue(ring.offer(src, 1, 2));
+		assertArrayEquals(new byte[] {0x34, 0x12, (byte)0x80, (byte)0xFF}, poll(ring));
+	}
+
+	/**
+	 * A cleared ring looks empty right away, but its slots are only freed when the consumer next looks at it
+	 */
+	@Test
+	public void testClear() {
+		StreamBufferRing ring = new StreamBufferRing(2, 4);
+		ring.offer(new byte[] {1}, 0, 1);
+		ring.offer(new byte[] {2}, 0, 1);
+		ring.clear();
+		assertTrue(ring.isEmpty());
+		assertEquals(0, ring.size());
+		assertEquals(0, ring.queuedBytes());
+		assertTrue(ring.isFull());
+
+		// The consumer removing the chunk it peeked before the clear must not remove anything else
+		assertFalse(ring.remove());
+		assertFalse(ring.isFull());
+		assertFalse(ring.remove());
+
+		// Chunks queued after the clear are kept
+		ring.offer(new byte[] {3}, 0, 1);
+		ring.clear();
+		ring.offer(new byte[] {4}, 0, 1);
+		assertEquals(1, ring.size());
+		assertArrayEquals(new byte[] {4}, poll(ring));
+		assertTrue(ring.isEmpty());
+	}
+
+	/**
+	 * applyClear() frees the slots without the consumer having to peek
+	 */
+	@Test
+	public void testApplyClear() {
+		StreamBufferRing ring = new StreamBufferRing(1, 4);
+		ring.offer(new byte[] {1}, 0, 1);
+		ring.clear();
+		assertTrue(ring.isFull());
+		assertEquals(1, ring.applyClear());
+		assertFalse(ring.isFull());
+		assertTrue(ring.offer(new byte[] {2}, 0, 1));
+		assertArrayEquals(new byte[] {2}, poll(ring));
+	}
+
+	/**
+	 * grow() keeps queued chunks in order and drops cleared ones
+	 */
+	@Test
+	public void testGrow() {
+		StreamBufferRing ring = new StreamBufferRing(4, 1);
+		for(int i = 0; i < 3; i++) ring.offer(new byte[] {(byte)i}, 0, 1);
+		poll(ring);
+		poll(ring);
+		for(int i = 3; i < 6; i++) ring.offer(new byte[] {(byte)i}, 0, 1);
+		assertTrue(ring.isFull());
+
+		ring.grow();
+		assertEquals(8, ring.capacity());
+		assertEquals(4, ring.size());
+		for(int i = 6; i < 10; i++) assertTrue(ring.offer(new byte[] {(byte)i}, 0, 1));
+		assertTrue(ring.isFull());
+		for(int i = 2; i < 10; i++) assertArrayEquals(new byte[] {(byte)i}, poll(ring));
+
+		ring.offer(new byte[] {10}, 0, 1);
+		ring.clear();
+		ring.offer(new byte[] {11}, 0, 1);
+		ring.grow();
+		assertEquals(1, ring.size());
+		assertArrayEquals(new byte[] {11}, poll(ring));
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package com.github.nullnoname.paudiotrack;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link StreamPlaybackTracker}
+ *
+ * License of this class is Unlicense. For more information, please refer to http://unlicense.org/.
+ * @author NullNoname
+ */
+public class StreamPlaybackTrackerTest {
+	/**
+	 * Chunks finish when the playback head passes their end
+	 */
+	@Test
+	public void testChunksFinishInOrder() {
+		StreamPlaybackTracker tracker = new StreamPlaybackTracker(1);
+		tracker.chunkWritten(100);
+		tracker.chunkWritten(100);
+		tracker.chunkWritten(100);
+		assertEquals(3, tracker.chunksInFlight());
+		assertEquals(300, tracker.framesPending());
+
+		tracker.update(99);
+		assertEquals(0, tracker.peekFinished());
+		tracker.update(200);
+		assertEquals(2, tracker.peekFinished());
+		assertEquals(2, tracker.pollFinished());
+		assertEquals(0, tracker.pollFinished());
+		assertEquals(1, tracker.chunksInFlight());
+		assertEquals(100, tracker.framesPending());
+	}
+
+	/**
+	 * Parts only count as a chunk when the last part is written
+	 */
+	@Test
+	public void testPartWritten() {
+		StreamPlaybackTracker tracker = new StreamPlaybackTracker(4);
+		tracker.partWritten(50);
+		tracker.partWritten(50);
+		tracker.chunkWritten(50);
+		assertEquals(1, tracker.chunksInFlight());
+		assertEquals(150, tracker.framesWritten());
+
+		tracker.update(100);
+		assertEquals(0, tracker.pollFinished());
+		tracker.update(150);
+		assertEquals(1, tracker.pollFinished());
+	}
+
+	/**
+	 * The 32-bit head keeps counting across Integer.MAX_VALUE and across the unsigned wraparound to zero
+	 */
+	@Test
+	public void testHeadWraparound() {
+		StreamPlaybackTracker tracker = new StreamPlaybackTracker(4);
+		long total = 0x100000000L + 1000;
+		int chunk = 0x40000000;
+		long written = 0;
+		while(written + chunk <= total) {
+			tracker.chunkWritten(chunk);
+			written += chunk;
+		}
+		tracker.chunkWritten((int)(total - written));
+
+		// Walk the head in steps smaller than 2^31, as a real AudioTrack would be polled
+		long position = 0;
+		long step = 0x30000000L;
+		while(position + step < total) {
+			position += step;
+			tracker.update((int)position);
+			assertEquals(position, tracker.framesPlayed());
+		}
+		tracker.update((int)total);
+		assertEquals(total, tracker.framesPlayed());
+		assertEquals(0, tracker.framesPending());
+		assertEquals(5, tracker.pollFinished());
+	}
+
+	/**
+	 * The head never gets ahead of what was written
+	 */
+	@Test
+	public void testClampToWritten() {
+		StreamPlaybackTracker tracker = new StreamPlaybackTracker(4);
+		tracker.chunkWritten(100);
+		tracker.update(500);
+		assertEquals(100, tracker.framesPlayed());
+		assertEquals(0, tracker.framesPending());
+		assertEquals(1, tracker.pollFinished());
+
+		// Frames written after the clamp are pending until the head moves again
+		tracker.chunkWritten(100);
+		assertEquals(100, tracker.framesPending());
+		tracker.update(600);
+		assertEquals(200, tracker.framesPlayed());
+	}
+
+	/**
+	 * A head position read before the last update (by another thread) doesn't move the head
+	 */
+	@Test
+	public void testStaleHeadIgnored() {
+		StreamPlaybackTracker tracker = new StreamPlaybackTracker(4);
+		tracker.chunkWritten(1000);
+		tracker.update(600);
+		tracker.update(500);
+		assertEquals(600, tracker.framesPlayed());
+		tracker.update(700);
+		assertEquals(700, tracker.framesPlayed());
+	}
+
+	/**
+	 * reset() forgets everything, so the head of a new or flushed AudioTrack starts from zero
+	 */
+	@Test
+	public void testReset() {
+		StreamPlaybackTracker tracker = new StreamPlaybackTracker(4);
+		tracker.chunkWritten(100);
+		tracker.update(50);
+		tracker.reset();
+		assertEquals(0, tracker.chunksInFlight());
+		assertEquals(0, tracker.framesPending());
+		tracker.chunkWritten(100);
+		tracker.update(100);
+		assertEquals(1, tracker.pollFinished());
+	}
+}